@@ -0,0 +1,86 @@
+/**
+ * ********************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.framework.services.benchmarks;
+
+import eu.monnetproject.framework.services.Services;
+import eu.monnetproject.framework.services.benchmarks.Fixtures.BenchFactory;
+import java.net.URLClassLoader;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Dispatch through the aggregate factory proxy returned by
+ * {@link Services#getFactory(java.lang.Class)}. The first key is answered by
+ * the first delegate and the last key only by the last delegate.
+ *
+ * @author John McCrae
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FactoryBenchmark {
+
+    @Param({"1", "4", "16"})
+    public int implementations;
+    private URLClassLoader loader;
+    private BenchFactory factory;
+    private String firstKey, lastKey;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        loader = Fixtures.descriptorLoader(implementations, getClass().getClassLoader());
+        Thread.currentThread().setContextClassLoader(loader);
+        factory = Services.getFactory(BenchFactory.class);
+        firstKey = "0";
+        lastKey = Integer.toString(implementations - 1);
+        // Force the delegates to be resolved
+        factory.lookup(firstKey);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        loader.close();
+    }
+
+    @Benchmark
+    public Object firstDelegate() {
+        return factory.lookup(firstKey);
+    }
+
+    @Benchmark
+    public Object lastDelegate() {
+        return factory.lookup(lastKey);
+    }
+
+    @Benchmark
+    public Object noDelegate() {
+        return factory.lookup("none");
+    }
+}
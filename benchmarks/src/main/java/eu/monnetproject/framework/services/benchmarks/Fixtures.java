@@ -0,0 +1,287 @@
+/**
+ * ********************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.framework.services.benchmarks;
+
+import eu.monnetproject.framework.services.NonEmpty;
+import eu.monnetproject.framework.services.Singleton;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Collection;
+
+/**
+ * Services and implementations used by the benchmarks. The descriptors for
+ * these classes are not shipped in the jar but are written on demand, so that
+ * the number of implementations visible to the resolver can be varied.
+ *
+ * @author John McCrae
+ */
+public final class Fixtures {
+
+    public static final int MAX_IMPLEMENTATIONS = 16;
+
+    private Fixtures() {
+    }
+
+    public static interface BenchService {
+
+        int id();
+    }
+
+    public static interface BenchFactory {
+
+        /**
+         * @return The id of this implementation if it is equal to key, otherwise null
+         */
+        String lookup(String key);
+    }
+
+    public static interface BenchConsumer {
+
+        Collection<BenchService> services();
+    }
+
+    public static abstract class AbstractImpl implements BenchService, BenchFactory {
+
+        private final int id;
+        private final String key;
+
+        protected AbstractImpl(int id) {
+            this.id = id;
+            this.key = Integer.toString(id);
+        }
+
+        @Override
+        public int id() {
+            return id;
+        }
+
+        @Override
+        public String lookup(String key) {
+            return this.key.equals(key) ? this.key : null;
+        }
+    }
+
+    public static class Impl0 extends AbstractImpl {
+
+        public Impl0() {
+            super(0);
+        }
+    }
+
+    public static class Impl1 extends AbstractImpl {
+
+        public Impl1() {
+            super(1);
+        }
+    }
+
+    public static class Impl2 extends AbstractImpl {
+
+        public Impl2() {
+            super(2);
+        }
+    }
+
+    public static class Impl3 extends AbstractImpl {
+
+        public Impl3() {
+            super(3);
+        }
+    }
+
+    public static class Impl4 extends AbstractImpl {
+
+        public Impl4() {
+            super(4);
+        }
+    }
+
+    public static class Impl5 extends AbstractImpl {
+
+        public Impl5() {
+            super(5);
+        }
+    }
+
+    public static class Impl6 extends AbstractImpl {
+
+        public Impl6() {
+            super(6);
+        }
+    }
+
+    public static class Impl7 extends AbstractImpl {
+
+        public Impl7() {
+            super(7);
+        }
+    }
+
+    public static class Impl8 extends AbstractImpl {
+
+        public Impl8() {
+            super(8);
+        }
+    }
+
+    public static class Impl9 extends AbstractImpl {
+
+        public Impl9() {
+            super(9);
+        }
+    }
+
+    public static class Impl10 extends AbstractImpl {
+
+        public Impl10() {
+            super(10);
+        }
+    }
+
+    public static class Impl11 extends AbstractImpl {
+
+        public Impl11() {
+            super(11);
+        }
+    }
+
+    public static class Impl12 extends AbstractImpl {
+
+        public Impl12() {
+            super(12);
+        }
+    }
+
+    public static class Impl13 extends AbstractImpl {
+
+        public Impl13() {
+            super(13);
+        }
+    }
+
+    public static class Impl14 extends AbstractImpl {
+
+        public Impl14() {
+            super(14);
+        }
+    }
+
+    public static class Impl15 extends AbstractImpl {
+
+        public Impl15() {
+            super(15);
+        }
+    }
+
+    public static class PlainImpl extends AbstractImpl {
+
+        public PlainImpl() {
+            super(-1);
+        }
+    }
+
+    @Singleton
+    public static class SingletonImpl extends AbstractImpl {
+
+        public SingletonImpl() {
+            super(-2);
+        }
+    }
+
+    public static class Consumer implements BenchConsumer {
+
+        private final Collection<BenchService> services;
+
+        public Consumer(@NonEmpty Collection<BenchService> services) {
+            this.services = services;
+        }
+
+        @Override
+        public Collection<BenchService> services() {
+            return services;
+        }
+    }
+
+    /**
+     * Create a class loader that declares the first n implementations of
+     * {@link BenchService} and {@link BenchFactory}
+     *
+     * @param n The number of implementations
+     * @param parent The class loader the implementations are loaded from
+     * @return A class loader whose resources contain the descriptors
+     */
+    public static URLClassLoader descriptorLoader(int n, ClassLoader parent) throws IOException {
+        final File dir = File.createTempFile("mfs-bench", "");
+        dir.delete();
+        final File metaInf = new File(dir, "META-INF");
+        final File components = new File(metaInf, "components");
+        components.mkdirs();
+        // Deleted in the reverse order, so the files go before their directories
+        dir.deleteOnExit();
+        metaInf.deleteOnExit();
+        components.deleteOnExit();
+        writeDescriptor(new File(components, BenchService.class.getName()), n);
+        writeDescriptor(new File(components, BenchFactory.class.getName()), n);
+        return new URLClassLoader(new URL[]{dir.toURI().toURL()}, parent);
+    }
+
+    private static void writeDescriptor(File file, int n) throws IOException {
+        final PrintStream out = new PrintStream(new FileOutputStream(file));
+        try {
+            for (int i = 0; i < n; i++) {
+                out.println(Fixtures.class.getName() + "$Impl" + i);
+            }
+        } finally {
+            out.close();
+        }
+        file.deleteOnExit();
+    }
+
+    /**
+     * Create a class loader over the test jars of framework.services
+     *
+     * @param parent The parent loader
+     * @return A class loader providing Service1 and Service2
+     */
+    public static URLClassLoader testJarLoader(ClassLoader parent) throws IOException {
+        final File dir = new File(System.getProperty("mfs.fixtures", "../src/test/resources"));
+        final String[] jars = {"services", "dep_impl", "indep_impl"};
+        final URL[] urls = new URL[jars.length];
+        for (int i = 0; i < jars.length; i++) {
+            final File jar = new File(dir, jars[i] + "-1.0-SNAPSHOT.jar");
+            if (!jar.exists()) {
+                throw new IOException("Fixture " + jar + " not found, set -Dmfs.fixtures");
+            }
+            urls[i] = jar.toURI().toURL();
+        }
+        return new URLClassLoader(urls, parent);
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * ********************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.framework.services.benchmarks;
+
+import eu.monnetproject.framework.services.benchmarks.Fixtures.PlainImpl;
+import eu.monnetproject.framework.services.benchmarks.Fixtures.SingletonImpl;
+import eu.monnetproject.framework.services.impl.InjectableClass;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Instantiation of analysed classes, without any resolution
+ *
+ * @author John McCrae
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class InstantiationBenchmark {
+
+    private static final Object[] NO_ARGS = new Object[0];
+    private InjectableClass<PlainImpl> plain;
+    private InjectableClass<SingletonImpl> singleton;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        plain = new InjectableClass<PlainImpl>(PlainImpl.class);
+        singleton = new InjectableClass<SingletonImpl>(SingletonImpl.class);
+    }
+
+    @Benchmark
+    public Object newInstance() {
+        return plain.newInstance(NO_ARGS);
+    }
+
+    @Benchmark
+    public Object newSingletonInstance() {
+        return singleton.newInstance(NO_ARGS);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public Object newSingletonInstanceContended() {
+        return singleton.newInstance(NO_ARGS);
+    }
+
+    @Benchmark
+    public Object analyse() {
+        return new InjectableClass<PlainImpl>(PlainImpl.class);
+    }
+}
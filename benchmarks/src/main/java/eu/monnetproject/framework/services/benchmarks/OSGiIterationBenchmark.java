@@ -0,0 +1,151 @@
+/**
+ * ********************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.framework.services.benchmarks;
+
+import eu.monnetproject.framework.services.benchmarks.Fixtures.BenchConsumer;
+import eu.monnetproject.framework.services.benchmarks.Fixtures.BenchService;
+import eu.monnetproject.framework.services.benchmarks.Fixtures.Consumer;
+import eu.monnetproject.framework.services.impl.InjectableClass;
+import eu.monnetproject.framework.services.impl.OSGiComponent;
+import eu.monnetproject.framework.services.ServiceCollection;
+import java.io.File;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import org.apache.felix.framework.Felix;
+import org.openjdk.jmh.annotations.*;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Iteration of the live collection that an {@link OSGiComponent} injects,
+ * running under an embedded Felix. The implementations are registered by the
+ * system bundle.
+ *
+ * @author John McCrae
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class OSGiIterationBenchmark {
+
+    @Param({"1", "4", "16"})
+    public int implementations;
+    private File storage;
+    private Felix framework;
+    private OSGiComponent<BenchConsumer> component;
+    private BenchConsumer consumer;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        storage = File.createTempFile("mfs-felix", "");
+        storage.delete();
+        final Map<String, Object> props = new HashMap<String, Object>();
+        props.put(Constants.FRAMEWORK_STORAGE, storage.getAbsolutePath());
+        props.put(Constants.FRAMEWORK_STORAGE_CLEAN, Constants.FRAMEWORK_STORAGE_CLEAN_ONFIRSTINIT);
+        framework = new Felix(props);
+        framework.init();
+        framework.start();
+        final BundleContext context = framework.getBundleContext();
+        for (int i = 0; i < implementations; i++) {
+            final Object impl = Fixtures.class.getClassLoader().loadClass(Fixtures.class.getName() + "$Impl" + i).newInstance();
+            context.registerService(BenchService.class.getName(), impl, new Hashtable<String, Object>());
+        }
+        component = new OSGiComponent<BenchConsumer>((InjectableClass<BenchConsumer>) (InjectableClass<?>) new InjectableClass<Consumer>(Consumer.class),
+                BenchConsumer.class, context);
+        component.start();
+        final ServiceReference ref = context.getServiceReference(BenchConsumer.class.getName());
+        if (ref == null) {
+            throw new IllegalStateException("Consumer was not registered");
+        }
+        consumer = (BenchConsumer) context.getService(ref);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        component.stop();
+        framework.stop();
+        framework.waitForStop(10000);
+        deleteRecursive(storage);
+    }
+
+    private static void deleteRecursive(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursive(child);
+            }
+        }
+        file.delete();
+    }
+
+    @Benchmark
+    public int iterate() {
+        int sum = 0;
+        for (BenchService service : consumer.services()) {
+            sum += service.id();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int size() {
+        return consumer.services().size();
+    }
+
+    @Benchmark
+    @SuppressWarnings("unchecked")
+    public int forEachService() {
+        final int[] sum = new int[1];
+        ((ServiceCollection<BenchService>) consumer.services()).forEachService(new BiConsumer<BenchService, Map<String, Object>>() {
+            @Override
+            public void accept(BenchService service, Map<String, Object> props) {
+                sum[0] += service.id();
+            }
+        });
+        return sum[0];
+    }
+
+    @Benchmark
+    public int spliterator() {
+        final int[] sum = new int[1];
+        consumer.services().spliterator().forEachRemaining(new java.util.function.Consumer<BenchService>() {
+            @Override
+            public void accept(BenchService service) {
+                sum[0] += service.id();
+            }
+        });
+        return sum[0];
+    }
+}
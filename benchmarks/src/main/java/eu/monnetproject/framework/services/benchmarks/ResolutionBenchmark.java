@@ -0,0 +1,110 @@
+/**
+ * ********************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.framework.services.benchmarks;
+
+import eu.monnetproject.framework.services.Services;
+import java.net.URLClassLoader;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Resolution of single services from the test jars. The cold benchmarks use a
+ * new class loader for every call so that class loading and descriptor reading
+ * are included, the warm benchmarks reuse a single class loader.
+ *
+ * @author John McCrae
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResolutionBenchmark {
+
+    private URLClassLoader warmLoader;
+    private Class<?> warmService1, warmService2;
+
+    /**
+     * A new class loader for each call, in its own state so that the 
+     * per-invocation fixture does not apply to the warm benchmarks
+     */
+    @State(Scope.Thread)
+    public static class ColdState {
+
+        URLClassLoader loader;
+        Class<?> service1, service2;
+
+        @Setup(Level.Invocation)
+        public void setUp() throws Exception {
+            loader = Fixtures.testJarLoader(getClass().getClassLoader());
+            service1 = loader.loadClass("eu.monnetproject.framework.services.Service1");
+            service2 = loader.loadClass("eu.monnetproject.framework.services.Service2");
+        }
+
+        @TearDown(Level.Invocation)
+        public void tearDown() throws Exception {
+            loader.close();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUpWarm() throws Exception {
+        warmLoader = Fixtures.testJarLoader(getClass().getClassLoader());
+        warmService1 = warmLoader.loadClass("eu.monnetproject.framework.services.Service1");
+        warmService2 = warmLoader.loadClass("eu.monnetproject.framework.services.Service2");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDownWarm() throws Exception {
+        warmLoader.close();
+    }
+
+    @Benchmark
+    public Object getIndependentWarm() {
+        Thread.currentThread().setContextClassLoader(warmLoader);
+        return Services.get(warmService2);
+    }
+
+    @Benchmark
+    public Object getDependentWarm() {
+        Thread.currentThread().setContextClassLoader(warmLoader);
+        return Services.get(warmService1);
+    }
+
+    @Benchmark
+    public Object getIndependentCold(ColdState cold) {
+        Thread.currentThread().setContextClassLoader(cold.loader);
+        return Services.get(cold.service2);
+    }
+
+    @Benchmark
+    public Object getDependentCold(ColdState cold) {
+        Thread.currentThread().setContextClassLoader(cold.loader);
+        return Services.get(cold.service1);
+    }
+}
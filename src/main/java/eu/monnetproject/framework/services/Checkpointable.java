@@ -0,0 +1,52 @@
+/**********************************************************************************
+ * Copyright (c) 2011, Monnet Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Monnet Project nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************************/
+package eu.monnetproject.framework.services;
+
+/**
+ * A {@link Singleton} or {@link Pooled} service that holds external resources
+ * (files, sockets, connections) which must be released before the JVM is 
+ * checkpointed, e.g., with CRaC, and reopened after it is restored. See 
+ * {@link Services#beforeCheckpoint()}
+ * 
+ * @author John McCrae
+ */
+public interface Checkpointable {
+    
+    /**
+     * Release external resources. No services are resolved until 
+     * {@link #afterRestore()} is called
+     * @throws Exception If the resources could not be released, which 
+     * cancels the checkpoint
+     */
+    void beforeCheckpoint() throws Exception;
+    
+    /**
+     * Reopen the resources released by {@link #beforeCheckpoint()}
+     * @throws Exception If the resources could not be reopened
+     */
+    void afterRestore() throws Exception;
+}
@@ -0,0 +1,80 @@
+/**********************************************************************************
+ * Copyright (c) 2011, Monnet Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Monnet Project nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************************/
+package eu.monnetproject.framework.services;
+
+/**
+ * Creates a component without reflection. Factories are generated at compile
+ * time for each implementation listed in {@code META-INF/components} or 
+ * {@code META-INF/services} when this library is on the annotation processor 
+ * path. The factory of {@code com.example.Outer$Impl} is the class 
+ * {@code com.example.Outer_Impl_ComponentFactory}. The factories are listed
+ * in the {@link #INDEX} resource, and a listed factory is used instead of 
+ * reflection to find the constructor of the implementation and to call it.
+ * 
+ * @param <C> The implementation class
+ * @author John McCrae
+ */
+public interface ComponentFactory<C> {
+    
+    /**
+     * The suffix added to the binary name of an implementation, with 
+     * {@code $} replaced by {@code _}, to give the name of its factory
+     */
+    String SUFFIX = "_ComponentFactory";
+    
+    /**
+     * The resource listing the generated factories. Each line is the binary
+     * name of an implementation followed by the properties 
+     * {@code ;factory=<factory>} and, as the implementation is annotated, 
+     * {@code ;singleton}, {@code ;scope=<scope>} and {@code ;pooled}
+     */
+    String INDEX = "META-INF/component-factories";
+    
+    /**
+     * The erased types of the constructor's parameters
+     */
+    Class<?>[] dependencyTypes();
+    
+    /**
+     * The type argument of each parameter with exactly one type argument, 
+     * e.g., {@code Tokenizer} for {@code Collection<Tokenizer>}, or null
+     */
+    Class<?>[] elementTypes();
+    
+    /**
+     * Whether each parameter is annotated with {@link NonEmpty}
+     */
+    boolean[] nonEmpty();
+    
+    /**
+     * Call the constructor
+     * @param args The arguments, in the order of {@link #dependencyTypes()}
+     * @return The new instance
+     * @throws Exception If the constructor threw an exception
+     */
+    C newInstance(Object[] args) throws Exception;
+}
@@ -0,0 +1,79 @@
+/**********************************************************************************
+ * Copyright (c) 2011, Monnet Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Monnet Project nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************************/
+package eu.monnetproject.framework.services;
+
+import eu.monnetproject.framework.services.impl.InstancePool;
+import java.io.Closeable;
+
+/**
+ * A service borrowed from a pool. The lease should be closed when the service 
+ * is no longer used, so that it can be returned to the pool, e.g.,
+ * 
+ * <pre>
+ * final Lease&lt;Parser&gt; lease = Services.lease(Parser.class);
+ * try {
+ *     lease.get().parse(text);
+ * } finally {
+ *     lease.close();
+ * }
+ * </pre>
+ * 
+ * If the service is not {@link Pooled}, closing the lease does nothing.
+ * 
+ * @param <S> The service class
+ * @author John McCrae
+ */
+public final class Lease<S> implements Closeable {
+    private S service;
+
+    Lease(S service) {
+        this.service = service;
+    }
+
+    /**
+     * Get the leased service
+     * @throws IllegalStateException If the lease has been closed
+     */
+    public S get() {
+        if(service == null) {
+            throw new IllegalStateException("Lease has been closed");
+        }
+        return service;
+    }
+    
+    /**
+     * Return the service to its pool. The service must not be used after 
+     * the lease is closed
+     */
+    @Override
+    public void close() {
+        if(service != null) {
+            InstancePool.release(service);
+            service = null;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/**********************************************************************************
+ * Copyright (c) 2011, Monnet Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Monnet Project nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************************/
+package eu.monnetproject.framework.services;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Indicates that a method of a service interface depends only on its 
+ * arguments, so that the aggregate factory returned by 
+ * {@link Services#getFactory(java.lang.Class)} may return the result of an
+ * earlier call with equal arguments instead of calling the implementations
+ * again. The results are dropped when the collection of implementations 
+ * reports a change; the collections returned without OSGi never change, so 
+ * results are then only dropped when they are evicted or expire.
+ * 
+ * @author John McCrae
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Memoized {
+    /**
+     * The maximum number of results kept. When it is exceeded, about the 
+     * least recently used tenth of the results are dropped
+     */
+    int maximumSize() default 1000;
+    
+    /**
+     * The maximum total weight of the results kept, or zero if the results 
+     * are not weighed
+     */
+    long maximumWeight() default 0;
+    
+    /**
+     * How results are weighed, which must have a public no-argument 
+     * constructor
+     */
+    Class<? extends Weigher> weigher() default SizeWeigher.class;
+    
+    /**
+     * The time in milliseconds after which a result is dropped, or zero if
+     * results are only dropped when the cache is full
+     */
+    long expireAfterWrite() default 0;
+    
+    /**
+     * Computes the weight of a result
+     */
+    public static interface Weigher {
+        /**
+         * The weight of a result
+         * @param args The arguments of the call
+         * @param result The result, which may be null
+         * @return A non-negative weight
+         */
+        long weigh(Object[] args, Object result);
+    }
+    
+    /**
+     * Weighs collections, arrays and character sequences by their size and 
+     * other results as one
+     */
+    public static final class SizeWeigher implements Weigher {
+
+        @Override
+        public long weigh(Object[] args, Object result) {
+            if (result instanceof java.util.Collection) {
+                return ((java.util.Collection<?>) result).size();
+            } else if (result instanceof CharSequence) {
+                return ((CharSequence) result).length();
+            } else if (result != null && result.getClass().isArray()) {
+                return java.lang.reflect.Array.getLength(result);
+            } else {
+                return 1;
+            }
+        }
+    }
+}
@@ -29,9 +29,14 @@ package eu.monnetproject.framework.services;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.BiConsumer;
 
 /**
- * A collection that represents all services currently available
+ * A collection that represents all services currently available. Streams, 
+ * including {@code parallelStream()}, are over a sized snapshot of the 
+ * services available when the stream is created, which splits evenly.
  * 
  * @author John McCrae
  */
@@ -43,6 +48,53 @@ public interface ServiceCollection<S> extends Collection<S> {
     @Override
     ServiceIterator<S> iterator();
     
+    /**
+     * Get a spliterator over a snapshot of the available services
+     * @return A sized, immutable spliterator
+     */
+    @Override
+    default Spliterator<S> spliterator() {
+        return Spliterators.<S>spliterator(toArray(), Spliterator.IMMUTABLE | Spliterator.NONNULL);
+    }
+    
+    /**
+     * Perform an action on each available service and its properties. The 
+     * properties map may be reused between calls, so it should not be kept 
+     * after the action returns
+     * @param action The action
+     */
+    default void forEachService(BiConsumer<? super S, ? super Map<String, Object>> action) {
+        final ServiceIterator<S> iterator = iterator();
+        while (iterator.hasNext()) {
+            final S service = iterator.next();
+            action.accept(service, iterator.props());
+        }
+    }
+    
+    /**
+     * Listen for changes to this collection. The listener is first told about
+     * each service currently available, and then about services as they are 
+     * added, removed or modified. A service added while the listener is being
+     * registered may be reported twice. Collections that never change, such as
+     * those returned without an OSGi runtime, only report the current services.
+     * @param listener The listener
+     */
+    default void addListener(final ServiceCollectionListener<? super S> listener) {
+        forEachService(new BiConsumer<S, Map<String, Object>>() {
+            @Override
+            public void accept(S service, Map<String, Object> props) {
+                listener.serviceAdded(service, props);
+            }
+        });
+    }
+    
+    /**
+     * Stop listening for changes to this collection
+     * @param listener The listener
+     */
+    default void removeListener(ServiceCollectionListener<? super S> listener) {
+    }
+    
     /**
      * An iterator on services
      * @param <S>  The service class
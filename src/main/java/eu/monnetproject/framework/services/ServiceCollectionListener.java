@@ -0,0 +1,62 @@
+/**********************************************************************************
+ * Copyright (c) 2011, Monnet Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Monnet Project nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************************/
+package eu.monnetproject.framework.services;
+
+import java.util.Map;
+
+/**
+ * Receives changes to a {@link ServiceCollection}, so that consumers can 
+ * maintain indexes of services without iterating the collection again. 
+ * Listeners are called on the thread that changed the service and should 
+ * return quickly.
+ * 
+ * @param <S> The service class
+ * @author John McCrae
+ */
+public interface ServiceCollectionListener<S> {
+    
+    /**
+     * A service became available
+     * @param service The service
+     * @param props The properties of the service
+     */
+    void serviceAdded(S service, Map<String, Object> props);
+    
+    /**
+     * A service is about to become unavailable
+     * @param service The service
+     * @param props The properties of the service
+     */
+    void serviceRemoved(S service, Map<String, Object> props);
+    
+    /**
+     * The properties of a service changed
+     * @param service The service
+     * @param props The new properties of the service
+     */
+    void serviceModified(S service, Map<String, Object> props);
+}
@@ -0,0 +1,120 @@
+/**********************************************************************************
+ * Copyright (c) 2011, Monnet Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Monnet Project nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************************/
+package eu.monnetproject.framework.services;
+
+/**
+ * Receives instrumentation events from the resolver and the OSGi components.
+ * An implementation can be installed with {@link Services#setMetrics(ServiceMetrics)}
+ * or by setting the system property 
+ * {@code eu.monnetproject.framework.services.metrics} to either {@code jmx} (for
+ * the default MBean) or the name of a class implementing this interface. If no
+ * metrics are installed no events are generated.
+ * 
+ * Implementations may be called concurrently from many threads and should
+ * not block.
+ * 
+ * @author John McCrae
+ */
+public interface ServiceMetrics {
+
+    /**
+     * A service was requested
+     * @param serviceClass The name of the service interface
+     */
+    void lookup(String serviceClass);
+
+    /**
+     * A cached value was found
+     * @param cache The name of the cache (e.g., "singleton")
+     * @param className The name of the class the value was cached for
+     */
+    void cacheHit(String cache, String className);
+
+    /**
+     * A cached value was not found and had to be created
+     * @param cache The name of the cache (e.g., "singleton")
+     * @param className The name of the class the value was cached for
+     */
+    void cacheMiss(String cache, String className);
+
+    /**
+     * A service descriptor was read
+     * @param serviceClass The name of the service interface
+     * @param nanos The time taken to read the descriptor
+     */
+    void descriptorRead(String serviceClass, long nanos);
+
+    /**
+     * An implementation class was loaded
+     * @param implClass The name of the implementation
+     * @param nanos The time taken to load the class
+     */
+    void classLoad(String implClass, long nanos);
+
+    /**
+     * An implementation was constructed
+     * @param implClass The name of the implementation
+     * @param nanos The time taken by the constructor
+     */
+    void construct(String implClass, long nanos);
+
+    /**
+     * A singleton was constructed concurrently by more than one thread, so
+     * one of the instances was discarded
+     * @param implClass The name of the implementation
+     */
+    void singletonContention(String implClass);
+
+    /**
+     * An instance of a pooled service was created while the maximum number
+     * of instances were already in use
+     * @param implClass The name of the implementation
+     */
+    void poolSaturated(String implClass);
+
+    /**
+     * A service tracker of an OSGi component received an event
+     * @param component The name of the component
+     * @param dependency The name of the tracked interface
+     * @param event One of "added", "modified" or "removed"
+     */
+    void trackerEvent(String component, String dependency, String event);
+
+    /**
+     * An OSGi component that was already registered was registered again as
+     * its dependencies changed
+     * @param component The name of the component
+     */
+    void reregistration(String component);
+
+    /**
+     * An OSGi component changed between satisfied and unsatisfied
+     * @param component The name of the component
+     * @param satisfied The new state
+     */
+    void satisfactionChanged(String component, boolean satisfied);
+}
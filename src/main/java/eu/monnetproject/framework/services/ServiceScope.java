@@ -0,0 +1,119 @@
+/**********************************************************************************
+ * Copyright (c) 2011, Monnet Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Monnet Project nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************************/
+package eu.monnetproject.framework.services;
+
+import eu.monnetproject.framework.services.impl.ScopeCache;
+import java.io.Closeable;
+
+/**
+ * A scope in which {@link Scoped} services are reused. Scopes are bound to the
+ * thread that opens them and should be closed in a finally block, e.g.,
+ * 
+ * <pre>
+ * final ServiceScope scope = ServiceScope.open("request");
+ * try {
+ *     final Parser parser = Services.get(Parser.class);
+ *     // ...
+ * } finally {
+ *     scope.close();
+ * }
+ * </pre>
+ * 
+ * Each scope holds a bounded number of instances, discarding the least recently
+ * used instance if the bound is exceeded.
+ * 
+ * @author John McCrae
+ */
+public final class ServiceScope implements Closeable {
+    /**
+     * The name of the implicit per-thread scope
+     */
+    public static final String THREAD = "thread";
+    
+    private final ScopeCache cache;
+
+    private ServiceScope(ScopeCache cache) {
+        this.cache = cache;
+    }
+    
+    /**
+     * Open a scope on the current thread, holding at most the number of 
+     * instances given by the property 
+     * {@code eu.monnetproject.framework.services.scope.max} (default 64)
+     * @param name The name of the scope
+     * @return The scope
+     */
+    public static ServiceScope open(String name) {
+        return open(name, ScopeCache.DEFAULT_MAX_INSTANCES);
+    }
+    
+    /**
+     * Open a scope on the current thread
+     * @param name The name of the scope
+     * @param maxInstances The maximum number of instances held in this scope
+     * @return The scope
+     */
+    public static ServiceScope open(String name, int maxInstances) {
+        if(THREAD.equals(name)) {
+            throw new IllegalArgumentException("The thread scope is always open");
+        }
+        return new ServiceScope(ScopeCache.open(name, maxInstances));
+    }
+    
+    /**
+     * Discard the instances of the thread scope of the current thread. This 
+     * should be called before a thread is returned to a pool, e.g., at the 
+     * end of a request, if the instances should not be reused by the next
+     * task on the thread
+     */
+    public static void clearThreadScope() {
+        ScopeCache.clearThreadScope();
+    }
+
+    /**
+     * The name of this scope
+     */
+    public String getName() {
+        return cache.getName();
+    }
+    
+    /**
+     * The number of instances currently held in this scope
+     */
+    public int size() {
+        return cache.size();
+    }
+
+    /**
+     * Close this scope, discarding all its instances
+     * @throws IllegalStateException If called from another thread than the one that opened the scope
+     */
+    @Override
+    public void close() {
+        ScopeCache.close(cache);
+    }
+}
@@ -26,12 +26,14 @@
  *********************************************************************************/
 package eu.monnetproject.framework.services;
 
+import eu.monnetproject.framework.services.impl.Checkpoint;
+import eu.monnetproject.framework.services.impl.FactoryDispatcher;
+import eu.monnetproject.framework.services.impl.InstancePool;
+import eu.monnetproject.framework.services.impl.Metrics;
+import eu.monnetproject.framework.services.impl.ScopeCache;
+import eu.monnetproject.framework.services.impl.SingletonStore;
 import eu.monnetproject.framework.services.impl.StdResolver;
-import java.lang.reflect.InvocationHandler;
-import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
-import java.util.Collection;
-import java.util.LinkedList;
 
 /**
  * Interface for resolving services in a non-OSGi environment.
@@ -52,7 +54,31 @@ public final class Services {
      * @return The service.
      */
     public static <S> S get(Class<S> serviceClass) {
-        return StdResolver.resolveImmediate(serviceClass);
+        Checkpoint.enter();
+        try {
+            return StdResolver.resolveImmediate(serviceClass);
+        } finally {
+            Checkpoint.exit();
+        }
+    }
+    
+    /**
+     * Get a single instance of each of a number of services. This is the same
+     * as calling {@link #get(java.lang.Class)} for each service, except that 
+     * each service descriptor is only looked up and read once, even if it is 
+     * needed by more than one of the services or their dependencies
+     * @param serviceClasses The classes that the services must implement
+     * @throws ServiceLoadException As {@link #get(java.lang.Class)}, if any of
+     * the services could not be loaded
+     * @return The services, in the same order as the classes
+     */
+    public static Object[] getMany(Class<?>... serviceClasses) {
+        Checkpoint.enter();
+        try {
+            return StdResolver.resolveImmediate(serviceClasses);
+        } finally {
+            Checkpoint.exit();
+        }
     }
     
     /**
@@ -67,7 +93,103 @@ public final class Services {
      * services are not instantiated until the {@code next();} function is called.
      */
     public static <S> ServiceCollection<S> getAll(Class<S> serviceClass) {
-        return StdResolver.resolveExtant(serviceClass);
+        Checkpoint.enter();
+        try {
+            return StdResolver.resolveExtant(serviceClass);
+        } finally {
+            Checkpoint.exit();
+        }
+    }
+    
+    /**
+     * Borrow a service. If the implementation is {@link Pooled} an idle 
+     * instance is taken from the pool (or created if none is idle) and it is 
+     * returned to the pool when the lease is closed. Otherwise this is the same
+     * as {@link #get(java.lang.Class)}
+     * @param serviceClass The class that the service must implement
+     * @throws ServiceLoadException As {@link #get(java.lang.Class)}
+     * @return The lease, which must be closed after use
+     */
+    public static <S> Lease<S> lease(Class<S> serviceClass) {
+        return new Lease<S>(get(serviceClass));
+    }
+    
+    /**
+     * Return a pooled service that was obtained other than by a lease (e.g., 
+     * by {@link #get(java.lang.Class)}) to its pool. If the service is not 
+     * {@link Pooled} this does nothing
+     * @param service The service, which must not be used afterwards
+     */
+    public static void release(Object service) {
+        InstancePool.release(service);
+    }
+    
+    /**
+     * Dispose all singletons. Singletons that are {@link AutoCloseable} are 
+     * closed and all singletons will be created again when next requested
+     * @return The number of singletons disposed
+     */
+    public static int disposeSingletons() {
+        return SingletonStore.dispose(null);
+    }
+    
+    /**
+     * Dispose the singletons whose implementations were loaded by a class 
+     * loader or its descendants, and discard such instances from the thread
+     * scopes of all threads. This should be called when a web application
+     * is undeployed so that its class loader can be unloaded
+     * @param loader The class loader
+     * @return The number of singletons disposed
+     */
+    public static int disposeSingletons(ClassLoader loader) {
+        if (loader == null) {
+            throw new IllegalArgumentException("loader is null");
+        }
+        ScopeCache.purge(loader);
+        return SingletonStore.dispose(loader);
+    }
+    
+    /**
+     * Prepare for the JVM to be checkpointed, e.g., by CRaC. This waits for 
+     * services being resolved, then blocks further resolution until 
+     * {@link #afterRestore()} and calls {@link Checkpointable#beforeCheckpoint()}
+     * on singletons and idle pooled services. This is called automatically 
+     * if the CRaC API is available, or can be called to test a service's 
+     * behaviour across a checkpoint
+     * @throws Exception If a service could not release its resources, in 
+     * which case resolution is resumed
+     */
+    public static void beforeCheckpoint() throws Exception {
+        Checkpoint.beforeCheckpoint();
+    }
+    
+    /**
+     * Resume after the JVM is restored from a checkpoint, calling 
+     * {@link Checkpointable#afterRestore()} on the services told of the 
+     * checkpoint and resuming resolution. This must be called on the thread
+     * that called {@link #beforeCheckpoint()}
+     * @throws Exception If a service could not reopen its resources
+     */
+    public static void afterRestore() throws Exception {
+        Checkpoint.afterRestore();
+    }
+    
+    /**
+     * Install the metrics that receive resolution events. This replaces any 
+     * metrics set by the {@code eu.monnetproject.framework.services.metrics} 
+     * property
+     * @param metrics The metrics or null to disable metrics
+     */
+    public static void setMetrics(ServiceMetrics metrics) {
+        Metrics.set(metrics);
+    }
+    
+    /**
+     * Get the installed metrics
+     * @return The metrics or null if metrics are disabled
+     */
+    public static ServiceMetrics getMetrics() {
+        return Metrics.get();
     }
     
     /**
@@ -79,51 +201,7 @@ public final class Services {
     public static <S> S getFactory(final Class<S> serviceClass) {
         @SuppressWarnings("unchecked")
         final S service = (S) Proxy.newProxyInstance(serviceClass.getClassLoader(),
-                           new Class<?>[]{serviceClass}, new InvocationHandler() {
-                               private LinkedList<S> services;
-                               
-                               
-                       @Override
-                       public Object invoke(Object o, Method method, Object[] os) throws Throwable {
-                           if(services == null) {
-                               services = new LinkedList<S>();
-                               for (S s : getAll(serviceClass)) {
-                                   services.add(s);
-                               }
-                           }
-                           if (method.getDeclaringClass().equals(Object.class)) {
-                               return method.invoke(serviceClass, os);
-                           } else {
-                               if (method.getReturnType().equals(Collection.class)) {
-                                   LinkedList rval = new LinkedList();
-                                   for(S s : services) {
-                                       Object res = null;
-                                       try {
-                                           res = method.invoke(s, os);
-                                       } catch (Throwable t) {
-                                       }
-                                       if (res != null) {
-                                           rval.addAll((Collection) res);
-                                       }
-                                   }
-                                   return rval;
-
-                               } else {
-                                   for(S s : services) {
-                                       Object rval = null;
-                                       try {
-                                           rval = method.invoke(s, os);
-                                       } catch (Throwable t) {
-                                       }
-                                       if (rval != null) {
-                                           return rval;
-                                       }
-                                   }
-                                   return null;
-                               }
-                           }
-                       }
-                   });
+                           new Class<?>[]{serviceClass}, new FactoryDispatcher<S>(serviceClass));
         
         return service;
     }
@@ -36,11 +36,25 @@ import java.lang.annotation.Target;
  * the service will be stored by MFS in a static variable. Caveat: MFS does not 
  * guarantee that the constructor of a singleton class will only be invoked once 
  * but only that only a single unique instance of the service will be returned.
+ * If the instance implements {@link AutoCloseable} it is closed when it is 
+ * disposed, either by {@link Services#disposeSingletons()} or when it is
+ * released after being idle.
  * 
  * @author John McCrae
  */
 @Retention(RetentionPolicy.RUNTIME)
 @Target(ElementType.TYPE)
 public @interface Singleton {
-
+    /**
+     * How long the instance is kept
+     */
+    SingletonRetention retention() default SingletonRetention.DEFAULT;
+    
+    /**
+     * The time in milliseconds an instance with {@link SingletonRetention#IDLE}
+     * retention is kept after it was last requested, or zero to use the system 
+     * property {@code eu.monnetproject.framework.services.singleton.idleTimeout},
+     * which is five minutes if not set
+     */
+    long idleTimeout() default 0;
 }
@@ -0,0 +1,60 @@
+/**********************************************************************************
+ * Copyright (c) 2011, Monnet Project
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *     * Redistributions of source code must retain the above copyright
+ *       notice, this list of conditions and the following disclaimer.
+ *     * Redistributions in binary form must reproduce the above copyright
+ *       notice, this list of conditions and the following disclaimer in the
+ *       documentation and/or other materials provided with the distribution.
+ *     * Neither the name of the Monnet Project nor the
+ *       names of its contributors may be used to endorse or promote products
+ *       derived from this software without specific prior written permission.
+ * 
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *********************************************************************************/
+package eu.monnetproject.framework.services;
+
+/**
+ * How long MFS keeps the instance of a {@link Singleton}. If an instance is
+ * released it is created again when next requested.
+ * 
+ * @author John McCrae
+ */
+public enum SingletonRetention {
+    /**
+     * Use the retention given by the system property 
+     * {@code eu.monnetproject.framework.services.singleton.retention}, which 
+     * is {@code strong} if not set
+     */
+    DEFAULT,
+    /**
+     * Keep the instance until it is disposed or the class loader of the
+     * implementation is unloaded. The instance does not keep that class
+     * loader reachable, so a redeployed application can be unloaded without
+     * disposing its singletons first
+     */
+    STRONG,
+    /**
+     * Keep the instance until the garbage collector needs the memory. An 
+     * instance released in this way is not disposed
+     */
+    SOFT,
+    /**
+     * Keep the instance until it has not been requested for the idle timeout.
+     * An instance released in this way is not disposed, as the components it 
+     * was injected into may still use it
+     */
+    IDLE
+}
@@ -26,10 +26,11 @@
  */
 package eu.monnetproject.framework.services.impl;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import org.osgi.framework.*;
 
 /**
@@ -38,7 +39,11 @@ import org.osgi.framework.*;
  */
 public class Activator implements BundleActivator {
 
-    private final HashMap<String, List<OSGiComponent<?>>> components = new HashMap<String, List<OSGiComponent<?>>>();
+    // The components started for each bundle, keyed by bundle id
+    private final ConcurrentMap<Long, List<OSGiComponent<?>>> components = new ConcurrentHashMap<Long, List<OSGiComponent<?>>>();
+    // The analysed declarations of each bundle, kept while the bundle is stopped
+    // so that a restart of an unchanged bundle does not parse or load anything
+    private final ConcurrentMap<Long, Wiring> wirings = new ConcurrentHashMap<Long, Wiring>();
     private final boolean verbose = Boolean.parseBoolean(System.getProperty("eu.monnetproject.framework.services.verbose", "false"));
 
     @Override
@@ -46,33 +51,108 @@ public class Activator implements BundleActivator {
         if (verbose) {
             System.err.println("Starting eu.monnetproject.framework.services");
         }
-        final HashSet<String> processedBundles = new HashSet<String>();
+        SharedTrackers.setContext(bc);
+        // Synchronous so that components are stopped while their bundle's 
+        // context is still valid
         bc.addBundleListener(
-                new BundleListener() {
+                new SynchronousBundleListener() {
 
                     @Override
                     public void bundleChanged(BundleEvent be) {
                         final Bundle bundle = be.getBundle();
-                        if (be.getType() == BundleEvent.STARTED) {
-                            startBundle(bundle, processedBundles);
-                        } else if (be.getType() == BundleEvent.STOPPED) {
-                            // We don't synchronize as ServiceTracker will do it for us :)
-                            stopComponents(bundle);
+                        switch (be.getType()) {
+                            case BundleEvent.STARTED:
+                                startBundle(bundle);
+                                break;
+                            case BundleEvent.STOPPING:
+                            case BundleEvent.STOPPED:
+                                stopComponents(bundle);
+                                break;
+                            case BundleEvent.UPDATED:
+                            case BundleEvent.UNRESOLVED:
+                                // The wiring is kept to compare with the next
+                                // revision, which only reuses the components
+                                // whose classes it still loads. An update is 
+                                // also unresolved before it is updated
+                                stopComponents(bundle);
+                                break;
+                            case BundleEvent.UNINSTALLED:
+                                stopComponents(bundle);
+                                wirings.remove(bundle.getBundleId());
+                                break;
+                            default:
                         }
                     }
                 });
         for (Bundle bundle : bc.getBundles()) {
             if (bundle.getState() == Bundle.STARTING || bundle.getState() == Bundle.ACTIVE) {
-                startBundle(bundle, processedBundles);
+                startBundle(bundle);
             }
         }
     }
 
-    private boolean doResolve(Bundle bundle, final LinkedList<OSGiComponent<?>> bundleComps, String pathPrefix, boolean independent) {
+    /**
+     * A declaration of an implementation in a bundle
+     */
+    private static class ComponentDeclaration {
+
+        final String serviceName;
+        final DescriptorParser.Declaration declaration;
+        final boolean independent;
+
+        public ComponentDeclaration(String serviceName, DescriptorParser.Declaration declaration, boolean independent) {
+            this.serviceName = serviceName;
+            this.declaration = declaration;
+            this.independent = independent;
+        }
+
+        /**
+         * A string that is the same for identical declarations
+         */
+        String key() {
+            return serviceName + "=" + declaration.getClassName() + new TreeMap<String, String>(declaration.getProperties()) + (independent ? "!" : "");
+        }
+    }
+
+    /**
+     * A declaration whose classes have been loaded and analysed
+     */
+    private static class WiredComponent {
+
+        final String key;
+        final Class<?> implClass;
+        final InjectableClass<?> injectableClass;
+        final Class<?> serviceClass;
+        final Map<String, String> properties;
+
+        public WiredComponent(String key, Class<?> implClass, InjectableClass<?> injectableClass, Class<?> serviceClass, Map<String, String> properties) {
+            this.key = key;
+            this.implClass = implClass;
+            this.injectableClass = injectableClass;
+            this.serviceClass = serviceClass;
+            this.properties = properties;
+        }
+    }
+
+    /**
+     * The components of a revision of a bundle
+     */
+    private static class Wiring {
+
+        final long lastModified;
+        final List<WiredComponent> components;
+
+        public Wiring(long lastModified, List<WiredComponent> components) {
+            this.lastModified = lastModified;
+            this.components = components;
+        }
+    }
+
+    private void doResolve(Bundle bundle, final List<ComponentDeclaration> declarations, String pathPrefix, boolean independent) {
         @SuppressWarnings("unchecked")
         final Enumeration<String> entryPaths = bundle.getEntryPaths("/" + pathPrefix);
         if (entryPaths == null) {
-            return true;
+            return;
         }
         while (entryPaths.hasMoreElements()) {
             String entryPath = entryPaths.nextElement();
@@ -80,96 +160,138 @@ public class Activator implements BundleActivator {
                 System.err.println("Found declaration at " + entryPath);
             }
 
-            BufferedReader reader = null;
+            final long start = StartupTimeline.start();
             try {
-                reader = new BufferedReader(new InputStreamReader(bundle.getResource(entryPath).openStream()));
                 final String className = entryPath.substring(pathPrefix.length());
-                final Class<?> serviceClass = bundle.loadClass(className);
-                String s;
-                while ((s = reader.readLine()) != null) {
-
-                    try {
-                        if (!s.matches("\\s*")) {
-                            if (verbose) {
-                                System.err.println("Registering service implementation " + s);
-                            }
-                            // Register the service
-                            final Class<?> implClass = bundle.loadClass(s);
-                            mkOSGiComp(implClass, independent, serviceClass, bundle, bundleComps);
-                        }
-                    } catch (Exception x) {
-                        if (verbose) {
-                            x.printStackTrace();
-                        }
-                    }
+                for (DescriptorParser.Declaration declaration : DescriptorParser.parse(bundle.getResource(entryPath))) {
+                    declarations.add(new ComponentDeclaration(className, declaration, independent));
                 }
+                StartupTimeline.span(bundle.getSymbolicName(), className, StartupTimeline.DESCRIPTOR_PARSED, entryPath, start);
+            } catch (IOException x) {
+                if (verbose) {
+                    x.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Load and analyse the declared classes. A declaration that is the same 
+     * in the previous revision, and whose classes are still the ones the 
+     * bundle loads, e.g., because they are imported from another bundle, 
+     * reuses the previous analysis
+     *
+     * @param previous The components of the previous revision keyed by 
+     * declaration, from which the reused ones are removed
+     */
+    private List<WiredComponent> wire(Bundle bundle, final List<ComponentDeclaration> declarations, Map<String, WiredComponent> previous) {
+        final ArrayList<WiredComponent> wired = new ArrayList<WiredComponent>(declarations.size());
+        if (ClassCache.isPreloading()) {
+            final ArrayList<String> classNames = new ArrayList<String>(declarations.size());
+            for (ComponentDeclaration decl : declarations) {
+                classNames.add(decl.declaration.getClassName());
+            }
+            ClassCache.preload(bundle, classNames);
+        }
+        for (ComponentDeclaration decl : declarations) {
+            final String key = decl.key();
+            final Class<?> serviceClass;
+            try {
+                serviceClass = ClassCache.loadClass(bundle, decl.serviceName);
             } catch (ClassNotFoundException x) {
                 System.err.println("Bad service declaration: " + x.getMessage());
                 if (verbose) {
                     x.printStackTrace();
                 }
-            } catch (IOException x) {
+                continue;
+            }
+            try {
                 if (verbose) {
-                    x.printStackTrace();
+                    System.err.println("Registering service implementation " + decl.declaration);
                 }
-            } finally {
-                if (reader != null) {
-                    try {
-                        reader.close();
-                    } catch (Exception x) {
-                    }
+                final Class<?> implClass = ClassCache.loadClass(bundle, decl.declaration.getClassName());
+                final WiredComponent unchanged = previous.get(key);
+                if (unchanged != null && unchanged.implClass == implClass && unchanged.serviceClass == serviceClass) {
+                    previous.remove(key);
+                    wired.add(unchanged);
+                    continue;
+                }
+                @SuppressWarnings("unchecked")
+                final InjectableClass<?> injectableClass = new InjectableClass<Object>((Class<Object>) implClass);
+                if (!decl.independent || injectableClass.dependencies().length == 0) {
+                    wired.add(new WiredComponent(key, implClass, injectableClass, serviceClass, decl.declaration.getProperties()));
+                }
+            } catch (Exception x) {
+                if (verbose) {
+                    x.printStackTrace();
                 }
             }
         }
-        return false;
+        return wired;
     }
 
-    private <C,D> void mkOSGiComp(final Class<D> implClass, boolean independent, final Class<C> serviceClass, Bundle bundle, final LinkedList<OSGiComponent<?>> bundleComps) {
-        final InjectableClass<D> injectableClass = new InjectableClass<D>(implClass);
-        if (!independent || injectableClass.dependencies().length == 0) {
-            @SuppressWarnings("unchecked")
-            final OSGiComponent<C> osgiComp = new OSGiComponent<C>((InjectableClass<C>)injectableClass, serviceClass, bundle.getBundleContext());
-            osgiComp.start();
-            bundleComps.add(osgiComp);
-        }
+    private <C> OSGiComponent<C> mkOSGiComp(WiredComponent wired, Bundle bundle) {
+        @SuppressWarnings("unchecked")
+        final OSGiComponent<C> osgiComp = new OSGiComponent<C>((InjectableClass<C>) wired.injectableClass, (Class<C>) wired.serviceClass, bundle.getBundleContext(), wired.properties);
+        osgiComp.start();
+        return osgiComp;
     }
 
-    private void startBundle(final Bundle bundle, Set<String> processedBundles) {
-        boolean cont = false;
-        final String bundleName = bundle.getSymbolicName() + "-" + bundle.getVersion();
+    private void startBundle(final Bundle bundle) {
         if (verbose) {
-            System.err.println("Processing Bundle: " + bundleName);
-        }
-        synchronized (processedBundles) {
-            if (!processedBundles.contains(bundleName)) {
-                processedBundles.add(bundleName);
-                cont = true;
-            }
+            System.err.println("Processing Bundle: " + bundle.getSymbolicName() + "-" + bundle.getVersion());
         }
-        if (cont) {
-            startComponents(bundle);
+        final List<OSGiComponent<?>> bundleComps = new CopyOnWriteArrayList<OSGiComponent<?>>();
+        // Each start of a bundle is processed once
+        if (components.putIfAbsent(bundle.getBundleId(), bundleComps) == null) {
+            startComponents(bundle, bundleComps);
         }
     }
 
-    private void startComponents(Bundle bundle) {
+    private void startComponents(Bundle bundle, List<OSGiComponent<?>> bundleComps) {
+        final long start = StartupTimeline.start();
         final String bundleName = bundle.getSymbolicName() + "-" + bundle.getVersion();
-        final LinkedList<OSGiComponent<?>> bundleComps = new LinkedList<OSGiComponent<?>>();
-        components.put(bundleName, bundleComps);
-        doResolve(bundle, bundleComps,StdResolver.PATH_PREFIX,false);
-        doResolve(bundle, bundleComps,StdResolver.JSL_PATH_PREFIX,true);
+        Wiring wiring = wirings.get(bundle.getBundleId());
+        final String detail;
+        if (wiring != null && wiring.lastModified == bundle.getLastModified()) {
+            detail = "unchanged";
+        } else {
+            final ArrayList<ComponentDeclaration> declarations = new ArrayList<ComponentDeclaration>();
+            doResolve(bundle, declarations, StdResolver.PATH_PREFIX, false);
+            doResolve(bundle, declarations, StdResolver.JSL_PATH_PREFIX, true);
+            final Map<String, WiredComponent> previous = new HashMap<String, WiredComponent>();
+            if (wiring != null) {
+                for (WiredComponent wired : wiring.components) {
+                    previous.put(wired.key, wired);
+                }
+            }
+            final int n = previous.size();
+            wiring = new Wiring(bundle.getLastModified(), wire(bundle, declarations, previous));
+            wirings.put(bundle.getBundleId(), wiring);
+            detail = n == 0 ? null : (n - previous.size()) + " reused";
+        }
+        for (WiredComponent wired : wiring.components) {
+            try {
+                bundleComps.add(mkOSGiComp(wired, bundle));
+            } catch (Exception x) {
+                if (verbose) {
+                    x.printStackTrace();
+                }
+            }
+        }
+        StartupTimeline.span(bundleName, null, StartupTimeline.BUNDLE_SCANNED, bundleComps.size() + " components" + (detail == null ? "" : " (" + detail + ")"), start);
     }
 
     private void stopComponents(Bundle bundle) {
-        final String bundleName = bundle.getSymbolicName() + "-" + bundle.getVersion();
-        if (verbose) {
-            System.err.println("Stopping bundle " + bundleName);
-        }
-        if (components.containsKey(bundleName)) {
-            for (OSGiComponent<?> component : components.get(bundleName)) {
+        final List<OSGiComponent<?>> bundleComps = components.remove(bundle.getBundleId());
+        if (bundleComps != null) {
+            if (verbose) {
+                System.err.println("Stopping bundle " + bundle.getSymbolicName() + "-" + bundle.getVersion());
+            }
+            for (OSGiComponent<?> component : bundleComps) {
                 component.stop();
             }
         }
-        components.remove(bundleName);
     }
 
     @Override
@@ -179,5 +301,8 @@ public class Activator implements BundleActivator {
                 component.stop();
             }
         }
+        components.clear();
+        wirings.clear();
+        SharedTrackers.setContext(null);
     }
 }
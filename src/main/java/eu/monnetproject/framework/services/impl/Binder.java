@@ -0,0 +1,186 @@
+/**
+ * ********************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.framework.services.impl;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tracks the binding state of a component without locks. Each event replaces
+ * the state by compare-and-set, so exactly one thread observes each change.
+ * If the new state is satisfied that thread registers the component, and if it
+ * has just become unsatisfied the thread unregisters it. Registrations are
+ * published in version order: a registration made for a state that has since
+ * been superseded is withdrawn, so the published registration always reflects
+ * the latest state that required an action.
+ *
+ * @param <R> The type of registrations
+ * @author John McCrae
+ */
+abstract class Binder<R> {
+
+    private final AtomicReference<BindingState> state;
+    private final AtomicReference<Published<R>> published = new AtomicReference<Published<R>>(new Published<R>(-1, null));
+
+    private static final class Published<R> {
+
+        final long version;
+        final R registration;
+
+        Published(long version, R registration) {
+            this.version = version;
+            this.registration = registration;
+        }
+    }
+
+    Binder(BindingState initial) {
+        this.state = new AtomicReference<BindingState>(initial);
+    }
+
+    /**
+     * Register the component. This is called without any locks held
+     *
+     * @param state The satisfied state to register
+     * @return The registration
+     */
+    protected abstract R register(BindingState state);
+
+    /**
+     * Withdraw a registration. This is called without any locks held
+     */
+    protected abstract void unregister(R registration);
+
+    /**
+     * Called when a dependency has been bound, before the component is
+     * registered for the new state
+     *
+     * @param i The index of the dependency
+     */
+    protected void bound(int i) {
+    }
+
+    /**
+     * Called when the published registration changes
+     *
+     * @param wasRegistered If there was a registration before
+     * @param isRegistered If there is a registration now
+     */
+    protected void published(boolean wasRegistered, boolean isRegistered) {
+    }
+
+    /**
+     * Get the current state
+     */
+    BindingState state() {
+        return state.get();
+    }
+
+    /**
+     * Bind a dependency
+     *
+     * @param i The index of the dependency
+     * @param value The reference or collection
+     * @return true if this changed the binding
+     */
+    boolean bind(int i, Object value) {
+        BindingState prev, next;
+        do {
+            prev = state.get();
+            next = prev.with(i, value);
+            if (next == prev) {
+                return false;
+            }
+        } while (!state.compareAndSet(prev, next));
+        bound(i);
+        act(prev, next);
+        return true;
+    }
+
+    /**
+     * Unbind a dependency if it is currently bound to a value
+     *
+     * @param i The index of the dependency
+     * @param expected The reference or collection that is no longer available
+     * @return true if this changed the binding
+     */
+    boolean unbind(int i, Object expected) {
+        BindingState prev, next;
+        do {
+            prev = state.get();
+            next = prev.without(i, expected);
+            if (next == prev) {
+                return false;
+            }
+        } while (!state.compareAndSet(prev, next));
+        act(prev, next);
+        return true;
+    }
+
+    /**
+     * Register the component again if it is satisfied, e.g., because the
+     * properties of a bound service changed
+     */
+    void rebind() {
+        BindingState prev, next;
+        do {
+            prev = state.get();
+            if (!prev.isSatisfied()) {
+                return;
+            }
+            next = prev.touch();
+        } while (!state.compareAndSet(prev, next));
+        act(prev, next);
+    }
+
+    private void act(BindingState prev, BindingState next) {
+        if (next.isSatisfied()) {
+            publish(next.version, register(next));
+        } else if (prev.isSatisfied()) {
+            publish(next.version, null);
+        }
+    }
+
+    private void publish(long version, R registration) {
+        final Published<R> next = new Published<R>(version, registration);
+        while (true) {
+            final Published<R> current = published.get();
+            if (current.version > version) {
+                // A later state has already been acted on
+                if (registration != null) {
+                    unregister(registration);
+                }
+                return;
+            }
+            if (published.compareAndSet(current, next)) {
+                if (current.registration != null) {
+                    unregister(current.registration);
+                }
+                published(current.registration != null, registration != null);
+                return;
+            }
+        }
+    }
+}
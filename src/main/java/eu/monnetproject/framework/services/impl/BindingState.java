@@ -0,0 +1,115 @@
+/**
+ * ********************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.framework.services.impl;
+
+/**
+ * An immutable snapshot of the dependencies bound to a component. Each
+ * dependency holds a service reference or a service collection, or null if it
+ * is not bound. Whether the component is satisfied is derived from the
+ * snapshot rather than counted, so it cannot drift. Every change creates a new
+ * snapshot with a higher version.
+ *
+ * @author John McCrae
+ */
+final class BindingState {
+
+    final long version;
+    private final Object[] values;
+    private final boolean[] required;
+    private final int missing;
+
+    private BindingState(long version, Object[] values, boolean[] required) {
+        this.version = version;
+        this.values = values;
+        this.required = required;
+        int m = 0;
+        for (int i = 0; i < values.length; i++) {
+            if (required[i] && values[i] == null) {
+                m++;
+            }
+        }
+        this.missing = m;
+    }
+
+    /**
+     * Create the state of a component before any events are received
+     *
+     * @param values The initial values, which are copied
+     * @param required Whether each dependency must be bound for the component
+     * to be satisfied
+     */
+    static BindingState initial(Object[] values, boolean[] required) {
+        assert (values.length == required.length);
+        return new BindingState(0, values.clone(), required.clone());
+    }
+
+    /**
+     * Bind a dependency
+     *
+     * @return The new state, or this state if the value is already bound
+     */
+    BindingState with(int i, Object value) {
+        if (values[i] == value) {
+            return this;
+        }
+        final Object[] newValues = values.clone();
+        newValues[i] = value;
+        return new BindingState(version + 1, newValues, required);
+    }
+
+    /**
+     * Unbind a dependency if it is bound to a particular value
+     *
+     * @return The new state, or this state if the value is not bound
+     */
+    BindingState without(int i, Object expected) {
+        if (values[i] != expected || expected == null) {
+            return this;
+        }
+        return with(i, null);
+    }
+
+    /**
+     * Create a state with the same bindings but a higher version, so that a
+     * satisfied component is registered again
+     */
+    BindingState touch() {
+        return new BindingState(version + 1, values, required);
+    }
+
+    boolean isSatisfied() {
+        return missing == 0;
+    }
+
+    int size() {
+        return values.length;
+    }
+
+    Object get(int i) {
+        return values[i];
+    }
+}
@@ -0,0 +1,247 @@
+/**
+ * ********************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.framework.services.impl;
+
+import eu.monnetproject.framework.services.Checkpointable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Takes part in checkpoint and restore of the JVM. Resolutions are counted,
+ * so a checkpoint waits for resolutions in progress to finish and blocks new
+ * ones until the JVM is restored. When no checkpoint is pending a resolution 
+ * only reads a volatile flag and updates the count, and only takes a lock 
+ * while a checkpoint is pending. Singletons and idle pooled 
+ * instances that are {@link Checkpointable} are told before the checkpoint 
+ * and after the restore, and the idle times of singletons and pools are 
+ * restarted after the restore.
+ * <p>
+ * If the CRaC API ({@code org.crac} or {@code jdk.crac}) is available, this 
+ * is registered with its global context. Otherwise the JVM's checkpoint 
+ * mechanism or a test may call {@link #beforeCheckpoint()} and 
+ * {@link #afterRestore()} directly, on the same thread.
+ *
+ * @author John McCrae
+ */
+public final class Checkpoint {
+
+    private static final boolean verbose = Boolean.parseBoolean(System.getProperty("eu.monnetproject.framework.services.verbose", "false"));
+    private static final Object gate = new Object();
+    private static volatile boolean pending;
+    // The thread that is checkpointing, guarded by gate
+    private static Thread checkpointer;
+    // The number of threads resolving
+    private static final AtomicInteger active = new AtomicInteger();
+    // How deeply the current thread is nested in resolutions
+    private static final ThreadLocal<int[]> depth = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+    // The instances notified before the checkpoint, in order
+    private static final List<Checkpointable> notified = new ArrayList<Checkpointable>();
+    // The CRaC resource, which the CRaC context holds weakly
+    private static final Object resource = registerWithCRaC();
+
+    private Checkpoint() {
+    }
+
+    private static Object registerWithCRaC() {
+        for (String pkg : new String[]{"org.crac", "jdk.crac"}) {
+            try {
+                final Class<?> core = Class.forName(pkg + ".Core");
+                final Class<?> resourceClass = Class.forName(pkg + ".Resource");
+                final Object context = core.getMethod("getGlobalContext").invoke(null);
+                final Object crac = Proxy.newProxyInstance(Checkpoint.class.getClassLoader(), new Class<?>[]{resourceClass}, new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getName().equals("beforeCheckpoint")) {
+                            beforeCheckpoint();
+                            return null;
+                        } else if (method.getName().equals("afterRestore")) {
+                            afterRestore();
+                            return null;
+                        } else if (method.getName().equals("equals")) {
+                            return proxy == args[0];
+                        } else if (method.getName().equals("hashCode")) {
+                            return System.identityHashCode(proxy);
+                        } else {
+                            return "Checkpoint(eu.monnetproject.framework.services)";
+                        }
+                    }
+                });
+                context.getClass().getMethod("register", resourceClass).invoke(context, crac);
+                if (verbose) {
+                    System.err.println("Registered with " + pkg);
+                }
+                return crac;
+            } catch (ClassNotFoundException x) {
+                // Not available
+            } catch (Exception x) {
+                if (verbose) {
+                    x.printStackTrace();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Start a resolution, waiting if the JVM is being checkpointed. Must be
+     * followed by {@link #exit()}. A resolution started within another on the
+     * same thread does not wait
+     */
+    public static void enter() {
+        final int[] d = depth.get();
+        if (d[0]++ > 0) {
+            return;
+        }
+        while (true) {
+            if (!pending) {
+                active.incrementAndGet();
+                // The checkpoint sets the flag before it reads the count
+                if (!pending) {
+                    return;
+                }
+                leave();
+            }
+            boolean interrupted = false;
+            synchronized (gate) {
+                while (pending) {
+                    try {
+                        gate.wait();
+                    } catch (InterruptedException x) {
+                        interrupted = true;
+                    }
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * End a resolution
+     */
+    public static void exit() {
+        if (--depth.get()[0] == 0) {
+            leave();
+        }
+    }
+
+    private static void leave() {
+        if (active.decrementAndGet() == 0 && pending) {
+            synchronized (gate) {
+                gate.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Wait for resolutions in progress, block new resolutions, close the jars
+     * descriptors were read from and tell checkpointable singletons and 
+     * pooled instances. If any of these fails the instances already told are
+     * restored and resolution resumes.
+     *
+     * @throws Exception The exception thrown by an instance
+     */
+    public static void beforeCheckpoint() throws Exception {
+        synchronized (gate) {
+            while (pending) {
+                gate.wait();
+            }
+            pending = true;
+            checkpointer = Thread.currentThread();
+            try {
+                while (active.get() > 0) {
+                    gate.wait();
+                }
+            } catch (InterruptedException x) {
+                pending = false;
+                checkpointer = null;
+                gate.notifyAll();
+                throw x;
+            }
+        }
+        DescriptorParser.closeJars();
+        final List<Object> instances = SingletonStore.instances();
+        instances.addAll(InstancePool.idleInstances());
+        try {
+            for (Object instance : instances) {
+                if (instance instanceof Checkpointable) {
+                    ((Checkpointable) instance).beforeCheckpoint();
+                    notified.add((Checkpointable) instance);
+                }
+            }
+        } catch (Exception x) {
+            afterRestore();
+            throw x;
+        }
+    }
+
+    /**
+     * Tell checkpointable instances, in the reverse order, restart idle times
+     * and resume resolution. The first exception thrown by an instance is 
+     * thrown after all instances have been told.
+     *
+     * @throws Exception The exception thrown by an instance
+     */
+    public static void afterRestore() throws Exception {
+        Exception failure = null;
+        try {
+            SingletonStore.restored();
+            InstancePool.restored();
+            for (int i = notified.size() - 1; i >= 0; i--) {
+                try {
+                    notified.get(i).afterRestore();
+                } catch (Exception x) {
+                    if (failure == null) {
+                        failure = x;
+                    }
+                }
+            }
+        } finally {
+            notified.clear();
+            synchronized (gate) {
+                if (checkpointer == Thread.currentThread()) {
+                    checkpointer = null;
+                    pending = false;
+                    gate.notifyAll();
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,412 @@
+/**
+ * ********************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.framework.services.impl;
+
+import eu.monnetproject.framework.services.ComponentFactory;
+import eu.monnetproject.framework.services.ServiceMetrics;
+import java.io.IOException;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.*;
+import org.osgi.framework.Bundle;
+
+/**
+ * Caches the classes loaded by the resolvers per class loader (or bundle). The
+ * loaders are held weakly, and so are the classes, which are anyway reachable
+ * from their loader, so the cache does not prevent class loaders from being
+ * collected. The cache of a bundle is discarded when the bundle is updated.
+ *
+ * If the system property
+ * {@code eu.monnetproject.framework.services.preload.threads} is set to a
+ * positive number, {@link #preload} loads and initializes the classes of a
+ * descriptor concurrently on a pool of that many threads, provided the class
+ * loader is parallel capable. Each name is preloaded once per loader, and a
+ * preload started on the pool, by a class being initialized, runs inline.
+ *
+ * @author John McCrae
+ */
+public final class ClassCache {
+
+    public static final String PRELOAD_THREADS_PROPERTY = "eu.monnetproject.framework.services.preload.threads";
+    private static volatile int preloadThreads = Integer.parseInt(System.getProperty(PRELOAD_THREADS_PROPERTY, "0"));
+    private static final boolean verbose = Boolean.parseBoolean(System.getProperty("eu.monnetproject.framework.services.verbose", "false"));
+    // Keyed by the loader or bundle, held weakly and compared by identity
+    private static final ConcurrentMap<LoaderKey, LoaderCache> caches = new ConcurrentHashMap<LoaderKey, LoaderCache>();
+    private static final ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
+    private static ExecutorService pool;
+    // ClassLoader.isRegisteredAsParallelCapable on Java 9 or later
+    private static final Method isRegisteredAsParallelCapable = method(ClassLoader.class, "isRegisteredAsParallelCapable");
+    // ClassLoader.parallelLockMap on Java 8, which is not null if the loader is parallel capable
+    private static final Field parallelLockMap = isRegisteredAsParallelCapable == null ? field(ClassLoader.class, "parallelLockMap") : null;
+
+    private ClassCache() {
+    }
+
+    private static final class LoaderCache {
+
+        final long stamp;
+        final ConcurrentMap<String, WeakReference<Class<?>>> classes = new ConcurrentHashMap<String, WeakReference<Class<?>>>();
+        // The names already given to preload, which are not preloaded again
+        final Set<String> preloaded = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        // The generated factories visible to the loader, read when first needed
+        volatile Map<String, DescriptorParser.Declaration> factories;
+
+        LoaderCache(long stamp) {
+            this.stamp = stamp;
+        }
+    }
+
+    private static final class LoaderKey extends WeakReference<Object> {
+
+        final int hash;
+
+        LoaderKey(Object referent, ReferenceQueue<Object> queue) {
+            super(referent, queue);
+            this.hash = System.identityHashCode(referent);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) {
+                return true;
+            }
+            final Object referent = get();
+            return obj instanceof LoaderKey && referent != null && referent == ((LoaderKey) obj).get();
+        }
+    }
+
+    private static LoaderCache cacheFor(Object key, long stamp) {
+        final LoaderKey lookup = new LoaderKey(key, null);
+        LoaderCache cache = caches.get(lookup);
+        while (cache == null || cache.stamp != stamp) {
+            final LoaderCache newCache = new LoaderCache(stamp);
+            if (cache == null) {
+                expunge();
+                cache = caches.putIfAbsent(new LoaderKey(key, collected), newCache);
+                if (cache == null) {
+                    return newCache;
+                }
+            } else if (caches.replace(lookup, cache, newCache)) {
+                return newCache;
+            } else {
+                cache = caches.get(lookup);
+            }
+        }
+        return cache;
+    }
+
+    private static void expunge() {
+        Object ref;
+        while ((ref = collected.poll()) != null) {
+            caches.remove(ref);
+        }
+    }
+
+    /**
+     * The generated factories listed in the {@link ComponentFactory#INDEX}
+     * resources visible to a class loader
+     *
+     * @param loader The class loader
+     * @return The declarations keyed by the name of the implementation
+     */
+    static Map<String, DescriptorParser.Declaration> factories(ClassLoader loader) {
+        final LoaderCache cache = cacheFor(loader, 0);
+        Map<String, DescriptorParser.Declaration> factories = cache.factories;
+        if (factories == null) {
+            factories = new HashMap<String, DescriptorParser.Declaration>();
+            try {
+                final Enumeration<URL> indices = loader.getResources(ComponentFactory.INDEX);
+                while (indices.hasMoreElements()) {
+                    for (DescriptorParser.Declaration declaration : DescriptorParser.parse(indices.nextElement())) {
+                        factories.put(declaration.getClassName(), declaration);
+                    }
+                }
+            } catch (IOException x) {
+                if (verbose) {
+                    x.printStackTrace();
+                }
+            }
+            cache.factories = factories;
+        }
+        return factories;
+    }
+
+    /**
+     * Load a class through a class loader
+     *
+     * @param loader The class loader
+     * @param className The name of the class
+     * @return The class
+     * @throws ClassNotFoundException If the class could not be loaded
+     */
+    public static Class<?> loadClass(ClassLoader loader, String className) throws ClassNotFoundException {
+        return load(cacheFor(loader, 0), loader, null, className);
+    }
+
+    /**
+     * Load a class from a bundle
+     *
+     * @param bundle The bundle
+     * @param className The name of the class
+     * @return The class
+     * @throws ClassNotFoundException If the class could not be loaded
+     */
+    public static Class<?> loadClass(Bundle bundle, String className) throws ClassNotFoundException {
+        return load(cacheFor(bundle, bundle.getLastModified()), null, bundle, className);
+    }
+
+    private static Class<?> load(LoaderCache cache, ClassLoader loader, Bundle bundle, String className) throws ClassNotFoundException {
+        final ServiceMetrics metrics = Metrics.get();
+        final WeakReference<Class<?>> ref = cache.classes.get(className);
+        final Class<?> cached = ref == null ? null : ref.get();
+        if (cached != null) {
+            if (metrics != null) {
+                metrics.cacheHit("class", className);
+            }
+            return cached;
+        }
+        final long start = metrics == null ? 0 : System.nanoTime();
+        final Class<?> c = bundle == null ? loader.loadClass(className) : bundle.loadClass(className);
+        if (metrics != null) {
+            metrics.cacheMiss("class", className);
+            metrics.classLoad(className, System.nanoTime() - start);
+        }
+        if (ClassList.isRecording()) {
+            ClassList.record(c);
+        }
+        cache.classes.put(className, new WeakReference<Class<?>>(c));
+        return c;
+    }
+
+    /**
+     * Is parallel preloading enabled
+     */
+    public static boolean isPreloading() {
+        return preloadThreads > 0;
+    }
+
+    /**
+     * Load and initialize classes concurrently, returning when all have been
+     * loaded. Failures are ignored here as they will be reported when the
+     * class is loaded again during wiring.
+     *
+     * @param loader The class loader
+     * @param classNames The classes to load
+     */
+    public static void preload(final ClassLoader loader, Collection<String> classNames) {
+        if (preloadThreads <= 0 || classNames.size() < 2 || !isParallelCapable(loader)) {
+            return;
+        }
+        final LoaderCache cache = cacheFor(loader, 0);
+        final List<String> unseen = unseen(cache, classNames);
+        if (unseen.size() < 2) {
+            return;
+        }
+        final ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (final String className : unseen) {
+            tasks.add(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    return initialize(load(cache, loader, null, className));
+                }
+            });
+        }
+        runAll(tasks);
+    }
+
+    /**
+     * Load and initialize classes from a bundle concurrently, returning when
+     * all have been loaded. Failures are ignored here as they will be reported
+     * when the class is loaded again during wiring.
+     *
+     * @param bundle The bundle
+     * @param classNames The classes to load
+     */
+    public static void preload(final Bundle bundle, Collection<String> classNames) {
+        if (preloadThreads <= 0 || classNames.size() < 2) {
+            return;
+        }
+        final LoaderCache cache = cacheFor(bundle, bundle.getLastModified());
+        final List<String> unseen = unseen(cache, classNames);
+        if (unseen.size() < 2) {
+            return;
+        }
+        final Iterator<String> iterator = unseen.iterator();
+        // The bundle's class loader is only known once a class has been loaded
+        ClassLoader loader = null;
+        while (loader == null && iterator.hasNext()) {
+            try {
+                loader = load(cache, null, bundle, iterator.next()).getClassLoader();
+            } catch (Throwable t) {
+            }
+        }
+        if (loader == null || !isParallelCapable(loader)) {
+            return;
+        }
+        final ArrayList<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        while (iterator.hasNext()) {
+            final String className = iterator.next();
+            tasks.add(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    return initialize(load(cache, null, bundle, className));
+                }
+            });
+        }
+        runAll(tasks);
+    }
+
+    private static Object initialize(Class<?> c) throws ClassNotFoundException {
+        return Class.forName(c.getName(), true, c.getClassLoader());
+    }
+
+    private static Method method(Class<?> c, String name) {
+        try {
+            return c.getMethod(name);
+        } catch (NoSuchMethodException x) {
+            return null;
+        }
+    }
+
+    private static Field field(Class<?> c, String name) {
+        try {
+            final Field f = c.getDeclaredField(name);
+            f.setAccessible(true);
+            return f;
+        } catch (Exception x) {
+            return null;
+        }
+    }
+
+    static boolean isParallelCapable(ClassLoader loader) {
+        if (loader == null) {
+            return false;
+        }
+        try {
+            if (isRegisteredAsParallelCapable != null) {
+                return (Boolean) isRegisteredAsParallelCapable.invoke(loader);
+            } else if (parallelLockMap != null) {
+                return parallelLockMap.get(loader) != null;
+            }
+        } catch (Exception x) {
+            if (verbose) {
+                System.err.println("Could not check if " + loader + " is parallel capable: " + x.getMessage());
+            }
+        }
+        return false;
+    }
+
+    // The names not given to preload before, which are now marked as given
+    private static List<String> unseen(LoaderCache cache, Collection<String> classNames) {
+        final ArrayList<String> unseen = new ArrayList<String>(classNames.size());
+        for (String className : classNames) {
+            if (cache.preloaded.add(className)) {
+                unseen.add(className);
+            }
+        }
+        return unseen;
+    }
+
+    private static void runAll(List<Callable<Object>> tasks) {
+        if (Thread.currentThread() instanceof PreloadThread) {
+            // Initializing a class may preload again, which must not wait for
+            // the pool it is running on
+            for (Callable<Object> task : tasks) {
+                try {
+                    task.call();
+                } catch (Throwable t) {
+                    if (verbose) {
+                        System.err.println("Could not preload class: " + t);
+                    }
+                }
+            }
+            return;
+        }
+        try {
+            for (Future<Object> future : getPool().invokeAll(tasks)) {
+                try {
+                    future.get();
+                } catch (ExecutionException x) {
+                    if (verbose) {
+                        System.err.println("Could not preload class: " + x.getCause());
+                    }
+                }
+            }
+        } catch (InterruptedException x) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Set the number of preloading threads, for testing. This must be called 
+     * before the first preload
+     */
+    static void setPreloadThreads(int threads) {
+        preloadThreads = threads;
+    }
+
+    private static final class PreloadThread extends Thread {
+
+        PreloadThread(Runnable target, String name) {
+            super(target, name);
+        }
+    }
+
+    private static synchronized ExecutorService getPool() {
+        if (pool == null) {
+            pool = Executors.newFixedThreadPool(preloadThreads, new ThreadFactory() {
+                private int n = 0;
+
+                @Override
+                public synchronized Thread newThread(Runnable r) {
+                    final Thread thread = new PreloadThread(r, "mfs-preload-" + (++n));
+                    thread.setDaemon(true);
+                    // Not the loader of whichever thread created the pool
+                    thread.setContextClassLoader(null);
+                    return thread;
+                }
+            });
+        }
+        return pool;
+    }
+
+    /**
+     * Discard all cached classes
+     */
+    public static void clear() {
+        caches.clear();
+    }
+}
@@ -0,0 +1,241 @@
+/**
+ * ********************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.framework.services.impl;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Records the classes loaded while resolving and wiring services as a class
+ * list for class data sharing (AppCDS). If the system property
+ * {@code eu.monnetproject.framework.services.classList} names a file, every
+ * class loaded by the resolvers from the application class path, together
+ * with its supertypes, is added to the list, which is merged with the file's
+ * existing contents when the JVM exits. Several training runs may therefore 
+ * write to the same list.
+ * <p>
+ * Only the classes that MFS itself loads are recorded, not the classes that
+ * the services load while they are constructed or used. For a complete list
+ * the training run should instead be started with the JVM option 
+ * {@code -XX:DumpLoadedClassList=<list>}, which records every class loaded 
+ * from the class path; the property is then ignored, as the JVM writes the
+ * list itself. Lists written by the JVM can be merged into a list recorded 
+ * by MFS and read by {@link #main}.
+ * <p>
+ * The list can be passed to {@code -XX:SharedClassListFile} to dump a static 
+ * archive, or the {@link #main} method of this class can be used to produce a
+ * dynamic archive containing the listed classes:
+ * <pre>
+ * java -cp app.jar:services.jar eu.monnetproject.framework.services.impl.ClassList archive classes.lst app.jsa
+ * </pre>
+ * Classes loaded by OSGi bundles are not on the application class path and 
+ * are not recorded.
+ *
+ * @author John McCrae
+ */
+public final class ClassList {
+
+    public static final String CLASS_LIST_PROPERTY = "eu.monnetproject.framework.services.classList";
+    private static final String file = jvmDumpsClassList() ? null : System.getProperty(CLASS_LIST_PROPERTY);
+    private static final Set<String> recorded = new LinkedHashSet<String>();
+    private static boolean hooked = false;
+
+    private ClassList() {
+    }
+
+    /**
+     * Was the JVM started with {@code -XX:DumpLoadedClassList}
+     */
+    private static boolean jvmDumpsClassList() {
+        try {
+            for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+                if (arg.startsWith("-XX:DumpLoadedClassList=")) {
+                    return true;
+                }
+            }
+        } catch (RuntimeException x) {
+            // Management is not available
+        }
+        return false;
+    }
+
+    /**
+     * Is this a training run recording a class list
+     */
+    public static boolean isRecording() {
+        return file != null;
+    }
+
+    /**
+     * Record that a class was loaded. Supertypes are recorded before the
+     * class so that the list can be loaded in order.
+     *
+     * @param c The class
+     */
+    public static void record(Class<?> c) {
+        synchronized (recorded) {
+            add(c);
+            if (file != null && !hooked) {
+                hooked = true;
+                Runtime.getRuntime().addShutdownHook(new Thread("mfs-class-list") {
+                    @Override
+                    public void run() {
+                        try {
+                            write(new File(file));
+                        } catch (IOException x) {
+                            System.err.println("Could not write class list " + file + ": " + x.getMessage());
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    private static void add(Class<?> c) {
+        if (c == null || c.getClassLoader() != ClassLoader.getSystemClassLoader()) {
+            // Classes of the JDK are in the default archive and classes of 
+            // other loaders cannot be archived from a class list
+            return;
+        }
+        final String name = c.getName().replace('.', '/');
+        if (recorded.contains(name)) {
+            return;
+        }
+        add(c.getSuperclass());
+        for (Class<?> i : c.getInterfaces()) {
+            add(i);
+        }
+        recorded.add(name);
+    }
+
+    /**
+     * Merge the recorded classes into a class list
+     *
+     * @param list The file, which need not exist
+     * @throws IOException If the file could not be read or written
+     */
+    static void write(File list) throws IOException {
+        final Set<String> names = new LinkedHashSet<String>(read(list));
+        synchronized (recorded) {
+            names.addAll(recorded);
+        }
+        final PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(list), "UTF-8"));
+        try {
+            for (String name : names) {
+                out.println(name);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Read a class list
+     *
+     * @param list The file
+     * @return The internal names of the classes, or an empty list if the file
+     * does not exist
+     */
+    static List<String> read(File list) throws IOException {
+        final ArrayList<String> names = new ArrayList<String>();
+        if (!list.exists()) {
+            return names;
+        }
+        final BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(list), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                // Lines added by the JVM's own class lists, such as 
+                // @lambda-proxy, are not classes
+                if (line.length() > 0 && !line.startsWith("#") && !line.startsWith("@")) {
+                    final int space = line.indexOf(' ');
+                    names.add(space < 0 ? line : line.substring(0, space));
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return names;
+    }
+
+    /**
+     * Create a dynamic archive from a class list, or load the classes of a
+     * class list.
+     * <ul>
+     * <li>{@code archive <list> <archive> [java options]}: Start a JVM with 
+     * the same class path that loads the classes in the list and writes them
+     * to the archive on exit. The archive is then used with 
+     * {@code -XX:SharedArchiveFile=<archive>}</li>
+     * <li>{@code load <list>}: Load the classes in the list</li>
+     * </ul>
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length >= 3 && args[0].equals("archive")) {
+            final List<String> command = new ArrayList<String>();
+            command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+            command.add("-XX:ArchiveClassesAtExit=" + args[2]);
+            command.addAll(Arrays.asList(args).subList(3, args.length));
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(ClassList.class.getName());
+            command.add("load");
+            command.add(args[1]);
+            final Process process = new ProcessBuilder(command).inheritIO().start();
+            System.exit(process.waitFor());
+        } else if (args.length == 2 && args[0].equals("load")) {
+            int missing = 0;
+            for (String name : read(new File(args[1]))) {
+                try {
+                    Class.forName(name.replace('/', '.'), false, ClassList.class.getClassLoader());
+                } catch (ClassNotFoundException x) {
+                    missing++;
+                } catch (LinkageError x) {
+                    missing++;
+                }
+            }
+            if (missing > 0) {
+                System.err.println(missing + " classes in " + args[1] + " could not be loaded");
+            }
+        } else {
+            System.err.println("Usage: ClassList archive <list> <archive> [java options] | load <list>");
+            System.exit(1);
+        }
+    }
+}
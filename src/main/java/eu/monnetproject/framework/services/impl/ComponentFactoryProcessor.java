@@ -0,0 +1,486 @@
+/**
+ * ********************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.framework.services.impl;
+
+import eu.monnetproject.framework.services.ComponentFactory;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.annotation.processing.SupportedOptions;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Generates a {@link ComponentFactory} for each public class compiled with 
+ * this processor that is listed in a {@code META-INF/components} or 
+ * {@code META-INF/services} descriptor of the project, so that the component 
+ * can be created without reflection. The constructor is chosen in the same 
+ * way as by {@link InjectableClass}. Classes that cannot be created by a 
+ * factory, e.g., because a parameter is primitive, are left to reflection.
+ * The factories are listed in {@link ComponentFactory#INDEX}, together with 
+ * whether their classes are singletons, scoped or pooled, so that these are
+ * known without looking for classes or reading annotations at run time. 
+ * Entries of an index left by an earlier compilation are kept for classes 
+ * that are not compiled again.
+ * <p>
+ * At the end of the compilation the processor also writes the reachability 
+ * metadata for GraalVM's native-image to 
+ * {@code META-INF/native-image/<dir>/reflect-config.json} and 
+ * {@code resource-config.json}, registering the descriptors, the services 
+ * and implementations they declare, the generated factories and, for 
+ * implementations without a factory, their public constructors. The 
+ * directory is given by the option 
+ * {@code -Aeu.monnetproject.framework.services.nativeImage=<dir>} 
+ * ({@code components} by default), and no metadata is written if it is 
+ * {@code false}.
+ *
+ * @author John McCrae
+ */
+@SupportedAnnotationTypes("*")
+@SupportedOptions(ComponentFactoryProcessor.NATIVE_IMAGE)
+public class ComponentFactoryProcessor extends AbstractProcessor {
+
+    public static final String NATIVE_IMAGE = "eu.monnetproject.framework.services.nativeImage";
+
+    private static final String INJECT = "eu.monnetproject.framework.services.Inject";
+    private static final String NON_EMPTY = "eu.monnetproject.framework.services.NonEmpty";
+    private static final String SINGLETON = "eu.monnetproject.framework.services.Singleton";
+    private static final String SCOPED = "eu.monnetproject.framework.services.Scoped";
+    private static final String POOLED = "eu.monnetproject.framework.services.Pooled";
+    // The defaults of StdResolver, which is not loaded as it depends on OSGi
+    private static final String[] PATH_PREFIXES = {"META-INF/components/", "META-INF/services/"};
+    // The implementations declared for each service, read once per compilation
+    private final Map<String, Set<String>> declared = new HashMap<String, Set<String>>();
+    // The factory generated for each implementation
+    private final Map<String, String> generated = new TreeMap<String, String>();
+    // The line of the factory index of each implementation
+    private final Map<String, String> index = new TreeMap<String, String>();
+    // The classes compiled now
+    private final Set<String> compiled = new HashSet<String>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (Element element : roundEnv.getRootElements()) {
+            if (element.getKind() == ElementKind.CLASS) {
+                visit((TypeElement) element);
+            }
+        }
+        if (roundEnv.processingOver()) {
+            writeIndex();
+            final String dir = processingEnv.getOptions().get(NATIVE_IMAGE);
+            if (!"false".equals(dir)) {
+                writeNativeImageConfig("META-INF/native-image/" + (dir == null ? "components" : dir) + "/");
+            }
+        }
+        // Annotations are not claimed so that other processors may see them
+        return false;
+    }
+
+    private void visit(TypeElement type) {
+        final Set<Modifier> modifiers = type.getModifiers();
+        final String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+        compiled.add(binaryName);
+        if (modifiers.contains(Modifier.PUBLIC) && !modifiers.contains(Modifier.ABSTRACT)
+                && (type.getNestingKind() == NestingKind.TOP_LEVEL || modifiers.contains(Modifier.STATIC))) {
+            if (isDeclared(type.asType(), binaryName, new HashSet<String>())) {
+                generate(type, binaryName);
+            }
+        }
+        for (Element enclosed : type.getEnclosedElements()) {
+            if (enclosed.getKind() == ElementKind.CLASS) {
+                visit((TypeElement) enclosed);
+            }
+        }
+    }
+
+    /**
+     * Is the class listed in the descriptor of any of its supertypes
+     */
+    private boolean isDeclared(TypeMirror type, String binaryName, Set<String> visited) {
+        for (TypeMirror supertype : processingEnv.getTypeUtils().directSupertypes(type)) {
+            final Element element = processingEnv.getTypeUtils().asElement(supertype);
+            if (!(element instanceof TypeElement)) {
+                continue;
+            }
+            final String serviceName = processingEnv.getElementUtils().getBinaryName((TypeElement) element).toString();
+            if (visited.add(serviceName)
+                    && (declarations(serviceName).contains(binaryName) || isDeclared(supertype, binaryName, visited))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Set<String> declarations(String serviceName) {
+        Set<String> classNames = declared.get(serviceName);
+        if (classNames == null) {
+            classNames = new HashSet<String>();
+            for (String prefix : PATH_PREFIXES) {
+                read(prefix + serviceName, classNames);
+            }
+            declared.put(serviceName, classNames);
+        }
+        return classNames;
+    }
+
+    private void read(String path, Set<String> classNames) {
+        final Filer filer = processingEnv.getFiler();
+        for (StandardLocation location : new StandardLocation[]{StandardLocation.CLASS_OUTPUT, StandardLocation.SOURCE_PATH}) {
+            try {
+                final FileObject resource = filer.getResource(location, "", path);
+                final InputStream in = resource.openInputStream();
+                try {
+                    for (DescriptorParser.Declaration declaration : DescriptorParser.parse(in)) {
+                        classNames.add(declaration.getClassName());
+                    }
+                } finally {
+                    in.close();
+                }
+                return;
+            } catch (IOException x) {
+                // Not in this location
+            } catch (IllegalArgumentException x) {
+                // The location is not known to the compiler
+            }
+        }
+    }
+
+    private ExecutableElement injectableConstructor(TypeElement type) {
+        final List<ExecutableElement> constructors = new ArrayList<ExecutableElement>();
+        ExecutableElement injectable = null;
+        for (Element enclosed : type.getEnclosedElements()) {
+            if (enclosed.getKind() == ElementKind.CONSTRUCTOR && enclosed.getModifiers().contains(Modifier.PUBLIC)) {
+                constructors.add((ExecutableElement) enclosed);
+                if (hasAnnotation(enclosed, INJECT)) {
+                    if (injectable != null) {
+                        return null;
+                    }
+                    injectable = (ExecutableElement) enclosed;
+                }
+            }
+        }
+        if (injectable == null && constructors.size() == 1) {
+            injectable = constructors.get(0);
+        }
+        return injectable;
+    }
+
+    private static boolean hasAnnotation(Element element, String annotation) {
+        return annotation(element, annotation) != null;
+    }
+
+    private static AnnotationMirror annotation(Element element, String annotation) {
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            if (((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(annotation)) {
+                return mirror;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The line of the factory index of a class
+     */
+    private String indexLine(TypeElement type, String binaryName, String factoryName) {
+        final StringBuilder line = new StringBuilder(binaryName).append(";factory=").append(factoryName);
+        if (hasAnnotation(type, SINGLETON)) {
+            line.append(";singleton");
+        }
+        final AnnotationMirror scoped = annotation(type, SCOPED);
+        if (scoped != null) {
+            for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> e
+                    : processingEnv.getElementUtils().getElementValuesWithDefaults(scoped).entrySet()) {
+                if (e.getKey().getSimpleName().contentEquals("value")) {
+                    line.append(";scope=").append(e.getValue().getValue());
+                }
+            }
+        }
+        if (hasAnnotation(type, POOLED)) {
+            line.append(";pooled");
+        }
+        return line.toString();
+    }
+
+    private void generate(TypeElement type, String binaryName) {
+        final ExecutableElement constructor = injectableConstructor(type);
+        if (constructor == null) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+                    binaryName + " does not have a marked or single constructor", type);
+            return;
+        }
+        final List<? extends VariableElement> params = constructor.getParameters();
+        final String[] rawTypes = new String[params.size()];
+        final String[] elementTypes = new String[params.size()];
+        final boolean[] nonEmpty = new boolean[params.size()];
+        for (int i = 0; i < rawTypes.length; i++) {
+            final TypeMirror paramType = params.get(i).asType();
+            if (paramType.getKind() != TypeKind.DECLARED) {
+                // Primitives, arrays and type variables are left to reflection
+                return;
+            }
+            rawTypes[i] = processingEnv.getTypeUtils().erasure(paramType).toString();
+            final List<? extends TypeMirror> typeArgs = ((DeclaredType) paramType).getTypeArguments();
+            if (typeArgs.size() == 1 && typeArgs.get(0).getKind() == TypeKind.DECLARED) {
+                elementTypes[i] = processingEnv.getTypeUtils().erasure(typeArgs.get(0)).toString();
+            }
+            nonEmpty[i] = hasAnnotation(params.get(i), NON_EMPTY);
+        }
+        final String packageName = processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+        final String simpleName = (packageName.length() == 0 ? binaryName : binaryName.substring(packageName.length() + 1)).replace('$', '_') + ComponentFactory.SUFFIX;
+        final String factoryName = packageName.length() == 0 ? simpleName : packageName + "." + simpleName;
+        if (generated.put(binaryName, factoryName) != null) {
+            return;
+        }
+        index.put(binaryName, indexLine(type, binaryName, factoryName));
+        final String implName = type.getQualifiedName().toString();
+        try {
+            final JavaFileObject file = processingEnv.getFiler().createSourceFile(factoryName, type);
+            final PrintWriter out = new PrintWriter(file.openWriter());
+            try {
+                if (packageName.length() > 0) {
+                    out.println("package " + packageName + ";");
+                    out.println();
+                }
+                out.println("@SuppressWarnings(\"unchecked\")");
+                out.println("public final class " + simpleName + " implements " + ComponentFactory.class.getName() + "<" + implName + "> {");
+                out.println();
+                out.println("    @Override");
+                out.println("    public Class<?>[] dependencyTypes() {");
+                out.print("        return new Class<?>[] {");
+                for (int i = 0; i < rawTypes.length; i++) {
+                    out.print((i > 0 ? ", " : " ") + rawTypes[i] + ".class");
+                }
+                out.println(" };");
+                out.println("    }");
+                out.println();
+                out.println("    @Override");
+                out.println("    public Class<?>[] elementTypes() {");
+                out.print("        return new Class<?>[] {");
+                for (int i = 0; i < elementTypes.length; i++) {
+                    out.print((i > 0 ? ", " : " ") + (elementTypes[i] == null ? "null" : elementTypes[i] + ".class"));
+                }
+                out.println(" };");
+                out.println("    }");
+                out.println();
+                out.println("    @Override");
+                out.println("    public boolean[] nonEmpty() {");
+                out.print("        return new boolean[] {");
+                for (int i = 0; i < nonEmpty.length; i++) {
+                    out.print((i > 0 ? ", " : " ") + nonEmpty[i]);
+                }
+                out.println(" };");
+                out.println("    }");
+                out.println();
+                out.println("    @Override");
+                out.println("    public " + implName + " newInstance(Object[] args) throws Exception {");
+                out.print("        return new " + implName + "(");
+                for (int i = 0; i < rawTypes.length; i++) {
+                    out.print((i > 0 ? ", " : "") + "(" + rawTypes[i] + ") args[" + i + "]");
+                }
+                out.println(");");
+                out.println("    }");
+                out.println("}");
+            } finally {
+                out.close();
+            }
+        } catch (IOException x) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Could not generate " + factoryName + ": " + x.getMessage(), type);
+        }
+    }
+
+    /**
+     * Write the factory index, keeping the entries of an earlier index for 
+     * classes that were not compiled now and whose factories still exist
+     */
+    private void writeIndex() {
+        final Filer filer = processingEnv.getFiler();
+        final Map<String, String> lines = new TreeMap<String, String>();
+        try {
+            final FileObject old = filer.getResource(StandardLocation.CLASS_OUTPUT, "", ComponentFactory.INDEX);
+            final InputStream in = old.openInputStream();
+            try {
+                for (DescriptorParser.Declaration declaration : DescriptorParser.parse(in)) {
+                    final String factoryName = declaration.getProperties().get("factory");
+                    if (factoryName != null && !compiled.contains(declaration.getClassName()) && processingEnv.getElementUtils().getTypeElement(factoryName) != null) {
+                        final StringBuilder line = new StringBuilder(declaration.getClassName());
+                        for (Map.Entry<String, String> e : new TreeMap<String, String>(declaration.getProperties()).entrySet()) {
+                            line.append(';').append(e.getKey()).append(e.getValue().length() == 0 ? "" : "=" + e.getValue());
+                        }
+                        lines.put(declaration.getClassName(), line.toString());
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException x) {
+            // No earlier index
+        } catch (IllegalArgumentException x) {
+            // The location is not known to the compiler
+        }
+        lines.putAll(index);
+        if (lines.isEmpty()) {
+            return;
+        }
+        try {
+            final PrintWriter out = new PrintWriter(filer.createResource(StandardLocation.CLASS_OUTPUT, "", ComponentFactory.INDEX).openWriter());
+            try {
+                for (String line : lines.values()) {
+                    out.println(line);
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException x) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Could not write " + ComponentFactory.INDEX + ": " + x.getMessage());
+        }
+    }
+
+    /**
+     * Write the reflection and resource configuration for the descriptors in
+     * the class output and those found while generating factories
+     */
+    private void writeNativeImageConfig(String dir) {
+        final Filer filer = processingEnv.getFiler();
+        try {
+            final FileObject reflectConfig = filer.createResource(StandardLocation.CLASS_OUTPUT, "", dir + "reflect-config.json");
+            // Descriptors of services that no compiled class implements can
+            // only be found by listing the output directory
+            final URI uri = reflectConfig.toUri();
+            final String relative = (dir + "reflect-config.json").replace('/', File.separatorChar);
+            // Without an output directory javac does not create the resource
+            // under its relative path
+            if ("file".equals(uri.getScheme()) && new File(uri).getPath().endsWith(File.separator + relative)) {
+                final String path = new File(uri).getPath();
+                final File root = new File(path.substring(0, path.length() - relative.length()));
+                for (String prefix : PATH_PREFIXES) {
+                    final File[] files = new File(root, prefix).listFiles();
+                    if (files == null) {
+                        continue;
+                    }
+                    for (File file : files) {
+                        if (file.isFile() && !declared.containsKey(file.getName())) {
+                            final Set<String> classNames = new HashSet<String>();
+                            final InputStream in = new FileInputStream(file);
+                            try {
+                                for (DescriptorParser.Declaration declaration : DescriptorParser.parse(in)) {
+                                    classNames.add(declaration.getClassName());
+                                }
+                            } finally {
+                                in.close();
+                            }
+                            declared.put(file.getName(), classNames);
+                        }
+                    }
+                }
+            }
+            final Map<String, String> entries = new TreeMap<String, String>();
+            for (Map.Entry<String, Set<String>> e : declared.entrySet()) {
+                if (e.getValue().isEmpty()) {
+                    continue;
+                }
+                entries.put(e.getKey(), "");
+                for (String className : e.getValue()) {
+                    final String factoryName = generated.get(className);
+                    if (factoryName == null) {
+                        entries.put(className, ", \"allPublicConstructors\": true");
+                    } else {
+                        entries.put(className, "");
+                        entries.put(factoryName, ", \"methods\": [{\"name\": \"<init>\", \"parameterTypes\": []}]");
+                    }
+                }
+            }
+            if (entries.isEmpty()) {
+                return;
+            }
+            PrintWriter out = new PrintWriter(reflectConfig.openWriter());
+            try {
+                out.println("[");
+                int i = 0;
+                for (Map.Entry<String, String> e : entries.entrySet()) {
+                    out.println("  {\"name\": \"" + e.getKey() + "\"" + e.getValue() + "}" + (++i < entries.size() ? "," : ""));
+                }
+                out.println("]");
+            } finally {
+                out.close();
+            }
+            out = new PrintWriter(filer.createResource(StandardLocation.CLASS_OUTPUT, "", dir + "resource-config.json").openWriter());
+            try {
+                out.println("{");
+                out.println("  \"resources\": {");
+                out.println("    \"includes\": [");
+                for (String prefix : PATH_PREFIXES) {
+                    out.println("      {\"pattern\": \"\\\\Q" + prefix + "\\\\E.*\"},");
+                }
+                out.println("      {\"pattern\": \"\\\\Q" + ComponentFactory.INDEX + "\\\\E\"}");
+                out.println("    ]");
+                out.println("  }");
+                out.println("}");
+            } finally {
+                out.close();
+            }
+        } catch (IOException x) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING,
+                    "Could not write native-image configuration: " + x.getMessage());
+        }
+    }
+}
@@ -0,0 +1,265 @@
+/**
+ * ********************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.framework.services.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Parser for service descriptors (the files under {@code META-INF/components}
+ * and {@code META-INF/services}). Each non-empty line declares an 
+ * implementation class, optionally followed by {@code ;key=value} properties.
+ * Whitespace is ignored and {@code #} starts a comment that runs to the end of
+ * the line. The parser works directly on the bytes of the descriptor, using a
+ * per-thread buffer, so the only allocations are the resulting names.
+ *
+ * @author John McCrae
+ */
+public final class DescriptorParser {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int INITIAL_BUFFER = 4096;
+    // Buffers larger than this are not retained between calls
+    private static final int MAX_RETAINED_BUFFER = 65536;
+    private static final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[INITIAL_BUFFER];
+        }
+    };
+    // The jars descriptors were read from, whose cached handles are closed by closeJars
+    private static final Set<String> jars = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private DescriptorParser() {
+    }
+
+    /**
+     * A single declaration in a descriptor
+     */
+    public static final class Declaration {
+
+        private final String className;
+        private final Map<String, String> properties;
+
+        public Declaration(String className, Map<String, String> properties) {
+            this.className = className;
+            this.properties = properties;
+        }
+
+        /**
+         * The name of the implementing class
+         */
+        public String getClassName() {
+            return className;
+        }
+
+        /**
+         * The properties given after the class name
+         *
+         * @return An immutable, possibly empty, map
+         */
+        public Map<String, String> getProperties() {
+            return properties;
+        }
+
+        @Override
+        public String toString() {
+            return properties.isEmpty() ? className : className + properties;
+        }
+    }
+
+    /**
+     * Read a descriptor. The connection is cached, so a jar stays open for
+     * the next descriptor read from it until {@link #closeJars()} is called
+     *
+     * @param url The location of the descriptor
+     * @return The list of declarations in the order they occur
+     * @throws IOException If the descriptor could not be read
+     */
+    public static List<Declaration> parse(URL url) throws IOException {
+        if ("jar".equals(url.getProtocol())) {
+            final String spec = url.toExternalForm();
+            final int sep = spec.indexOf("!/");
+            if (sep >= 0) {
+                jars.add(spec.substring(0, sep + 2));
+            }
+        }
+        final InputStream in = url.openStream();
+        try {
+            return parse(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Close the cached jar files that descriptors were read from. Closing a
+     * cached jar removes it from the cache, so a later read opens it again.
+     */
+    public static void closeJars() {
+        for (String jar : jars) {
+            jars.remove(jar);
+            try {
+                final URLConnection connection = new URL(jar).openConnection();
+                if (connection instanceof JarURLConnection && connection.getUseCaches()) {
+                    ((JarURLConnection) connection).getJarFile().close();
+                }
+            } catch (IOException x) {
+                // The jar has gone, so there is nothing to close
+            }
+        }
+    }
+
+    /**
+     * Read a descriptor from a stream. The stream is not closed
+     *
+     * @param in The stream
+     * @return The list of declarations in the order they occur
+     * @throws IOException If the stream could not be read
+     */
+    public static List<Declaration> parse(InputStream in) throws IOException {
+        byte[] buf = buffers.get();
+        int len = 0;
+        int read;
+        while ((read = in.read(buf, len, buf.length - len)) >= 0) {
+            len += read;
+            if (len == buf.length) {
+                final byte[] newBuf = new byte[buf.length * 2];
+                System.arraycopy(buf, 0, newBuf, 0, len);
+                buf = newBuf;
+                if (buf.length <= MAX_RETAINED_BUFFER) {
+                    buffers.set(buf);
+                }
+            }
+        }
+        return parse(buf, 0, len);
+    }
+
+    /**
+     * Parse the bytes of a descriptor
+     *
+     * @param buf The buffer
+     * @param offset The start of the descriptor in the buffer
+     * @param length The length of the descriptor
+     * @return The list of declarations in the order they occur
+     */
+    public static List<Declaration> parse(byte[] buf, int offset, int length) {
+        final ArrayList<Declaration> declarations = new ArrayList<Declaration>();
+        final int end = offset + length;
+        int i = offset;
+        // Skip a UTF-8 byte order mark
+        if (length >= 3 && buf[i] == (byte) 0xef && buf[i + 1] == (byte) 0xbb && buf[i + 2] == (byte) 0xbf) {
+            i += 3;
+        }
+        while (i < end) {
+            i = skipSpace(buf, i, end);
+            if (i >= end) {
+                break;
+            }
+            if (buf[i] == '#' || isEndOfLine(buf[i])) {
+                i = skipLine(buf, i, end);
+                continue;
+            }
+            final int nameStart = i;
+            while (i < end && !isSpace(buf[i]) && !isEndOfLine(buf[i]) && buf[i] != ';' && buf[i] != '#') {
+                i++;
+            }
+            final String className = new String(buf, nameStart, i - nameStart, UTF8);
+            Map<String, String> properties = Collections.emptyMap();
+            i = skipSpace(buf, i, end);
+            while (i < end && buf[i] == ';') {
+                i = skipSpace(buf, i + 1, end);
+                final int keyStart = i;
+                while (i < end && buf[i] != '=' && buf[i] != ';' && buf[i] != '#' && !isEndOfLine(buf[i])) {
+                    i++;
+                }
+                final int keyEnd = trimEnd(buf, keyStart, i);
+                String value = "";
+                if (i < end && buf[i] == '=') {
+                    i = skipSpace(buf, i + 1, end);
+                    final int valueStart = i;
+                    while (i < end && buf[i] != ';' && buf[i] != '#' && !isEndOfLine(buf[i])) {
+                        i++;
+                    }
+                    value = new String(buf, valueStart, trimEnd(buf, valueStart, i) - valueStart, UTF8);
+                }
+                if (keyEnd > keyStart) {
+                    if (properties.isEmpty()) {
+                        properties = new HashMap<String, String>();
+                    }
+                    properties.put(new String(buf, keyStart, keyEnd - keyStart, UTF8), value);
+                }
+            }
+            declarations.add(new Declaration(className, properties.isEmpty() ? properties : Collections.unmodifiableMap(properties)));
+            i = skipLine(buf, i, end);
+        }
+        return declarations;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\t' || b == '\f';
+    }
+
+    private static boolean isEndOfLine(byte b) {
+        return b == '\n' || b == '\r';
+    }
+
+    private static int skipSpace(byte[] buf, int i, int end) {
+        while (i < end && isSpace(buf[i])) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int skipLine(byte[] buf, int i, int end) {
+        while (i < end && !isEndOfLine(buf[i])) {
+            i++;
+        }
+        while (i < end && isEndOfLine(buf[i])) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int trimEnd(byte[] buf, int start, int end) {
+        while (end > start && isSpace(buf[end - 1])) {
+            end--;
+        }
+        return end;
+    }
+}
@@ -0,0 +1,696 @@
+/**
+ * ********************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.framework.services.impl;
+
+import eu.monnetproject.framework.services.Memoized;
+import eu.monnetproject.framework.services.ServiceCollection;
+import eu.monnetproject.framework.services.ServiceCollectionListener;
+import eu.monnetproject.framework.services.ServiceLoadException;
+import eu.monnetproject.framework.services.ServiceMetrics;
+import eu.monnetproject.framework.services.Services;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The invocation handler of an aggregate factory returned by 
+ * {@link Services#getFactory(java.lang.Class)}. Methods returning a
+ * collection return the union of the results of all implementations, other
+ * methods return the first result that is not null.
+ * <p>
+ * If the system property 
+ * {@code eu.monnetproject.framework.services.factory.adaptive} is true the 
+ * implementations are not tried in the order they were found, but in the 
+ * order that minimizes the expected time of a call, i.e., by the ratio of 
+ * the rate at which an implementation returns a value to its mean time. The 
+ * order of each method is recomputed every 
+ * {@code eu.monnetproject.framework.services.factory.refresh} (1000) calls, 
+ * when the statistics are also halved so that the order follows changes in
+ * the workload. Note that this changes the result if more than one 
+ * implementation returns a value. The statistics of all adaptive factories
+ * are exposed as one MBean named 
+ * {@code eu.monnetproject.framework.services:type=FactoryDispatcher}, keyed by
+ * "service[n] method", where n numbers the factories of a service. The MBean
+ * only holds weak references, so a factory that is no longer used is dropped
+ * from it together with its class loader.
+ * <p>
+ * Results of methods annotated with {@link Memoized} are kept in a cache per 
+ * method, which drops approximately the least recently used results. The 
+ * caches and statistics are dropped when the collection of implementations 
+ * reports a change. The collections returned by {@link Services#getAll} never
+ * change, so a factory returned by {@link Services#getFactory} keeps its 
+ * results until they are evicted or expire.
+ *
+ * @author John McCrae
+ */
+public class FactoryDispatcher<S> implements InvocationHandler, FactoryDispatcherMXBean {
+
+    public static final String ADAPTIVE_PROPERTY = "eu.monnetproject.framework.services.factory.adaptive";
+    private static final boolean defaultAdaptive = Boolean.parseBoolean(System.getProperty(ADAPTIVE_PROPERTY, "false"));
+    private static final int refreshInterval = Integer.parseInt(System.getProperty("eu.monnetproject.framework.services.factory.refresh", "1000"));
+    private final Class<S> serviceClass;
+    private final boolean adaptive;
+    // Null until the implementations are first needed, or after a change
+    private volatile Delegates<S> delegates;
+    private volatile ServiceCollection<S> all;
+    private volatile boolean listening;
+    private volatile ConcurrentMap<Method, Memo> memos = new ConcurrentHashMap<Method, Memo>();
+    // Marks methods that are not memoized
+    private static final Memo NONE = new Memo(0, 0, null, 0);
+    // Stands for a null result in a memo
+    private static final Object NULL = new Object();
+    private static final AllDispatchers allDispatchers = new AllDispatchers();
+    private static final AtomicBoolean registered = new AtomicBoolean();
+    private int id;
+
+    /**
+     * The implementations and their statistics, which are published together
+     * so that the statistics always have one entry per implementation
+     */
+    private static final class Delegates<S> {
+
+        final List<S> services;
+        final ConcurrentMap<Method, MethodStats> stats = new ConcurrentHashMap<Method, MethodStats>();
+
+        Delegates(List<S> services) {
+            this.services = services;
+        }
+
+        MethodStats stats(Method method) {
+            MethodStats s = stats.get(method);
+            if (s == null) {
+                final MethodStats newStats = new MethodStats(services.size());
+                s = stats.putIfAbsent(method, newStats);
+                if (s == null) {
+                    s = newStats;
+                }
+            }
+            return s;
+        }
+
+        String name(int i) {
+            return services.get(i).getClass().getName() + "#" + i;
+        }
+    }
+
+    /**
+     * The statistics of a method, indexed by implementation
+     */
+    private static final class MethodStats {
+
+        final AtomicLongArray calls, hits, nanos;
+        final AtomicLong sinceRefresh = new AtomicLong();
+        volatile int[] order;
+
+        MethodStats(int n) {
+            calls = new AtomicLongArray(n);
+            hits = new AtomicLongArray(n);
+            nanos = new AtomicLongArray(n);
+            order = new int[n];
+            for (int i = 0; i < n; i++) {
+                order[i] = i;
+            }
+        }
+
+        void record(int i, boolean hit, long time) {
+            calls.incrementAndGet(i);
+            if (hit) {
+                hits.incrementAndGet(i);
+            }
+            nanos.addAndGet(i, time);
+        }
+
+        void tick() {
+            if (sinceRefresh.incrementAndGet() % refreshInterval == 0) {
+                refresh();
+            }
+        }
+
+        synchronized void refresh() {
+            final int n = order.length;
+            final double[] score = new double[n];
+            final List<Integer> indices = new ArrayList<Integer>(n);
+            for (int i = 0; i < n; i++) {
+                final long c = calls.get(i);
+                // Estimates smoothed so that untried implementations are not
+                // ranked first or last
+                final double hitRate = (hits.get(i) + 1.0) / (c + 2.0);
+                final double meanTime = (nanos.get(i) + 1.0) / (c + 1.0);
+                score[i] = hitRate / meanTime;
+                indices.add(i);
+                // Decay so that the order follows changes in the workload
+                calls.set(i, c / 2);
+                hits.set(i, hits.get(i) / 2);
+                nanos.set(i, nanos.get(i) / 2);
+            }
+            Collections.sort(indices, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer i, Integer j) {
+                    return Double.compare(score[j], score[i]);
+                }
+            });
+            final int[] newOrder = new int[n];
+            for (int i = 0; i < n; i++) {
+                newOrder[i] = indices.get(i);
+            }
+            order = newOrder;
+        }
+    }
+
+    /**
+     * A memoized result
+     */
+    private static final class Result {
+
+        final Object value;
+        final long weight;
+        final long written;
+        volatile long accessed;
+
+        Result(Object value, long weight, long now) {
+            this.value = value;
+            this.weight = weight;
+            this.written = now;
+            this.accessed = now;
+        }
+    }
+
+    /**
+     * The results of a memoized method. Reads do not lock, and only record 
+     * when the result was used, so the least recently used results are found
+     * by sorting when the memo is full
+     */
+    private static final class Memo {
+
+        final int maximumSize;
+        final long maximumWeight;
+        final Memoized.Weigher weigher;
+        final long expireAfterWrite;
+        final ConcurrentHashMap<Key, Result> results = new ConcurrentHashMap<Key, Result>();
+        final AtomicLong weight = new AtomicLong();
+        final AtomicBoolean evicting = new AtomicBoolean();
+
+        Memo(int maximumSize, long maximumWeight, Memoized.Weigher weigher, long expireAfterWrite) {
+            this.maximumSize = maximumSize;
+            this.maximumWeight = maximumWeight;
+            this.weigher = weigher;
+            this.expireAfterWrite = expireAfterWrite * 1000000l;
+        }
+
+        Object get(Key key) {
+            final Result result = results.get(key);
+            if (result == null) {
+                return null;
+            }
+            final long now = System.nanoTime();
+            if (expireAfterWrite > 0 && now - result.written > expireAfterWrite) {
+                if (results.remove(key, result)) {
+                    weight.addAndGet(-result.weight);
+                }
+                return null;
+            }
+            result.accessed = now;
+            return result.value;
+        }
+
+        void put(Key key, Object value) {
+            final long w = maximumWeight > 0 ? weigher.weigh(key.args, value == NULL ? null : value) : 1;
+            final Result old = results.put(key, new Result(value, w, System.nanoTime()));
+            weight.addAndGet(old == null ? w : w - old.weight);
+            if (results.size() > maximumSize || (maximumWeight > 0 && weight.get() > maximumWeight)) {
+                evict();
+            }
+        }
+
+        /**
+         * Drop the least recently used results until the memo is at most 
+         * nine tenths full, so that sorting is amortized over many calls. 
+         * Other threads do not wait while a thread evicts
+         */
+        private void evict() {
+            if (!evicting.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                final ArrayList<Map.Entry<Key, Result>> entries = new ArrayList<Map.Entry<Key, Result>>(results.entrySet());
+                Collections.sort(entries, new Comparator<Map.Entry<Key, Result>>() {
+                    @Override
+                    public int compare(Map.Entry<Key, Result> e1, Map.Entry<Key, Result> e2) {
+                        return Long.compare(e1.getValue().accessed, e2.getValue().accessed);
+                    }
+                });
+                final int targetSize = maximumSize - maximumSize / 10;
+                final long targetWeight = maximumWeight - maximumWeight / 10;
+                int size = entries.size();
+                for (Map.Entry<Key, Result> e : entries) {
+                    if (size <= targetSize && (maximumWeight <= 0 || weight.get() <= targetWeight)) {
+                        break;
+                    }
+                    if (results.remove(e.getKey(), e.getValue())) {
+                        size--;
+                        weight.addAndGet(-e.getValue().weight);
+                    }
+                }
+            } finally {
+                evicting.set(false);
+            }
+        }
+    }
+
+    /**
+     * The arguments of a call
+     */
+    private static final class Key {
+
+        final Object[] args;
+        final int hash;
+
+        Key(Object[] args) {
+            this.args = args == null ? new Object[0] : args.clone();
+            this.hash = Arrays.deepHashCode(this.args);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Key && Arrays.deepEquals(args, ((Key) obj).args);
+        }
+    }
+
+    /**
+     * The statistics of all adaptive factories, which does not keep them alive
+     */
+    private static final class AllDispatchers implements FactoryDispatcherMXBean {
+
+        private final ConcurrentLinkedQueue<WeakReference<FactoryDispatcher<?>>> dispatchers = new ConcurrentLinkedQueue<WeakReference<FactoryDispatcher<?>>>();
+        private final AtomicInteger count = new AtomicInteger();
+
+        void add(FactoryDispatcher<?> dispatcher) {
+            dispatcher.id = count.incrementAndGet();
+            dispatchers.add(new WeakReference<FactoryDispatcher<?>>(dispatcher));
+        }
+
+        private List<FactoryDispatcher<?>> dispatchers() {
+            final List<FactoryDispatcher<?>> list = new ArrayList<FactoryDispatcher<?>>();
+            final Iterator<WeakReference<FactoryDispatcher<?>>> iter = dispatchers.iterator();
+            while (iter.hasNext()) {
+                final FactoryDispatcher<?> dispatcher = iter.next().get();
+                if (dispatcher == null) {
+                    iter.remove();
+                } else {
+                    list.add(dispatcher);
+                }
+            }
+            return list;
+        }
+
+        private static <V> void putAll(Map<String, V> map, FactoryDispatcher<?> dispatcher, Map<String, V> values) {
+            final String prefix = dispatcher.serviceClass.getName() + "[" + dispatcher.id + "] ";
+            for (Map.Entry<String, V> e : values.entrySet()) {
+                map.put(prefix + e.getKey(), e.getValue());
+            }
+        }
+
+        @Override
+        public Map<String, String> getOrder() {
+            final TreeMap<String, String> map = new TreeMap<String, String>();
+            for (FactoryDispatcher<?> dispatcher : dispatchers()) {
+                putAll(map, dispatcher, dispatcher.getOrder());
+            }
+            return map;
+        }
+
+        @Override
+        public Map<String, Long> getCalls() {
+            final TreeMap<String, Long> map = new TreeMap<String, Long>();
+            for (FactoryDispatcher<?> dispatcher : dispatchers()) {
+                putAll(map, dispatcher, dispatcher.getCalls());
+            }
+            return map;
+        }
+
+        @Override
+        public Map<String, Long> getHits() {
+            final TreeMap<String, Long> map = new TreeMap<String, Long>();
+            for (FactoryDispatcher<?> dispatcher : dispatchers()) {
+                putAll(map, dispatcher, dispatcher.getHits());
+            }
+            return map;
+        }
+
+        @Override
+        public Map<String, Long> getMeanTimes() {
+            final TreeMap<String, Long> map = new TreeMap<String, Long>();
+            for (FactoryDispatcher<?> dispatcher : dispatchers()) {
+                putAll(map, dispatcher, dispatcher.getMeanTimes());
+            }
+            return map;
+        }
+
+        @Override
+        public void refresh() {
+            for (FactoryDispatcher<?> dispatcher : dispatchers()) {
+                dispatcher.refresh();
+            }
+        }
+    }
+
+    /**
+     * Create the handler of a factory over all implementations of a service
+     *
+     * @param serviceClass The service
+     */
+    public FactoryDispatcher(Class<S> serviceClass) {
+        this(serviceClass, (List<S>) null, defaultAdaptive);
+        if (adaptive) {
+            register();
+        }
+    }
+
+    /**
+     * Create the handler of a factory over some implementations
+     *
+     * @param serviceClass The service
+     * @param services The implementations or null to get all implementations
+     * when the factory is first called
+     * @param adaptive Whether to reorder the implementations
+     */
+    FactoryDispatcher(Class<S> serviceClass, List<S> services, boolean adaptive) {
+        this.serviceClass = serviceClass;
+        this.delegates = services == null ? null : new Delegates<S>(services);
+        this.adaptive = adaptive;
+    }
+
+    /**
+     * Create the handler of a factory over a collection of implementations, 
+     * which is listened to for changes
+     *
+     * @param serviceClass The service
+     * @param all The implementations
+     * @param adaptive Whether to reorder the implementations
+     */
+    FactoryDispatcher(Class<S> serviceClass, ServiceCollection<S> all, boolean adaptive) {
+        this(serviceClass, (List<S>) null, adaptive);
+        this.all = all;
+    }
+
+    /**
+     * Add the statistics of this factory to the MBean
+     */
+    void register() {
+        allDispatchers.add(this);
+        if (registered.compareAndSet(false, true)) {
+            try {
+                final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                final ObjectName name = new ObjectName("eu.monnetproject.framework.services:type=FactoryDispatcher");
+                if (!server.isRegistered(name)) {
+                    server.registerMBean(allDispatchers, name);
+                }
+            } catch (Exception x) {
+                System.err.println("Could not register factory statistics: " + x.getMessage());
+            }
+        }
+    }
+
+    private Delegates<S> delegates() {
+        Delegates<S> d = delegates;
+        if (d == null) {
+            synchronized (this) {
+                d = delegates;
+                if (d == null) {
+                    if (!listening) {
+                        if (all == null) {
+                            all = Services.getAll(serviceClass);
+                        }
+                        all.addListener(new ServiceCollectionListener<S>() {
+                            @Override
+                            public void serviceAdded(S service, Map<String, Object> props) {
+                                changed();
+                            }
+
+                            @Override
+                            public void serviceRemoved(S service, Map<String, Object> props) {
+                                changed();
+                            }
+
+                            @Override
+                            public void serviceModified(S service, Map<String, Object> props) {
+                                changed();
+                            }
+                        });
+                        // The current services are reported while registering
+                        listening = true;
+                    }
+                    final List<S> s = new ArrayList<S>();
+                    for (S service : all) {
+                        s.add(service);
+                    }
+                    d = new Delegates<S>(s);
+                    delegates = d;
+                }
+            }
+        }
+        return d;
+    }
+
+    private void changed() {
+        if (listening) {
+            invalidate();
+        }
+    }
+
+    /**
+     * Drop the implementations, statistics and memoized results, calls in 
+     * progress complete with the old values
+     */
+    void invalidate() {
+        final Delegates<S> d = delegates;
+        if (all != null) {
+            delegates = null;
+        } else if (d != null) {
+            delegates = new Delegates<S>(d.services);
+        }
+        memos = new ConcurrentHashMap<Method, Memo>();
+    }
+
+    private Memo memo(Method method) {
+        final ConcurrentMap<Method, Memo> m = memos;
+        Memo memo = m.get(method);
+        if (memo == null) {
+            final Memoized memoized = method.getAnnotation(Memoized.class);
+            final Memo newMemo = memoized == null ? NONE : newMemo(memoized);
+            memo = m.putIfAbsent(method, newMemo);
+            if (memo == null) {
+                memo = newMemo;
+            }
+        }
+        return memo;
+    }
+
+    private Memo newMemo(Memoized memoized) {
+        Memoized.Weigher weigher = null;
+        if (memoized.maximumWeight() > 0) {
+            try {
+                weigher = memoized.weigher().newInstance();
+            } catch (Exception x) {
+                throw new ServiceLoadException(serviceClass, "Could not create weigher " + memoized.weigher().getName() + ": " + x.getMessage());
+            }
+        }
+        return new Memo(memoized.maximumSize(), memoized.maximumWeight(), weigher, memoized.expireAfterWrite());
+    }
+
+    @Override
+    public Object invoke(Object o, Method method, Object[] os) throws Throwable {
+        if (method.getDeclaringClass().equals(Object.class)) {
+            return method.invoke(serviceClass, os);
+        }
+        final Memo memo = memo(method);
+        if (memo == NONE) {
+            return dispatch(method, os);
+        }
+        final ServiceMetrics metrics = Metrics.get();
+        final Key key = new Key(os);
+        Object rval = memo.get(key);
+        if (rval == null) {
+            if (metrics != null) {
+                metrics.cacheMiss("memo", serviceClass.getName() + "." + method.getName());
+            }
+            rval = dispatch(method, os);
+            // Collections are copied as the caller may change them
+            memo.put(key, rval == null ? NULL : rval instanceof LinkedList ? new LinkedList<Object>((Collection<?>) rval) : rval);
+            return rval;
+        } else {
+            if (metrics != null) {
+                metrics.cacheHit("memo", serviceClass.getName() + "." + method.getName());
+            }
+            return rval == NULL ? null : rval instanceof LinkedList ? new LinkedList<Object>((Collection<?>) rval) : rval;
+        }
+    }
+
+    private Object dispatch(Method method, Object[] os) {
+        final Delegates<S> d = delegates();
+        final List<S> delegates = d.services;
+        if (method.getReturnType().equals(Collection.class)) {
+            final LinkedList<Object> rval = new LinkedList<Object>();
+            for (S s : delegates) {
+                Object res = null;
+                try {
+                    res = method.invoke(s, os);
+                } catch (Throwable t) {
+                }
+                if (res != null) {
+                    rval.addAll((Collection<?>) res);
+                }
+            }
+            return rval;
+        } else if (!adaptive) {
+            for (S s : delegates) {
+                Object rval = null;
+                try {
+                    rval = method.invoke(s, os);
+                } catch (Throwable t) {
+                }
+                if (rval != null) {
+                    return rval;
+                }
+            }
+            return null;
+        } else {
+            final MethodStats methodStats = d.stats(method);
+            try {
+                for (int i : methodStats.order) {
+                    final long start = System.nanoTime();
+                    Object rval = null;
+                    try {
+                        rval = method.invoke(delegates.get(i), os);
+                    } catch (Throwable t) {
+                    }
+                    methodStats.record(i, rval != null, System.nanoTime() - start);
+                    if (rval != null) {
+                        return rval;
+                    }
+                }
+                return null;
+            } finally {
+                methodStats.tick();
+            }
+        }
+    }
+
+    private static String key(Method method) {
+        final StringBuilder sb = new StringBuilder(method.getName()).append('(');
+        final Class<?>[] params = method.getParameterTypes();
+        for (int i = 0; i < params.length; i++) {
+            sb.append(i > 0 ? "," : "").append(params[i].getSimpleName());
+        }
+        return sb.append(')').toString();
+    }
+
+    private Map<String, Long> snapshot(int what) {
+        final TreeMap<String, Long> map = new TreeMap<String, Long>();
+        final Delegates<S> d = delegates;
+        if (d == null) {
+            return map;
+        }
+        for (Map.Entry<Method, MethodStats> e : d.stats.entrySet()) {
+            final MethodStats s = e.getValue();
+            for (int i = 0; i < s.order.length; i++) {
+                final long calls = s.calls.get(i);
+                final long value = what == 0 ? calls : what == 1 ? s.hits.get(i) : calls == 0 ? 0 : s.nanos.get(i) / calls;
+                map.put(key(e.getKey()) + " " + d.name(i), value);
+            }
+        }
+        return map;
+    }
+
+    @Override
+    public Map<String, String> getOrder() {
+        final TreeMap<String, String> map = new TreeMap<String, String>();
+        final Delegates<S> d = delegates;
+        if (d == null) {
+            return map;
+        }
+        for (Map.Entry<Method, MethodStats> e : d.stats.entrySet()) {
+            final StringBuilder sb = new StringBuilder();
+            for (int i : e.getValue().order) {
+                sb.append(sb.length() > 0 ? ", " : "").append(d.name(i));
+            }
+            map.put(key(e.getKey()), sb.toString());
+        }
+        return map;
+    }
+
+    @Override
+    public Map<String, Long> getCalls() {
+        return snapshot(0);
+    }
+
+    @Override
+    public Map<String, Long> getHits() {
+        return snapshot(1);
+    }
+
+    @Override
+    public Map<String, Long> getMeanTimes() {
+        return snapshot(2);
+    }
+
+    @Override
+    public void refresh() {
+        final Delegates<S> d = delegates;
+        if (d == null) {
+            return;
+        }
+        for (MethodStats s : d.stats.values()) {
+            s.refresh();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/**
+ * ********************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.framework.services.impl;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+/**
+ * Estimates the heap reachable from an object by walking its fields. Sizes 
+ * assume a 64-bit VM with compressed references. Classes, class loaders and
+ * threads are not followed, and fields that cannot be made accessible are 
+ * counted but not followed.
+ *
+ * @author John McCrae
+ */
+final class HeapEstimator {
+
+    private static final int HEADER = 12;
+    private static final int ARRAY_HEADER = 16;
+    private static final int REFERENCE = 4;
+    // Stop after this many objects so that very large graphs do not stall the caller
+    private static final int MAX_OBJECTS = 1000000;
+    private final IdentityHashMap<Object, Boolean> seen = new IdentityHashMap<Object, Boolean>();
+    private final HashMap<Class<?>, Layout> layouts = new HashMap<Class<?>, Layout>();
+    private final ArrayDeque<Object> queue = new ArrayDeque<Object>();
+
+    private HeapEstimator() {
+    }
+
+    private static final class Layout {
+
+        final long size;
+        final List<Field> references;
+
+        Layout(long size, List<Field> references) {
+            this.size = size;
+            this.references = references;
+        }
+    }
+
+    /**
+     * Estimate the size of the objects reachable from an object
+     *
+     * @param root The object
+     * @return The estimated size in bytes
+     */
+    static long estimate(Object root) {
+        return new HeapEstimator().walk(root);
+    }
+
+    private long walk(Object root) {
+        long size = 0;
+        push(root);
+        while (!queue.isEmpty() && seen.size() < MAX_OBJECTS) {
+            final Object o = queue.poll();
+            final Class<?> c = o.getClass();
+            if (c.isArray()) {
+                final Class<?> component = c.getComponentType();
+                final int length = Array.getLength(o);
+                size += align(ARRAY_HEADER + (long) length * sizeOf(component));
+                if (!component.isPrimitive()) {
+                    for (int i = 0; i < length; i++) {
+                        push(Array.get(o, i));
+                    }
+                }
+            } else {
+                final Layout layout = layout(c);
+                size += layout.size;
+                for (Field f : layout.references) {
+                    try {
+                        push(f.get(o));
+                    } catch (IllegalAccessException x) {
+                        // Counted but not followed
+                    }
+                }
+            }
+        }
+        return size;
+    }
+
+    private void push(Object o) {
+        if (o == null || o instanceof Class || o instanceof ClassLoader || o instanceof Thread) {
+            return;
+        }
+        if (seen.put(o, Boolean.TRUE) == null) {
+            queue.add(o);
+        }
+    }
+
+    private Layout layout(Class<?> c) {
+        Layout layout = layouts.get(c);
+        if (layout == null) {
+            long size = HEADER;
+            final List<Field> references = new ArrayList<Field>();
+            for (Class<?> k = c; k != null; k = k.getSuperclass()) {
+                for (Field f : k.getDeclaredFields()) {
+                    if (Modifier.isStatic(f.getModifiers())) {
+                        continue;
+                    }
+                    size += sizeOf(f.getType());
+                    if (!f.getType().isPrimitive()) {
+                        try {
+                            f.setAccessible(true);
+                            references.add(f);
+                        } catch (RuntimeException x) {
+                            // Not accessible (e.g., encapsulated by a module)
+                        }
+                    }
+                }
+            }
+            layout = new Layout(align(size), references);
+            layouts.put(c, layout);
+        }
+        return layout;
+    }
+
+    private static long sizeOf(Class<?> type) {
+        if (type == long.class || type == double.class) {
+            return 8;
+        } else if (type == int.class || type == float.class) {
+            return 4;
+        } else if (type == short.class || type == char.class) {
+            return 2;
+        } else if (type == byte.class || type == boolean.class) {
+            return 1;
+        } else {
+            return REFERENCE;
+        }
+    }
+
+    private static long align(long size) {
+        return (size + 7) & ~7l;
+    }
+}
@@ -26,17 +26,21 @@
  */
 package eu.monnetproject.framework.services.impl;
 
+import eu.monnetproject.framework.services.ComponentFactory;
 import eu.monnetproject.framework.services.Inject;
 import eu.monnetproject.framework.services.NonEmpty;
+import eu.monnetproject.framework.services.Pooled;
+import eu.monnetproject.framework.services.Scoped;
 import eu.monnetproject.framework.services.ServiceCollection;
 import eu.monnetproject.framework.services.ServiceLoadException;
+import eu.monnetproject.framework.services.ServiceMetrics;
 import eu.monnetproject.framework.services.Singleton;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
-import java.util.HashMap;
+import java.util.Map;
 
 /**
  *
@@ -44,31 +48,135 @@ import java.util.HashMap;
  */
 public class InjectableClass<C> {
 
+    // The factory generated by ComponentFactoryProcessor and the annotations
+    // it recorded, or null if the class is not in the factory index
+    private static final ClassValue<Generated> factories = new ClassValue<Generated>() {
+
+        @Override
+        protected Generated computeValue(Class<?> type) {
+            if (type.getClassLoader() == null) {
+                return null;
+            }
+            final DescriptorParser.Declaration declaration = ClassCache.factories(type.getClassLoader()).get(type.getName());
+            if (declaration == null || declaration.getProperties().get("factory") == null) {
+                return null;
+            }
+            final Map<String, String> props = declaration.getProperties();
+            try {
+                final Class<?> factoryClass = Class.forName(props.get("factory"), true, type.getClassLoader());
+                if (ClassList.isRecording()) {
+                    ClassList.record(factoryClass);
+                }
+                if (ComponentFactory.class.isAssignableFrom(factoryClass)) {
+                    return new Generated((ComponentFactory<?>) factoryClass.newInstance(),
+                            props.containsKey("singleton"), props.get("scope"), props.containsKey("pooled"));
+                }
+            } catch (ClassNotFoundException x) {
+                // The index is out of date
+            } catch (LinkageError x) {
+                // Generated against a different version
+            } catch (Exception x) {
+                // Cannot be instantiated
+            }
+            return null;
+        }
+    };
+
+    /**
+     * A generated factory and the annotations of its class
+     */
+    private static final class Generated {
+
+        final ComponentFactory<?> factory;
+        final boolean singleton;
+        final String scope;
+        final boolean pooled;
+
+        Generated(ComponentFactory<?> factory, boolean singleton, String scope, boolean pooled) {
+            this.factory = factory;
+            this.singleton = singleton;
+            this.scope = scope;
+            this.pooled = pooled;
+        }
+    }
     private final Class<C> clazz;
+    // Exactly one of constructor and factory is not null
     private final Constructor<C> constructor;
+    private final ComponentFactory<C> factory;
+    private final Type[] dependencies;
+    private final boolean[] nonEmpty;
+    private final boolean singleton;
+    // The name of the scope or null if not scoped
+    private final String scope;
+    // The pool of idle instances or null if not pooled
+    private final InstancePool<C> pool;
 
-    @SuppressWarnings("unchecked")
     public InjectableClass(Class<C> clazz) {
+        this(clazz, null);
+    }
+
+    /**
+     * Create from the constructor plan in a wiring snapshot, so that the 
+     * constructors need not be analysed
+     *
+     * @param clazz The class
+     * @param plan The plan or null to analyse the constructors
+     * @throws ServiceLoadException If the plan does not match the class
+     */
+    @SuppressWarnings("unchecked")
+    InjectableClass(Class<C> clazz, WiringSnapshot.Plan plan) {
         this.clazz = clazz;
-        Constructor<C> injectableConstructor = null;
-        for (Constructor<?> constructr : clazz.getConstructors()) {
-            if (constructr.getAnnotation(Inject.class) != null) {
-                if (injectableConstructor == null) {
-                    injectableConstructor = (Constructor<C>) constructr;
-                } else {
-                    throw new ServiceLoadException(clazz, clazz.getName() + " has multiple injectable constructors");
-                }
+        final Generated generated = factories.get(clazz);
+        if (generated != null) {
+            this.factory = (ComponentFactory<C>) generated.factory;
+            this.constructor = null;
+            this.dependencies = factoryDependencies(factory.dependencyTypes(), factory.elementTypes());
+            this.nonEmpty = factory.nonEmpty();
+        } else if (plan != null) {
+            this.factory = null;
+            try {
+                final Class<?>[] rawTypes = classes(plan.rawTypes);
+                this.constructor = clazz.getConstructor(rawTypes);
+                this.dependencies = factoryDependencies(rawTypes, classes(plan.elementTypes));
+            } catch (ClassNotFoundException x) {
+                throw new ServiceLoadException(clazz, x);
+            } catch (NoSuchMethodException x) {
+                throw new ServiceLoadException(clazz, x);
             }
+            this.nonEmpty = plan.nonEmpty.clone();
+        } else {
+            this.factory = null;
+            this.constructor = injectableConstructor(clazz);
+            this.dependencies = constructor.getGenericParameterTypes();
+            this.nonEmpty = nonEmpty(constructor);
         }
-        if (injectableConstructor == null) {
-            if (clazz.getConstructors().length == 1) {
-                injectableConstructor = (Constructor<C>) clazz.getConstructors()[0];
-            } else {
-                throw new ServiceLoadException(clazz, clazz.getName() + " does not have a marked or single constructor");
+        final boolean pooled;
+        if (generated != null) {
+            this.singleton = generated.singleton;
+            this.scope = generated.scope;
+            pooled = generated.pooled;
+        } else {
+            this.singleton = clazz.getAnnotation(Singleton.class) != null;
+            final Scoped scoped = clazz.getAnnotation(Scoped.class);
+            this.scope = scoped == null ? null : scoped.value();
+            pooled = clazz.getAnnotation(Pooled.class) != null;
+        }
+        if (singleton && scope != null) {
+            throw new ServiceLoadException(clazz, clazz.getName() + " is both a singleton and scoped");
+        }
+        if (pooled) {
+            if (singleton || scope != null) {
+                throw new ServiceLoadException(clazz, clazz.getName() + " is pooled but also a singleton or scoped");
+            }
+            try {
+                this.pool = InstancePool.forClass(clazz);
+            } catch (IllegalArgumentException x) {
+                throw new ServiceLoadException(clazz, x.getMessage());
             }
+        } else {
+            this.pool = null;
         }
-        this.constructor = injectableConstructor;
-        for (Type type : constructor.getGenericParameterTypes()) {
+        for (Type type : dependencies) {
             if (type instanceof ParameterizedType) {
                 final ParameterizedType pt = (ParameterizedType) type;
                 if (!(pt.getRawType() instanceof Class)) {
@@ -85,6 +193,48 @@ public class InjectableClass<C> {
         }
     }
 
+    @SuppressWarnings("unchecked")
+    private static <C> Constructor<C> injectableConstructor(Class<C> clazz) {
+        Constructor<C> injectableConstructor = null;
+        for (Constructor<?> constructr : clazz.getConstructors()) {
+            if (constructr.getAnnotation(Inject.class) != null) {
+                if (injectableConstructor == null) {
+                    injectableConstructor = (Constructor<C>) constructr;
+                } else {
+                    throw new ServiceLoadException(clazz, clazz.getName() + " has multiple injectable constructors");
+                }
+            }
+        }
+        if (injectableConstructor == null) {
+            if (clazz.getConstructors().length == 1) {
+                injectableConstructor = (Constructor<C>) clazz.getConstructors()[0];
+            } else {
+                throw new ServiceLoadException(clazz, clazz.getName() + " does not have a marked or single constructor");
+            }
+        }
+        return injectableConstructor;
+    }
+
+    private Class<?>[] classes(String[] names) throws ClassNotFoundException {
+        final Class<?>[] classes = new Class<?>[names.length];
+        for (int i = 0; i < names.length; i++) {
+            classes[i] = names[i] == null ? null : Class.forName(names[i], false, clazz.getClassLoader());
+        }
+        return classes;
+    }
+
+    /**
+     * The types of the dependencies of a generated factory or plan, as they 
+     * would be returned by reflection
+     */
+    private static Type[] factoryDependencies(Class<?>[] rawTypes, Class<?>[] elementTypes) {
+        final Type[] types = new Type[rawTypes.length];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = elementTypes[i] == null ? rawTypes[i] : new SimpleParameterizedType(rawTypes[i], elementTypes[i]);
+        }
+        return types;
+    }
+
     /**
      * Is the type returned from {@code dependencies} multiple
      *
@@ -114,10 +264,14 @@ public class InjectableClass<C> {
     }
 
     public Type[] dependencies() {
-        return constructor.getGenericParameterTypes();
+        return dependencies.clone();
     }
 
     public boolean[] isNonEmpty() {
+        return nonEmpty.clone();
+    }
+
+    private static boolean[] nonEmpty(Constructor<?> constructor) {
         final Annotation[][] paramAnnos = constructor.getParameterAnnotations();
         boolean[] nonEmpty = new boolean[paramAnnos.length];
         for (int i = 0; i < nonEmpty.length; i++) {
@@ -131,45 +285,137 @@ public class InjectableClass<C> {
         return nonEmpty;
     }
 
+    /**
+     * Get the plan of the constructor, to be saved in a wiring snapshot
+     *
+     * @return The plan or null if the dependencies cannot be described by
+     * class names
+     */
+    WiringSnapshot.Plan plan() {
+        final String[] rawTypes = new String[dependencies.length];
+        final String[] elementTypes = new String[dependencies.length];
+        for (int i = 0; i < dependencies.length; i++) {
+            final Type type = dependencies[i];
+            final Class<?> rawType = (Class<?>) (type instanceof Class ? type : ((ParameterizedType) type).getRawType());
+            if (rawType.isPrimitive()) {
+                // Cannot be loaded by name
+                return null;
+            }
+            rawTypes[i] = rawType.getName();
+            if (type instanceof ParameterizedType) {
+                final Type[] args = ((ParameterizedType) type).getActualTypeArguments();
+                if (args.length == 1 && args[0] instanceof Class) {
+                    elementTypes[i] = ((Class<?>) args[0]).getName();
+                }
+            }
+        }
+        return new WiringSnapshot.Plan(rawTypes, elementTypes, nonEmpty.clone());
+    }
+
     protected boolean isSingleton() {
-        return clazz.getAnnotation(Singleton.class) != null;
+        return singleton;
+    }
+
+    /**
+     * Get the name of the scope of this class
+     *
+     * @return The scope or null if the class is not {@link Scoped}
+     */
+    public String getScope() {
+        return scope;
+    }
+
+    /**
+     * Is this class {@link Pooled}
+     */
+    public boolean isPooled() {
+        return pool != null;
     }
-    
-    private static final HashMap<InjectableClass<?>,Object> singletonInstances = new HashMap<InjectableClass<?>, Object>();
 
+    /**
+     * Get an instance that can be returned without constructing, so that 
+     * dependencies need not be resolved
+     *
+     * @return The singleton instance, the instance in the current scope or an
+     * idle pooled instance, or null if a new instance must be created
+     */
+    @SuppressWarnings("unchecked")
+    public C cachedInstance() {
+        final C c;
+        if (pool != null) {
+            return pool.take();
+        } else if (singleton) {
+            c = (C) SingletonStore.get(clazz);
+        } else if (scope != null) {
+            final ScopeCache cache = ScopeCache.current(scope);
+            c = cache == null ? null : (C) cache.get(this);
+        } else {
+            return null;
+        }
+        final ServiceMetrics metrics = Metrics.get();
+        if (c != null && metrics != null) {
+            metrics.cacheHit(singleton ? "singleton" : "scope", clazz.getName());
+        }
+        return c;
+    }
+    
     public void resetSingleton() {
         if(isSingleton()) {
-            synchronized(singletonInstances) {
-                singletonInstances.remove(this);
-            }
+            SingletonStore.remove(clazz);
         }
     }
     
     @SuppressWarnings("unchecked")
     public C newInstance(Object[] args) {
-
+        final ServiceMetrics metrics = Metrics.get();
         try {
             if (isSingleton()) {
-                C c = null;
-                do {
-                    if (!singletonInstances.containsKey(this)) {
-                        // We do this unsynchronized to avoid deadlocks
-                        c = constructor.newInstance(args);
-                    } else {
-                        // Unsynchronized so singleInstance may have become null (!)
-                        c = (C)singletonInstances.get(this);
+                C c = (C) SingletonStore.get(clazz);
+                if (c != null) {
+                    if (metrics != null) {
+                        metrics.cacheHit("singleton", clazz.getName());
                     }
-                } while (c == null); 
-                synchronized (singletonInstances) {
-                    if (!singletonInstances.containsKey(this)) {
-                        singletonInstances.put(this, c);
-                        return c;
-                    } else {
-                        return (C)singletonInstances.get(this);
+                    return c;
+                }
+                // We construct outside the store to avoid deadlocks
+                if (metrics != null) {
+                    metrics.cacheMiss("singleton", clazz.getName());
+                }
+                c = construct(args, metrics);
+                final C existing = (C) SingletonStore.putIfAbsent(clazz, c);
+                if (existing != null) {
+                    if (metrics != null) {
+                        metrics.singletonContention(clazz.getName());
                     }
+                    Disposer.dispose(c);
+                    return existing;
+                }
+                return c;
+            } else if (scope != null) {
+                final ScopeCache cache = ScopeCache.current(scope);
+                if (cache == null) {
+                    return construct(args, metrics);
                 }
+                C c = (C) cache.get(this);
+                if (c != null) {
+                    if (metrics != null) {
+                        metrics.cacheHit("scope", clazz.getName());
+                    }
+                } else {
+                    if (metrics != null) {
+                        metrics.cacheMiss("scope", clazz.getName());
+                    }
+                    c = construct(args, metrics);
+                    cache.put(this, c);
+                }
+                return c;
+            } else if (pool != null) {
+                // Idle instances are taken by cachedInstance
+                final C c = construct(args, metrics);
+                pool.borrowed();
+                return c;
             } else {
-                return constructor.newInstance(args);
+                return construct(args, metrics);
             }
         } catch (IllegalAccessException x) {
             throw new ServiceLoadException(clazz, x);
@@ -182,6 +428,28 @@ public class InjectableClass<C> {
         }
     }
 
+    private C construct(Object[] args, ServiceMetrics metrics) throws IllegalAccessException, InstantiationException, InvocationTargetException {
+        if (metrics == null) {
+            return invoke(args);
+        }
+        final long start = System.nanoTime();
+        final C c = invoke(args);
+        metrics.construct(clazz.getName(), System.nanoTime() - start);
+        return c;
+    }
+
+    private C invoke(Object[] args) throws IllegalAccessException, InstantiationException, InvocationTargetException {
+        if (factory == null) {
+            return constructor.newInstance(args);
+        }
+        try {
+            return factory.newInstance(args);
+        } catch (Exception x) {
+            // As the constructor would have thrown
+            throw new InvocationTargetException(x);
+        }
+    }
+
     public String getClassName() {
         return clazz.getName();
     }
@@ -0,0 +1,295 @@
+/**
+ * ********************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.framework.services.impl;
+
+import eu.monnetproject.framework.services.Pooled;
+import eu.monnetproject.framework.services.ServiceMetrics;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded pool of idle instances of a {@link Pooled} class. Idle instances
+ * are held in a fixed array of slots that are claimed and filled by
+ * compare-and-set, so borrowing and returning never block. The pool is held 
+ * by its class, so it does not keep the class loader of a bundle alive.
+ *
+ * @author John McCrae
+ */
+public final class InstancePool<C> {
+
+    private static final ClassValue<InstancePool<?>> pools = new ClassValue<InstancePool<?>>() {
+        @Override
+        protected InstancePool<?> computeValue(Class<?> type) {
+            final Pooled pooled = type.getAnnotation(Pooled.class);
+            if (pooled == null) {
+                return null;
+            }
+            final InstancePool<?> pool = newPool(type, pooled);
+            all.add(new WeakReference<InstancePool<?>>(pool));
+            return pool;
+        }
+    };
+    // All pools, for checkpointing
+    private static final ConcurrentLinkedQueue<WeakReference<InstancePool<?>>> all = new ConcurrentLinkedQueue<WeakReference<InstancePool<?>>>();
+    private final Class<C> clazz;
+    private final AtomicReferenceArray<Idle<C>> slots;
+    private final long idleTimeout;
+    private final AtomicInteger borrowed = new AtomicInteger();
+
+    private InstancePool(Class<C> clazz, Pooled pooled) {
+        if (pooled.max() <= 0) {
+            throw new IllegalArgumentException("Pool of " + clazz.getName() + " must hold at least one instance");
+        }
+        this.clazz = clazz;
+        this.slots = new AtomicReferenceArray<Idle<C>>(pooled.max());
+        this.idleTimeout = pooled.idleTimeout() * 1000000l;
+    }
+
+    private static <C> InstancePool<C> newPool(Class<C> clazz, Pooled pooled) {
+        return new InstancePool<C>(clazz, pooled);
+    }
+
+    private static final class Idle<C> {
+
+        final C instance;
+        final long since;
+
+        Idle(C instance, long since) {
+            this.instance = instance;
+            this.since = since;
+        }
+    }
+
+    /**
+     * Get the pool of a class
+     *
+     * @param clazz The class, which must be annotated with {@link Pooled}
+     * @return The pool, which is shared by all callers
+     */
+    @SuppressWarnings("unchecked")
+    public static <C> InstancePool<C> forClass(Class<C> clazz) {
+        return (InstancePool<C>) pools.get(clazz);
+    }
+
+    /**
+     * Return an instance to the pool of its class. If the class is not
+     * pooled, or the instance is already idle, this does nothing.
+     *
+     * @param instance The instance
+     */
+    @SuppressWarnings("unchecked")
+    public static void release(Object instance) {
+        final InstancePool<Object> pool = (InstancePool<Object>) pools.get(instance.getClass());
+        if (pool != null) {
+            pool.put(instance);
+        }
+    }
+
+    private int startSlot() {
+        return (int) (Thread.currentThread().getId() % slots.length());
+    }
+
+    /**
+     * Take an idle instance from the pool. If no idle instance is available the
+     * caller should construct a new instance and call {@link #borrowed()}
+     *
+     * @return An idle instance or null if there are none
+     */
+    public C take() {
+        final ServiceMetrics metrics = Metrics.get();
+        final int n = slots.length();
+        final int start = startSlot();
+        final long now = idleTimeout > 0 ? System.nanoTime() : 0;
+        for (int i = 0; i < n; i++) {
+            final int slot = (start + i) % n;
+            final Idle<C> idle = slots.get(slot);
+            if (idle != null && slots.compareAndSet(slot, idle, null)) {
+                if (idleTimeout > 0 && now - idle.since > idleTimeout) {
+                    // Expired, discard and keep looking
+                    Disposer.dispose(idle.instance);
+                    continue;
+                }
+                borrowed.incrementAndGet();
+                if (metrics != null) {
+                    metrics.cacheHit("pool", clazz.getName());
+                }
+                return idle.instance;
+            }
+        }
+        if (metrics != null) {
+            metrics.cacheMiss("pool", clazz.getName());
+        }
+        return null;
+    }
+
+    /**
+     * Record that a newly constructed instance has been handed out
+     */
+    public void borrowed() {
+        if (borrowed.incrementAndGet() > slots.length()) {
+            final ServiceMetrics metrics = Metrics.get();
+            if (metrics != null) {
+                metrics.poolSaturated(clazz.getName());
+            }
+        }
+    }
+
+    private void put(C instance) {
+        final int n = slots.length();
+        if (isIdle(instance, n)) {
+            // Released twice
+            return;
+        }
+        final int start = startSlot();
+        final long now = System.nanoTime();
+        final Idle<C> idle = new Idle<C>(instance, now);
+        int stored = -1;
+        for (int i = 0; i < n; i++) {
+            final int slot = (start + i) % n;
+            final Idle<C> current = slots.get(slot);
+            if (current == null) {
+                if (stored < 0 && slots.compareAndSet(slot, null, idle)) {
+                    stored = slot;
+                    if (idleTimeout <= 0) {
+                        break;
+                    }
+                }
+            } else if (idleTimeout > 0 && now - current.since > idleTimeout) {
+                // Evict expired instances while we are scanning
+                if (slots.compareAndSet(slot, current, null)) {
+                    Disposer.dispose(current.instance);
+                }
+            }
+        }
+        if (stored >= 0) {
+            // If the instance is released by two threads at once, the copy 
+            // in the lowest slot is kept
+            for (int slot = 0; slot < stored; slot++) {
+                final Idle<C> current = slots.get(slot);
+                if (current != null && current.instance == instance) {
+                    slots.compareAndSet(stored, idle, null);
+                    return;
+                }
+            }
+        } else {
+            // The pool is full so the instance is discarded
+            Disposer.dispose(instance);
+        }
+        if (borrowed.get() > 0) {
+            borrowed.decrementAndGet();
+        }
+    }
+
+    private boolean isIdle(C instance, int n) {
+        for (int slot = 0; slot < n; slot++) {
+            final Idle<C> current = slots.get(slot);
+            if (current != null && current.instance == instance) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The pools that have not been collected
+     */
+    private static List<InstancePool<?>> pools() {
+        final ArrayList<InstancePool<?>> list = new ArrayList<InstancePool<?>>();
+        final Iterator<WeakReference<InstancePool<?>>> iterator = all.iterator();
+        while (iterator.hasNext()) {
+            final InstancePool<?> pool = iterator.next().get();
+            if (pool == null) {
+                iterator.remove();
+            } else {
+                list.add(pool);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * The idle instances of all pools
+     */
+    static List<Object> idleInstances() {
+        final ArrayList<Object> instances = new ArrayList<Object>();
+        for (InstancePool<?> pool : pools()) {
+            for (int i = 0; i < pool.slots.length(); i++) {
+                final Idle<?> idle = pool.slots.get(i);
+                if (idle != null) {
+                    instances.add(idle.instance);
+                }
+            }
+        }
+        return instances;
+    }
+
+    /**
+     * Restart the idle time of all idle instances after the JVM is restored 
+     * from a checkpoint
+     */
+    static void restored() {
+        final long now = System.nanoTime();
+        for (InstancePool<?> pool : pools()) {
+            pool.restamp(now);
+        }
+    }
+
+    private void restamp(long now) {
+        for (int i = 0; i < slots.length(); i++) {
+            final Idle<C> idle = slots.get(i);
+            if (idle != null) {
+                // If the instance was taken meanwhile it is not idle
+                slots.compareAndSet(i, idle, new Idle<C>(idle.instance, now));
+            }
+        }
+    }
+
+    /**
+     * The number of idle instances in the pool
+     */
+    public int idle() {
+        int n = 0;
+        for (int i = 0; i < slots.length(); i++) {
+            if (slots.get(i) != null) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * The number of instances that have been handed out and not returned
+     */
+    public int outstanding() {
+        return borrowed.get();
+    }
+}
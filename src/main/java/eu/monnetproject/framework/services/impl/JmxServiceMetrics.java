@@ -0,0 +1,257 @@
+/**
+ * ********************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.framework.services.impl;
+
+import eu.monnetproject.framework.services.ServiceMetrics;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * The default metrics, which accumulate counters and times and expose them as
+ * an MBean named {@code eu.monnetproject.framework.services:type=ServiceMetrics}
+ *
+ * @author John McCrae
+ */
+public class JmxServiceMetrics implements ServiceMetrics, JmxServiceMetricsMXBean {
+
+    public static final String OBJECT_NAME = "eu.monnetproject.framework.services:type=ServiceMetrics";
+    // The instance returned by register, guarded by the class
+    private static JmxServiceMetrics registered;
+    private final ConcurrentMap<String, AtomicLong> lookups = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, AtomicLong> cacheHits = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, AtomicLong> cacheMisses = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, AtomicLong> descriptorReadTimes = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, AtomicLong> classLoadTimes = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, AtomicLong> constructorTimes = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, AtomicLong> constructions = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, AtomicLong> singletonContentions = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, AtomicLong> poolSaturations = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, AtomicLong> trackerEvents = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, AtomicLong> reregistrations = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, AtomicLong> satisfiedTransitions = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, AtomicLong> unsatisfiedTransitions = new ConcurrentHashMap<String, AtomicLong>();
+
+    /**
+     * Create an instance and register it with the platform MBean server, 
+     * together with the {@link SingletonStore}. Later calls return the same
+     * instance. If the registration fails the metrics are still returned but
+     * are not visible through JMX.
+     *
+     * @return The metrics
+     */
+    public static synchronized JmxServiceMetrics register() {
+        if (registered != null) {
+            return registered;
+        }
+        final JmxServiceMetrics metrics = new JmxServiceMetrics();
+        registered = metrics;
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(OBJECT_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(metrics, name);
+        } catch (Exception x) {
+            System.err.println("Could not register " + OBJECT_NAME + ": " + x.getMessage());
+        }
+        try {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(SingletonStore.OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(new SingletonStore(), name);
+            }
+        } catch (Exception x) {
+            System.err.println("Could not register " + SingletonStore.OBJECT_NAME + ": " + x.getMessage());
+        }
+        return metrics;
+    }
+
+    private static void add(ConcurrentMap<String, AtomicLong> map, String key, long delta) {
+        AtomicLong value = map.get(key);
+        if (value == null) {
+            final AtomicLong newValue = new AtomicLong();
+            value = map.putIfAbsent(key, newValue);
+            if (value == null) {
+                value = newValue;
+            }
+        }
+        value.addAndGet(delta);
+    }
+
+    private static Map<String, Long> snapshot(ConcurrentMap<String, AtomicLong> map) {
+        final TreeMap<String, Long> rval = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> e : map.entrySet()) {
+            rval.put(e.getKey(), e.getValue().get());
+        }
+        return rval;
+    }
+
+    @Override
+    public void lookup(String serviceClass) {
+        add(lookups, serviceClass, 1);
+    }
+
+    @Override
+    public void cacheHit(String cache, String className) {
+        add(cacheHits, cache + ":" + className, 1);
+    }
+
+    @Override
+    public void cacheMiss(String cache, String className) {
+        add(cacheMisses, cache + ":" + className, 1);
+    }
+
+    @Override
+    public void descriptorRead(String serviceClass, long nanos) {
+        add(descriptorReadTimes, serviceClass, nanos);
+    }
+
+    @Override
+    public void classLoad(String implClass, long nanos) {
+        add(classLoadTimes, implClass, nanos);
+    }
+
+    @Override
+    public void construct(String implClass, long nanos) {
+        add(constructorTimes, implClass, nanos);
+        add(constructions, implClass, 1);
+    }
+
+    @Override
+    public void singletonContention(String implClass) {
+        add(singletonContentions, implClass, 1);
+    }
+
+    @Override
+    public void poolSaturated(String implClass) {
+        add(poolSaturations, implClass, 1);
+    }
+
+    @Override
+    public void trackerEvent(String component, String dependency, String event) {
+        add(trackerEvents, component + ":" + dependency + ":" + event, 1);
+    }
+
+    @Override
+    public void reregistration(String component) {
+        add(reregistrations, component, 1);
+    }
+
+    @Override
+    public void satisfactionChanged(String component, boolean satisfied) {
+        add(satisfied ? satisfiedTransitions : unsatisfiedTransitions, component, 1);
+    }
+
+    @Override
+    public Map<String, Long> getLookups() {
+        return snapshot(lookups);
+    }
+
+    @Override
+    public Map<String, Long> getCacheHits() {
+        return snapshot(cacheHits);
+    }
+
+    @Override
+    public Map<String, Long> getCacheMisses() {
+        return snapshot(cacheMisses);
+    }
+
+    @Override
+    public Map<String, Long> getDescriptorReadTimes() {
+        return snapshot(descriptorReadTimes);
+    }
+
+    @Override
+    public Map<String, Long> getClassLoadTimes() {
+        return snapshot(classLoadTimes);
+    }
+
+    @Override
+    public Map<String, Long> getConstructorTimes() {
+        return snapshot(constructorTimes);
+    }
+
+    @Override
+    public Map<String, Long> getConstructions() {
+        return snapshot(constructions);
+    }
+
+    @Override
+    public Map<String, Long> getSingletonContentions() {
+        return snapshot(singletonContentions);
+    }
+
+    @Override
+    public Map<String, Long> getPoolSaturations() {
+        return snapshot(poolSaturations);
+    }
+
+    @Override
+    public Map<String, Long> getTrackerEvents() {
+        return snapshot(trackerEvents);
+    }
+
+    @Override
+    public Map<String, Long> getReregistrations() {
+        return snapshot(reregistrations);
+    }
+
+    @Override
+    public Map<String, Long> getSatisfiedTransitions() {
+        return snapshot(satisfiedTransitions);
+    }
+
+    @Override
+    public Map<String, Long> getUnsatisfiedTransitions() {
+        return snapshot(unsatisfiedTransitions);
+    }
+
+    @Override
+    public void reset() {
+        lookups.clear();
+        cacheHits.clear();
+        cacheMisses.clear();
+        descriptorReadTimes.clear();
+        classLoadTimes.clear();
+        constructorTimes.clear();
+        constructions.clear();
+        singletonContentions.clear();
+        poolSaturations.clear();
+        trackerEvents.clear();
+        reregistrations.clear();
+        satisfiedTransitions.clear();
+        unsatisfiedTransitions.clear();
+    }
+}
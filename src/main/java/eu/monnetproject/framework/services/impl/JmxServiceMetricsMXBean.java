@@ -0,0 +1,82 @@
+/**
+ * ********************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.framework.services.impl;
+
+import java.util.Map;
+
+/**
+ * Management interface of the default metrics. All times are in nanoseconds and
+ * all maps are keyed by class or component name.
+ *
+ * @author John McCrae
+ */
+public interface JmxServiceMetricsMXBean {
+
+    Map<String, Long> getLookups();
+
+    /**
+     * Cache hits keyed by "cache:class"
+     */
+    Map<String, Long> getCacheHits();
+
+    /**
+     * Cache misses keyed by "cache:class"
+     */
+    Map<String, Long> getCacheMisses();
+
+    Map<String, Long> getDescriptorReadTimes();
+
+    Map<String, Long> getClassLoadTimes();
+
+    Map<String, Long> getConstructorTimes();
+
+    Map<String, Long> getConstructions();
+
+    Map<String, Long> getSingletonContentions();
+
+    /**
+     * The number of times an instance was created because all pooled 
+     * instances were in use, keyed by implementation
+     */
+    Map<String, Long> getPoolSaturations();
+
+    /**
+     * Tracker events keyed by "component:dependency:event"
+     */
+    Map<String, Long> getTrackerEvents();
+
+    Map<String, Long> getReregistrations();
+
+    Map<String, Long> getSatisfiedTransitions();
+
+    Map<String, Long> getUnsatisfiedTransitions();
+
+    /**
+     * Clear all recorded values
+     */
+    void reset();
+}
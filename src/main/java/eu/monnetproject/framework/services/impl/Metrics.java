@@ -0,0 +1,78 @@
+/**
+ * ********************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.framework.services.impl;
+
+import eu.monnetproject.framework.services.ServiceMetrics;
+
+/**
+ * Holds the installed metrics. Call sites should read the metrics once into a
+ * local variable and only compute timings if it is not null, so that there is
+ * no overhead if metrics are disabled.
+ *
+ * @author John McCrae
+ */
+public final class Metrics {
+
+    public static final String METRICS_PROPERTY = "eu.monnetproject.framework.services.metrics";
+    private static volatile ServiceMetrics metrics = fromProperty(System.getProperty(METRICS_PROPERTY));
+
+    private Metrics() {
+    }
+
+    /**
+     * Get the installed metrics
+     *
+     * @return The metrics or null if metrics are disabled
+     */
+    public static ServiceMetrics get() {
+        return metrics;
+    }
+
+    /**
+     * Install metrics
+     *
+     * @param serviceMetrics The metrics or null to disable metrics
+     */
+    public static void set(ServiceMetrics serviceMetrics) {
+        metrics = serviceMetrics;
+    }
+
+    private static ServiceMetrics fromProperty(String value) {
+        if (value == null || value.equals("") || value.equals("false")) {
+            return null;
+        } else if (value.equals("jmx") || value.equals("true")) {
+            return JmxServiceMetrics.register();
+        } else {
+            try {
+                return (ServiceMetrics) Class.forName(value).newInstance();
+            } catch (Exception x) {
+                System.err.println("Could not create metrics " + value + ": " + x.getMessage());
+                return null;
+            }
+        }
+    }
+}
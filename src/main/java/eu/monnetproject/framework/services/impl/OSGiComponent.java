@@ -28,12 +28,17 @@ package eu.monnetproject.framework.services.impl;
 
 import eu.monnetproject.framework.services.ServiceCollection;
 import eu.monnetproject.framework.services.ServiceCollection.ServiceIterator;
+import eu.monnetproject.framework.services.ServiceCollectionListener;
+import eu.monnetproject.framework.services.ServiceMetrics;
 import java.lang.reflect.Type;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.function.BiConsumer;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 import org.osgi.framework.*;
 import org.osgi.service.log.LogService;
-import org.osgi.util.tracker.ServiceTracker;
-import org.osgi.util.tracker.ServiceTrackerCustomizer;
 
 /**
  * The objects created by the activator that track the state of the system and
@@ -46,257 +51,390 @@ public class OSGiComponent<C> {
     private final InjectableClass<C> clazz;
     private final Class<C> interfaceClass;
     private final BundleContext context;
-    private final ServiceTracker[] trackers;
-    private final ServiceReference[] arguments;
-    private final ServiceCollection<?>[] collections;
-    // satisfied is locked with arguments
-    private int satisfied = 0;
-    private ServiceRegistration registration;
-    // Used to indicate that registration is locked
-    private final Object regLock = new Object();
+    private final Map<String, ?> properties;
+    private final SharedTrackers.Subscription[] subscriptions;
+    // The dependencies that are bound and the current registration
+    private final Binder<ServiceRegistration> binder;
     private static final boolean verbose = Boolean.parseBoolean(System.getProperty("eu.monnetproject.framework.services.verbose", "false"));
+    private static volatile boolean lazy = Boolean.parseBoolean(System.getProperty("eu.monnetproject.framework.services.lazy", "false"));
+    // In lazy mode, the placeholder until it is adopted as the first registration
+    private final AtomicReference<LazyFactory> placeholder = new AtomicReference<LazyFactory>();
+    // Guards activation in lazy mode
+    private final ReentrantLock activationLock = new ReentrantLock();
+    // Set once the dependencies are subscribed
+    private volatile boolean activated = false;
 
     public OSGiComponent(final InjectableClass<C> clazz, final Class<C> interfaceClass, final BundleContext context) {
+        this(clazz, interfaceClass, context, Collections.<String, Object>emptyMap());
+    }
+
+    /**
+     * Create a component
+     *
+     * @param clazz The implementation
+     * @param interfaceClass The service interface it is registered as
+     * @param context The context of the declaring bundle
+     * @param properties Additional service properties from the declaration
+     */
+    public OSGiComponent(final InjectableClass<C> clazz, final Class<C> interfaceClass, final BundleContext context, final Map<String, ?> properties) {
         this.clazz = clazz;
         this.interfaceClass = interfaceClass;
         this.context = context;
+        this.properties = properties;
         final Type[] deps = clazz.dependencies();
-        this.trackers = new ServiceTracker[deps.length];
-        this.arguments = new ServiceReference[deps.length];
-        this.collections = new ServiceCollection<?>[deps.length];
+        final boolean[] nonEmpty = clazz.isNonEmpty();
+        this.subscriptions = new SharedTrackers.Subscription[deps.length];
+        final Object[] values = new Object[deps.length];
+        final boolean[] required = new boolean[deps.length];
+        for (int i = 0; i < deps.length; i++) {
+            if (InjectableClass.isMultiple(deps[i]) && !nonEmpty[i]) {
+                // Optional collections are always bound
+                values[i] = new ServiceCollectionImpl<Object>(context);
+            } else {
+                required[i] = true;
+            }
+        }
+        this.binder = new Binder<ServiceRegistration>(BindingState.initial(values, required)) {
+            @Override
+            protected ServiceRegistration register(BindingState state) {
+                return registerComponent(state);
+            }
+
+            @Override
+            protected void unregister(ServiceRegistration registration) {
+                try {
+                    registration.unregister();
+                } catch (IllegalStateException x) {
+                    // Already unregistered, e.g., as the bundle stopped
+                }
+            }
+
+            @Override
+            protected void bound(int i) {
+                // Before the registration it may cause, so the timeline
+                // sees which dependency completed the component
+                dependencySatisfied(i);
+            }
+
+            @Override
+            protected void published(boolean wasRegistered, boolean isRegistered) {
+                if (!isRegistered) {
+                    clazz.resetSingleton();
+                }
+                final ServiceMetrics metrics = Metrics.get();
+                if (metrics != null) {
+                    if (wasRegistered && isRegistered) {
+                        metrics.reregistration(clazz.getClassName());
+                    } else if (wasRegistered != isRegistered) {
+                        metrics.satisfactionChanged(clazz.getClassName(), isRegistered);
+                    }
+                }
+            }
+        };
     }
 
+    /**
+     * Start the component. In lazy mode, enabled by the system property
+     * {@code eu.monnetproject.framework.services.lazy}, only a placeholder is
+     * registered and the component is activated when the service is first got.
+     * The placeholder is only registered if a service is available for each 
+     * required dependency, otherwise the component is activated at once and 
+     * registered when it is satisfied
+     */
     public void start() {
+        if (lazy && isSatisfiable()) {
+            log("Registering placeholder for " + clazz.getClassName());
+            final LazyFactory factory = new LazyFactory();
+            placeholder.set(factory);
+            final Hashtable<Object, Object> props = new Hashtable<Object, Object>(properties);
+            props.put("component.name", clazz.getClassName());
+            factory.registration = context.registerService(interfaceClass.getName(), factory, props);
+        } else {
+            activate();
+        }
+    }
+
+    /**
+     * Set lazy mode, for testing. This applies to components started later
+     */
+    static void setLazy(boolean enable) {
+        lazy = enable;
+    }
+
+    /**
+     * Whether a service is registered for each required dependency, checked 
+     * without tracking the dependencies
+     */
+    private boolean isSatisfiable() {
+        final Type[] deps = clazz.dependencies();
+        for (int i = 0; i < deps.length; i++) {
+            if ((!InjectableClass.isMultiple(deps[i]) || clazz.isNonEmpty()[i])
+                    && context.getServiceReference(InjectableClass.getRealType(deps[i]).getName()) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Subscribe to the dependencies and register the component when they are
+     * satisfied
+     */
+    private void activate() {
+        // Held while subscribing so that concurrent first requests wait
+        activationLock.lock();
+        try {
+            if (!activated) {
+                subscribe();
+                activated = true;
+            }
+        } finally {
+            activationLock.unlock();
+        }
+    }
+
+    private void subscribe() {
+        final long start = StartupTimeline.start();
         final Type[] deps = clazz.dependencies();
         if (deps.length == 0) {
             log("Starting immediate service");
-            // Start immediately
-            final Object newInstance = clazz.newInstance(new Object[0]);
-            final Hashtable<Object, Object> props = new Hashtable<Object, Object>();
-            props.put("component.name", clazz.getClassName());
-            registration = context.registerService(interfaceClass.getName(), newInstance, props);
         } else {
-            // Register trackers
+            // Subscribe to the trackers
             int i = 0;
             for (Type t : deps) {
+                final String depName = InjectableClass.getRealType(t).getName();
+                final SharedTrackers.Listener listener;
                 if (InjectableClass.isMultiple(t)) {
                     if (clazz.isNonEmpty()[i]) {
-                        final Class<?> depClazz = InjectableClass.getRealType(t);
-                        trackers[i] = new ServiceTracker(context, depClazz.getName(), new BinjectiveTracker(i));
-                        trackers[i].open();
+                        listener = new BinjectiveTracker(depName, i);
                     } else {
-                        final Class<?> depClazz = InjectableClass.getRealType(t);
-                        final ServiceCollectionImpl<?> serviceCollectionImpl = new ServiceCollectionImpl<Object>(context);
-                        trackers[i] = new ServiceTracker(context, depClazz.getName(), new InjectiveTracker(serviceCollectionImpl));
-                        collections[i] = serviceCollectionImpl;
-                        trackers[i].open();
-                        satisfied++;
+                        listener = new InjectiveTracker(depName, (ServiceCollectionImpl<?>) binder.state().get(i));
                     }
                 } else {
-                    final Class<?> depClazz = InjectableClass.getRealType(t);
-                    trackers[i] = new ServiceTracker(context, depClazz.getName(), new BijectiveTracker(i));
-                    trackers[i].open();
+                    listener = new BijectiveTracker(depName, i);
                 }
+                subscriptions[i] = SharedTrackers.subscribe(context, depName, listener);
                 i++;
             }
+            StartupTimeline.span(clazz.getClassName(), interfaceClass.getName(), StartupTimeline.TRACKERS_OPENED, null, start);
+        }
+        // Register now if there are no required dependencies
+        if (binder.state().version == 0) {
+            binder.rebind();
         }
     }
 
     public void stop() {
-        for (int i = 0; i < trackers.length; i++) {
+        final LazyFactory unused = placeholder.getAndSet(null);
+        if (unused != null) {
             try {
-                trackers[i].close();
-            } catch (Exception x) {
+                unused.registration.unregister();
+            } catch (IllegalStateException x) {
+                // Already unregistered, e.g., as the bundle stopped
+            }
+        }
+        for (int i = 0; i < subscriptions.length; i++) {
+            if (subscriptions[i] != null) {
+                try {
+                    SharedTrackers.unsubscribe(subscriptions[i]);
+                } catch (Exception x) {
+                }
             }
         }
     }
 
     private void setCollArg(int i, ServiceCollectionImpl<?> coll) {
-        ServiceReference[] refs = null;
-        ServiceCollection[] colls = null;
-        synchronized (arguments) {
-            if (arguments[i] == null && !coll.isEmpty()) {
-                collections[i] = coll;
-                if(clazz.isNonEmpty()[i])
-                    satisfied++;
-            } else if (arguments[i] != null && coll.isEmpty()) {
-                collections[i] = null;
-                if(clazz.isNonEmpty()[i])
-                    satisfied--;
-            } else {
-                return;
-            }
-
-            // We have just reached the latching condition
-            if (satisfied == arguments.length) {
-                refs = new ServiceReference[arguments.length];
-                System.arraycopy(arguments, 0, refs, 0, arguments.length);
-                colls = new ServiceCollection<?>[collections.length];
-                System.arraycopy(collections, 0, colls, 0, collections.length);
-            }
+        // Counting references does not get the services, which would 
+        // activate lazy components
+        if (!coll.hasReferences()) {
+            binder.unbind(i, coll);
+        } else {
+            binder.bind(i, coll);
         }
-        bindArgs(refs, colls);
     }
 
     private void setArg(int i, ServiceReference sr) {
-        ServiceReference[] refs = null;
-        ServiceCollection[] colls = null;
-        if(verbose) {
-            System.err.println("Adding " + sr.getProperty("component.name") + " to " + clazz.getClassName() + " (" + satisfied + "/" + collections.length + ")");
-        }
-        // First we set the arguments object
-        synchronized (arguments) {
-            // We are removing an argument
-            if (sr == null) {
-                if (arguments[i] == null) {
-                    satisfied--;
-                }
-                arguments[i] = null;
-            } else {
-                if (arguments[i] == null) {
-                    satisfied++;
-                }
-                arguments[i] = sr;
-                // We have just reached the latching condition
-                if (satisfied == arguments.length) {
-                    refs = new ServiceReference[arguments.length];
-                    System.arraycopy(arguments, 0, refs, 0, arguments.length);
-                    colls = new ServiceCollection<?>[collections.length];
-                    System.arraycopy(collections, 0, colls, 0, collections.length);
-                }
-            }
+        if (verbose) {
+            System.err.println("Adding " + sr.getProperty("component.name") + " to " + clazz.getClassName());
+        }
+        if (binder.bind(i, sr)) {
+            log("Binding " + sr + " to " + clazz.getClassName());
         }
-
-        log("Binding " + sr.toString() + " to " + clazz.getClassName());
-
-        bindArgs(refs, colls);
     }
 
-    private void bindArgs(ServiceReference[] refs, ServiceCollection[] colls) {
-        if (refs != null) {
-            log(clazz.getClassName() + " is satisifed, starting as factory");
-            final ServiceFactoryImpl instance = new ServiceFactoryImpl(refs, colls, context, clazz);
-            final Hashtable<Object, Object> props = new Hashtable<Object, Object>();
-            props.put("component.name", clazz.getClassName());
-            final ServiceRegistration newReg = context.registerService(interfaceClass.getName(), instance, props);
-            // oldReg is used to track the old registration, note we do not unregister
-            // in the locked code as this could deadlock the system
-            ServiceRegistration oldReg = null;
-            // Note we only synchronize on the value of the registration
-            synchronized (regLock) {
-                if (registration != null) {
-                    oldReg = registration;
-                }
-                registration = newReg;
-            }
-            if (oldReg != null) {
-                oldReg.unregister();
+    private void unsetArg(int i, ServiceReference sr) {
+        if (binder.unbind(i, sr)) {
+            log("Unbinding " + sr + " from " + clazz.getClassName());
+            // Fall back to another service of the same interface if there is one
+            final ServiceReference other = subscriptions[i] == null ? null : subscriptions[i].other(sr);
+            if (other != null) {
+                setArg(i, other);
             }
+        }
+    }
+
+    private ServiceRegistration registerComponent(BindingState state) {
+        final long start = StartupTimeline.start();
+        final Object service;
+        if (state.size() == 0 && !clazz.isPooled() && clazz.getScope() == null) {
+            // Start immediately, pooled and scoped instances are got per request
+            service = clazz.newInstance(new Object[0]);
+            StartupTimeline.span(clazz.getClassName(), interfaceClass.getName(), StartupTimeline.CONSTRUCTED, null, start);
         } else {
-            ServiceRegistration oldReg = null;
-            synchronized (regLock) {
-                if (registration != null) {
-                    oldReg = registration;
-                    registration = null;
+            log(clazz.getClassName() + " is satisifed, starting as factory");
+            final ServiceReference[] refs = new ServiceReference[state.size()];
+            final ServiceCollection<?>[] colls = new ServiceCollection<?>[state.size()];
+            for (int i = 0; i < state.size(); i++) {
+                if (state.get(i) instanceof ServiceReference) {
+                    refs[i] = (ServiceReference) state.get(i);
+                } else {
+                    colls[i] = (ServiceCollection<?>) state.get(i);
                 }
             }
-            clazz.resetSingleton();
-            if (oldReg != null) {
-                oldReg.unregister();
-            }
+            service = new ServiceFactoryImpl(refs, colls, context, clazz);
+        }
+        final LazyFactory lazyFactory = placeholder.getAndSet(null);
+        if (lazyFactory != null) {
+            // The placeholder becomes the first registration
+            lazyFactory.delegate = service;
+            return lazyFactory.registration;
+        }
+        final Hashtable<Object, Object> props = new Hashtable<Object, Object>(properties);
+        props.put("component.name", clazz.getClassName());
+        final ServiceRegistration registration = context.registerService(interfaceClass.getName(), service, props);
+        StartupTimeline.instant(clazz.getClassName(), interfaceClass.getName(), StartupTimeline.REGISTERED, null);
+        return registration;
+    }
+
+    private void dependencySatisfied(int i) {
+        if (StartupTimeline.isEnabled()) {
+            StartupTimeline.instant(clazz.getClassName(), interfaceClass.getName(), StartupTimeline.DEPENDENCY_SATISFIED,
+                    InjectableClass.getRealType(clazz.dependencies()[i]).getName());
+        }
+    }
+
+    private void trackerEvent(String dependency, String event) {
+        final ServiceMetrics metrics = Metrics.get();
+        if (metrics != null) {
+            metrics.trackerEvent(clazz.getClassName(), dependency, event);
         }
     }
 
     // Track a 1-to-1 dependency
-    private class BijectiveTracker implements ServiceTrackerCustomizer {
+    private class BijectiveTracker implements SharedTrackers.Listener {
+        private final String dependency;
         private final int i;
 
-        public BijectiveTracker(int i) {
+        public BijectiveTracker(String dependency, int i) {
+            this.dependency = dependency;
             this.i = i;
         }
 
         @Override
-        public Object addingService(ServiceReference sr) {
+        public void added(ServiceReference sr) {
+            trackerEvent(dependency, "added");
             setArg(i, sr);
-            return null;
         }
 
         @Override
-        public void modifiedService(ServiceReference sr, Object o) {
-            setArg(i, null);
-            setArg(i, sr);
+        public void modified(ServiceReference sr) {
+            trackerEvent(dependency, "modified");
+            if (binder.state().get(i) == sr) {
+                // Register again so that the new properties are seen
+                binder.rebind();
+            } else {
+                setArg(i, sr);
+            }
         }
 
         @Override
-        public void removedService(ServiceReference sr, Object o) {
-            setArg(i, null);
+        public void removed(ServiceReference sr) {
+            trackerEvent(dependency, "removed");
+            unsetArg(i, sr);
         }
     }
 
     // Indicates a many-to-1 mapping
-    private class InjectiveTracker implements ServiceTrackerCustomizer {
+    private class InjectiveTracker implements SharedTrackers.Listener {
+        private final String dependency;
         private final ServiceCollectionImpl<?> collection;
 
-        public InjectiveTracker(ServiceCollectionImpl<?> collection) {
+        public InjectiveTracker(String dependency, ServiceCollectionImpl<?> collection) {
+            this.dependency = dependency;
             this.collection = collection;
         }
 
         @Override
-        public Object addingService(ServiceReference sr) {
+        public void added(ServiceReference sr) {
+            trackerEvent(dependency, "added");
             collection.add(sr);
-            return null;
         }
 
         @Override
-        public void modifiedService(ServiceReference sr, Object o) {
-            collection.add(sr);
+        public void modified(ServiceReference sr) {
+            trackerEvent(dependency, "modified");
+            collection.modified(sr);
         }
 
         @Override
-        public void removedService(ServiceReference sr, Object o) {
+        public void removed(ServiceReference sr) {
+            trackerEvent(dependency, "removed");
             collection.remove(sr);
         }
     }
 
-    private class BinjectiveTracker implements ServiceTrackerCustomizer {
+    private class BinjectiveTracker implements SharedTrackers.Listener {
+        private final String dependency;
         private ServiceCollectionImpl<?> collection;
         private final int i;
 
-        public BinjectiveTracker(int i) {
+        public BinjectiveTracker(String dependency, int i) {
+            this.dependency = dependency;
             this.collection = new ServiceCollectionImpl<Object>(context);
             this.i = i;
         }
 
         @Override
-        public Object addingService(ServiceReference sr) {
+        public void added(ServiceReference sr) {
+            trackerEvent(dependency, "added");
             collection.add(sr);
             setCollArg(i, collection);
-            return null;
         }
 
         @Override
-        public void modifiedService(ServiceReference sr, Object o) {
-            collection.add(sr);
+        public void modified(ServiceReference sr) {
+            trackerEvent(dependency, "modified");
+            collection.modified(sr);
             setCollArg(i, collection);
         }
 
         @Override
-        public void removedService(ServiceReference sr, Object o) {
+        public void removed(ServiceReference sr) {
+            trackerEvent(dependency, "removed");
             collection.remove(sr);
             setCollArg(i, collection);
         }
     }
 
     private static class ServiceCollectionImpl<D> extends AbstractCollection<D> implements ServiceCollection<D> {
-        // We synchronize on this object
+        // Copied on write so iteration needs no lock
 
-        private final HashSet<ServiceReference> objects = new HashSet<ServiceReference>();
+        private final CopyOnWriteArraySet<ServiceReference> objects = new CopyOnWriteArraySet<ServiceReference>();
+        private final CopyOnWriteArrayList<ServiceCollectionListener<? super D>> listeners = new CopyOnWriteArrayList<ServiceCollectionListener<? super D>>();
         private final BundleContext context;
+        private static final int ADDED = 0, REMOVED = 1, MODIFIED = 2;
 
         public ServiceCollectionImpl(BundleContext context) {
             this.context = context;
         }
 
+        /**
+         * Whether any service is tracked, which may be more than can be got
+         */
+        public boolean hasReferences() {
+            return !objects.isEmpty();
+        }
+
         @Override
         public boolean isEmpty() {
             final ServiceIterator<D> iterator = iterator();
@@ -318,26 +456,103 @@ public class OSGiComponent<C> {
         }
 
         public void add(ServiceReference sr) {
-            synchronized (objects) {
-                objects.add(sr);
+            if (objects.add(sr)) {
+                fire(sr, ADDED);
             }
         }
 
         public void remove(ServiceReference sr) {
-            synchronized (objects) {
-                objects.remove(sr);
+            // Listeners are told before the reference is removed, while the 
+            // service can still be got
+            if (objects.contains(sr)) {
+                fire(sr, REMOVED);
+            }
+            objects.remove(sr);
+        }
+
+        public void modified(ServiceReference sr) {
+            if (objects.add(sr)) {
+                fire(sr, ADDED);
+            } else {
+                fire(sr, MODIFIED);
+            }
+        }
+
+        @Override
+        public void addListener(ServiceCollectionListener<? super D> listener) {
+            listeners.add(listener);
+            for (ServiceReference sr : objects) {
+                notify(listener, sr, ADDED);
+            }
+        }
+
+        @Override
+        public void removeListener(ServiceCollectionListener<? super D> listener) {
+            listeners.remove(listener);
+        }
+
+        private void fire(ServiceReference sr, int event) {
+            for (ServiceCollectionListener<? super D> listener : listeners) {
+                notify(listener, sr, event);
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private void notify(ServiceCollectionListener<? super D> listener, ServiceReference sr, int event) {
+            final Object service = context.getService(sr);
+            if (service == null) {
+                return;
+            }
+            try {
+                final ReferenceProperties props = new ReferenceProperties();
+                props.reference = sr;
+                switch (event) {
+                    case ADDED:
+                        listener.serviceAdded((D) service, props);
+                        break;
+                    case REMOVED:
+                        listener.serviceRemoved((D) service, props);
+                        break;
+                    default:
+                        listener.serviceModified((D) service, props);
+                }
+            } catch (RuntimeException x) {
+                log("Listener failed: " + x.getMessage());
+            } finally {
+                context.ungetService(sr);
             }
         }
 
         @Override
         public ServiceIterator<D> iterator() {
-            LinkedList<ServiceReference> objectsCopy;
-            // Create copy otherwise the collection could be concurrently modified
-            // during iteration
-            synchronized (objects) {
-                objectsCopy = new LinkedList<ServiceReference>(objects);
+            // The iterator is over a snapshot so it is not affected by
+            // concurrent modification
+            return new ServiceIteratorImpl<D>(objects.iterator(), context);
+        }
+
+        @Override
+        public Object[] toArray() {
+            // Get each service once, rather than once for size() and again to iterate
+            final ArrayList<Object> services = new ArrayList<Object>(objects.size());
+            final ServiceIterator<D> iterator = iterator();
+            while (iterator.hasNext()) {
+                services.add(iterator.next());
+            }
+            return services.toArray();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void forEachService(BiConsumer<? super D, ? super Map<String, Object>> action) {
+            final ReferenceProperties props = new ReferenceProperties();
+            for (ServiceReference sr : objects) {
+                final Object service = context.getService(sr);
+                if (service != null) {
+                    context.ungetService(sr);
+                    props.reference = sr;
+                    action.accept((D) service, props);
+                }
             }
-            return new ServiceIteratorImpl<D>(objectsCopy.iterator(), context);
         }
     }
 
@@ -375,10 +590,8 @@ public class OSGiComponent<C> {
             if (lastRef == null) {
                 throw new IllegalStateException();
             }
-            final HashMap<String, Object> props = new HashMap<String, Object>();
-            for (String key : lastRef.getPropertyKeys()) {
-                props.put(key, lastRef.getProperty(key));
-            }
+            final ReferenceProperties props = new ReferenceProperties();
+            props.reference = lastRef;
             return props;
         }
 
@@ -446,6 +659,48 @@ public class OSGiComponent<C> {
         }
     }
 
+    /**
+     * Registered in lazy mode before the component is activated. The component
+     * is activated when the service is first got, and if it is satisfied the 
+     * placeholder is adopted as its registration.
+     */
+    private class LazyFactory implements ServiceFactory {
+
+        volatile ServiceRegistration registration;
+        // The service or service factory once adopted
+        volatile Object delegate;
+
+        @Override
+        public Object getService(Bundle bundle, ServiceRegistration sr) {
+            // May be called before registerService has returned
+            if (registration == null) {
+                registration = sr;
+            }
+            if (!activated) {
+                final long start = StartupTimeline.start();
+                activate();
+                StartupTimeline.span(clazz.getClassName(), interfaceClass.getName(), StartupTimeline.ACTIVATED, null, start);
+            }
+            final Object d = delegate;
+            if (d == null) {
+                log(clazz.getClassName() + " was requested but its dependencies are not satisfied");
+                return null;
+            } else if (d instanceof ServiceFactory) {
+                return ((ServiceFactory) d).getService(bundle, sr);
+            } else {
+                return d;
+            }
+        }
+
+        @Override
+        public void ungetService(Bundle bundle, ServiceRegistration sr, Object o) {
+            final Object d = delegate;
+            if (d instanceof ServiceFactory) {
+                ((ServiceFactory) d).ungetService(bundle, sr, o);
+            }
+        }
+    }
+
     private static class ServiceFactoryImpl implements ServiceFactory {
 
         private final ServiceReference[] refs;
@@ -454,7 +709,7 @@ public class OSGiComponent<C> {
         private final InjectableClass<?> clazz;
 
         public ServiceFactoryImpl(ServiceReference[] refs, ServiceCollection[] colls, BundleContext context, InjectableClass<?> clazz) {
-            assert (this.refs.length == this.colls.length);
+            assert (refs.length == colls.length);
             this.refs = refs;
             this.colls = colls;
             this.context = context;
@@ -466,12 +721,23 @@ public class OSGiComponent<C> {
             if (verbose) {
                 System.err.println("Instantiating " + clazz.getClassName());
             }
+            final Object cached = clazz.cachedInstance();
+            if (cached != null) {
+                return cached;
+            }
             Object[] objs = new Object[refs.length];
             for (int i = 0; i < refs.length; i++) {
                 if (refs[i] != null) {
                     objs[i] = context.getService(refs[i]);
                     if (objs[i] == null) {
+                        // The framework reports the service as unavailable
                         log("Failed to get " + (i + 1) + "th argument of " + clazz.getClassName());
+                        for (int j = 0; j < i; j++) {
+                            if (refs[j] != null) {
+                                context.ungetService(refs[j]);
+                            }
+                        }
+                        return null;
                     }
                 } else if (colls[i] != null) {
                     objs[i] = colls[i];
@@ -482,7 +748,10 @@ public class OSGiComponent<C> {
             }
             try {
                 log("Calling constructor of " + clazz.getClassName());
-                return clazz.newInstance(objs);
+                final long start = StartupTimeline.start();
+                final Object instance = clazz.newInstance(objs);
+                StartupTimeline.span(clazz.getClassName(), null, StartupTimeline.CONSTRUCTED, null, start);
+                return instance;
             } catch (RuntimeException x) {
                 log("Failed to create object " + x.getMessage());
                 throw x;
@@ -491,6 +760,12 @@ public class OSGiComponent<C> {
 
         @Override
         public void ungetService(Bundle bundle, ServiceRegistration sr, Object o) {
+            // Collections unget a service as soon as they have got it, while
+            // the consumer still uses it. A pooled instance is returned by the
+            // consumer (see Services.release), or here if the consumer is gone
+            if (bundle.getState() != Bundle.ACTIVE && bundle.getState() != Bundle.STARTING) {
+                InstancePool.release(o);
+            }
         }
     }
 }
@@ -0,0 +1,67 @@
+/**
+ * ********************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.framework.services.impl;
+
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Resolves the providers of a service that are found by other means than 
+ * reading descriptors, i.e., by {@code java.util.ServiceLoader} on Java 9 or
+ * later. The implementation is compiled separately for Java 9 and is only 
+ * present in the versioned part of the multi-release jar, see 
+ * {@link StdResolver}.
+ *
+ * @author John McCrae
+ */
+interface ProviderResolver {
+
+    /**
+     * Create the first provider that can be created
+     *
+     * @param serviceClass The service
+     * @param snapshot The snapshot to record the provider in, or null
+     * @return The service or null if there are no providers
+     * @throws ServiceLoadException If no provider could be created
+     */
+    <S> S resolveFirst(Class<S> serviceClass, WiringSnapshot snapshot);
+
+    /**
+     * Create all providers, except those whose type has already been 
+     * resolved, e.g., from {@code META-INF/components}
+     *
+     * @param serviceClass The service
+     * @param resolved The types of the implementations already resolved, 
+     * which are not instantiated again. The providers created are added
+     * @param bindings The list to record the providers in, or null. Null is 
+     * added for a provider that cannot be recorded
+     * @return The services
+     * @throws ServiceLoadException If there were providers but none could be
+     * created
+     */
+    <S> List<S> resolveAll(Class<S> serviceClass, Set<Class<?>> resolved, List<WiringSnapshot.Binding> bindings);
+}
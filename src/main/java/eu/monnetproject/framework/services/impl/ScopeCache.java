@@ -0,0 +1,189 @@
+/**
+ * ********************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.framework.services.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * The instances of a scope. Each scope is confined to a single thread, except
+ * that the thread scopes of all threads are purged when a class loader is 
+ * disposed, so instances are accessed under the monitor of the scope, which 
+ * is uncontended otherwise.
+ *
+ * @author John McCrae
+ */
+public final class ScopeCache {
+
+    public static final int DEFAULT_MAX_INSTANCES = Integer.parseInt(System.getProperty("eu.monnetproject.framework.services.scope.max", "64"));
+    // The thread scopes of live threads, so that they can be purged
+    private static final Map<ScopeCache, Boolean> threadScopes = Collections.synchronizedMap(new WeakHashMap<ScopeCache, Boolean>());
+    private static final ThreadLocal<ScopeCache> threadScope = new ThreadLocal<ScopeCache>() {
+        @Override
+        protected ScopeCache initialValue() {
+            final ScopeCache cache = new ScopeCache("thread", DEFAULT_MAX_INSTANCES);
+            threadScopes.put(cache, Boolean.TRUE);
+            return cache;
+        }
+    };
+    private static final ThreadLocal<ArrayList<ScopeCache>> openScopes = new ThreadLocal<ArrayList<ScopeCache>>() {
+        @Override
+        protected ArrayList<ScopeCache> initialValue() {
+            return new ArrayList<ScopeCache>();
+        }
+    };
+    private final String name;
+    private final Thread owner;
+    private final LinkedHashMap<InjectableClass<?>, Object> instances;
+    private boolean closed = false;
+
+    private ScopeCache(String name, final int maxInstances) {
+        this.name = name;
+        this.owner = Thread.currentThread();
+        this.instances = new LinkedHashMap<InjectableClass<?>, Object>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<InjectableClass<?>, Object> eldest) {
+                return size() > maxInstances;
+            }
+        };
+    }
+
+    /**
+     * Open a new scope on the current thread
+     *
+     * @param name The scope name
+     * @param maxInstances The maximum number of instances held by the scope
+     * @return The scope
+     */
+    public static ScopeCache open(String name, int maxInstances) {
+        if (maxInstances <= 0) {
+            throw new IllegalArgumentException("Scope must hold at least one instance");
+        }
+        final ScopeCache cache = new ScopeCache(name, maxInstances);
+        openScopes.get().add(cache);
+        return cache;
+    }
+
+    /**
+     * Close a scope
+     *
+     * @param cache The scope
+     * @throws IllegalStateException If the scope is not open on this thread
+     */
+    public static void close(ScopeCache cache) {
+        if (cache.owner != Thread.currentThread()) {
+            throw new IllegalStateException("Scope " + cache.name + " was opened by another thread");
+        }
+        if (!cache.closed) {
+            openScopes.get().remove(cache);
+            synchronized (cache) {
+                cache.instances.clear();
+            }
+            cache.closed = true;
+        }
+    }
+
+    /**
+     * Discard the thread scope of the current thread
+     */
+    public static void clearThreadScope() {
+        final ScopeCache cache = threadScope.get();
+        threadScope.remove();
+        threadScopes.remove(cache);
+        synchronized (cache) {
+            cache.instances.clear();
+        }
+    }
+
+    /**
+     * Remove the instances of classes loaded by a class loader or its 
+     * descendants from the thread scopes of all threads
+     *
+     * @param loader The class loader
+     * @return The number of instances removed
+     */
+    public static int purge(ClassLoader loader) {
+        final ScopeCache[] caches;
+        synchronized (threadScopes) {
+            caches = threadScopes.keySet().toArray(new ScopeCache[threadScopes.size()]);
+        }
+        int n = 0;
+        for (ScopeCache cache : caches) {
+            synchronized (cache) {
+                final Iterator<Object> it = cache.instances.values().iterator();
+                while (it.hasNext()) {
+                    if (SingletonStore.loadedBy(it.next().getClass(), loader)) {
+                        it.remove();
+                        n++;
+                    }
+                }
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Get the innermost open scope of the current thread
+     *
+     * @param name The scope name
+     * @return The scope or null if no scope of this name is open
+     */
+    public static ScopeCache current(String name) {
+        if (name.equals("thread")) {
+            return threadScope.get();
+        }
+        final ArrayList<ScopeCache> scopes = openScopes.get();
+        for (int i = scopes.size() - 1; i >= 0; i--) {
+            if (scopes.get(i).name.equals(name)) {
+                return scopes.get(i);
+            }
+        }
+        return null;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public synchronized int size() {
+        return instances.size();
+    }
+
+    synchronized Object get(InjectableClass<?> key) {
+        return instances.get(key);
+    }
+
+    synchronized void put(InjectableClass<?> key, Object instance) {
+        instances.put(key, instance);
+    }
+}
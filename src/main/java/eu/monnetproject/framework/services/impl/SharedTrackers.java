@@ -0,0 +1,328 @@
+/**
+ * ********************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.framework.services.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.osgi.util.tracker.ServiceTracker;
+import org.osgi.util.tracker.ServiceTrackerCustomizer;
+
+/**
+ * Shares one service tracker per interface between all the components that
+ * depend on it. The trackers are opened on the context of the services bundle
+ * and are reference counted, so a tracker is closed when the last component
+ * using it stops. Events are passed to each subscribed component for which
+ * the service is visible. A component that subscribes to an open tracker is
+ * first told about the services already tracked.
+ *
+ * Sharing can be disabled with the system property
+ * {@code eu.monnetproject.framework.services.sharedTrackers=false}, in which
+ * case trackers are only shared by components of the same bundle.
+ *
+ * @author John McCrae
+ */
+final class SharedTrackers {
+
+    private static final boolean enabled = Boolean.parseBoolean(System.getProperty("eu.monnetproject.framework.services.sharedTrackers", "true"));
+    private static volatile BundleContext sharedContext;
+    // Guards the entries and their counts, but is not held while opening or
+    // closing trackers or calling subscribers
+    private static final ReentrantLock lock = new ReentrantLock();
+    private static final HashMap<Key, Entry> entries = new HashMap<Key, Entry>();
+
+    private SharedTrackers() {
+    }
+
+    /**
+     * Receives the events of a shared tracker
+     */
+    interface Listener {
+
+        void added(ServiceReference sr);
+
+        void modified(ServiceReference sr);
+
+        void removed(ServiceReference sr);
+    }
+
+    private static final class Key {
+
+        final BundleContext context;
+        final String className;
+
+        Key(BundleContext context, String className) {
+            this.context = context;
+            this.className = className;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return context == other.context && className.equals(other.className);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(context) + className.hashCode();
+        }
+    }
+
+    private static final class Entry implements ServiceTrackerCustomizer {
+
+        final Key key;
+        final ServiceTracker tracker;
+        final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<Subscription>();
+        int count;
+
+        Entry(Key key) {
+            this.key = key;
+            this.tracker = new ServiceTracker(key.context, key.className, this);
+        }
+
+        @Override
+        public Object addingService(ServiceReference sr) {
+            for (Subscription subscription : subscriptions) {
+                subscription.added(sr);
+            }
+            // Returning the reference means we are told when it is removed
+            return sr;
+        }
+
+        @Override
+        public void modifiedService(ServiceReference sr, Object o) {
+            for (Subscription subscription : subscriptions) {
+                subscription.modified(sr);
+            }
+        }
+
+        @Override
+        public void removedService(ServiceReference sr, Object o) {
+            for (Subscription subscription : subscriptions) {
+                subscription.removed(sr);
+            }
+        }
+    }
+
+    /**
+     * The subscription of a component to a tracker
+     */
+    static final class Subscription {
+
+        private final Entry entry;
+        private final Bundle bundle;
+        private final Listener listener;
+        // The references passed to the listener (TRUE) and, while replaying,
+        // those removed before they were replayed (FALSE)
+        private final ConcurrentMap<ServiceReference, Boolean> seen = new ConcurrentHashMap<ServiceReference, Boolean>();
+        private volatile boolean replaying = true;
+        private volatile boolean closed = false;
+
+        private Subscription(Entry entry, Bundle bundle, Listener listener) {
+            this.entry = entry;
+            this.bundle = bundle;
+            this.listener = listener;
+        }
+
+        private boolean visible(ServiceReference sr) {
+            return bundle == null || sr.isAssignableTo(bundle, entry.key.className);
+        }
+
+        private void added(ServiceReference sr) {
+            if (closed || !visible(sr)) {
+                return;
+            }
+            // Not passed on if already replayed or removed while replaying
+            if (seen.putIfAbsent(sr, Boolean.TRUE) == null) {
+                listener.added(sr);
+            }
+        }
+
+        private void modified(ServiceReference sr) {
+            if (!closed && Boolean.TRUE.equals(seen.get(sr))) {
+                listener.modified(sr);
+            }
+        }
+
+        private void removed(ServiceReference sr) {
+            final Boolean previous = replaying ? seen.put(sr, Boolean.FALSE) : seen.remove(sr);
+            if (Boolean.TRUE.equals(previous)) {
+                listener.removed(sr);
+            }
+        }
+
+        private void replay() {
+            final ServiceReference[] refs = entry.tracker.getServiceReferences();
+            if (refs != null) {
+                for (ServiceReference sr : refs) {
+                    added(sr);
+                }
+            }
+            replaying = false;
+            for (Map.Entry<ServiceReference, Boolean> e : seen.entrySet()) {
+                if (!e.getValue()) {
+                    seen.remove(e.getKey(), Boolean.FALSE);
+                }
+            }
+        }
+
+        /**
+         * Get a reference passed to the listener other than a given one
+         *
+         * @param except The reference not to return
+         * @return A reference or null if there is none or the subscription is
+         * closed
+         */
+        ServiceReference other(ServiceReference except) {
+            if (closed) {
+                return null;
+            }
+            for (Map.Entry<ServiceReference, Boolean> e : seen.entrySet()) {
+                if (e.getValue() && e.getKey() != except) {
+                    return e.getKey();
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Share trackers through the context of the services bundle
+     *
+     * @param context The context or null to stop sharing between bundles
+     */
+    static void setContext(BundleContext context) {
+        sharedContext = enabled ? context : null;
+    }
+
+    /**
+     * Subscribe a component to the services of an interface. The listener is
+     * told about services already tracked before this method returns
+     *
+     * @param context The context of the component's bundle, used if the
+     * tracker is not shared between bundles
+     * @param className The name of the interface
+     * @param listener The listener
+     * @return The subscription
+     */
+    static Subscription subscribe(BundleContext context, String className, Listener listener) {
+        final BundleContext shared = sharedContext;
+        final Key key = new Key(shared != null ? shared : context, className);
+        final Subscription subscription;
+        final boolean open;
+        lock.lock();
+        try {
+            Entry entry = entries.get(key);
+            open = entry == null;
+            if (open) {
+                entry = new Entry(key);
+                entries.put(key, entry);
+            }
+            entry.count++;
+            subscription = new Subscription(entry, shared != null ? context.getBundle() : null, listener);
+            entry.subscriptions.add(subscription);
+        } finally {
+            lock.unlock();
+        }
+        if (open) {
+            if (shared != null) {
+                // Track services of all class spaces and check visibility per bundle
+                subscription.entry.tracker.open(true);
+            } else {
+                subscription.entry.tracker.open();
+            }
+        }
+        subscription.replay();
+        return subscription;
+    }
+
+    /**
+     * Unsubscribe a component. The listener is told that every service it was
+     * told about has been removed, and the tracker is closed if it has no other
+     * subscribers. The first exception thrown by the listener is thrown after
+     * the tracker has been closed
+     *
+     * @param subscription The subscription
+     */
+    static void unsubscribe(Subscription subscription) {
+        final Entry entry = subscription.entry;
+        final boolean close;
+        lock.lock();
+        try {
+            if (!entry.subscriptions.remove(subscription)) {
+                return;
+            }
+            close = --entry.count == 0;
+            if (close) {
+                entries.remove(entry.key);
+            }
+        } finally {
+            lock.unlock();
+        }
+        subscription.closed = true;
+        RuntimeException failure = null;
+        try {
+            for (ServiceReference sr : subscription.seen.keySet()) {
+                try {
+                    subscription.removed(sr);
+                } catch (RuntimeException x) {
+                    if (failure == null) {
+                        failure = x;
+                    }
+                }
+            }
+        } finally {
+            if (close) {
+                entry.tracker.close();
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * The number of open trackers
+     */
+    static int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
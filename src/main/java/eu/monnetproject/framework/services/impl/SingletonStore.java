@@ -0,0 +1,323 @@
+/**
+ * ********************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.framework.services.impl;
+
+import eu.monnetproject.framework.services.Singleton;
+import eu.monnetproject.framework.services.SingletonRetention;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the instances of {@link Singleton} classes. Each class has a slot that
+ * is attached to the class itself, so that the slot does not keep the class
+ * loader reachable. Instances are only disposed when they are explicitly 
+ * disposed; an idle instance is only forgotten, as the components it was 
+ * injected into may still use it.
+ *
+ * @author John McCrae
+ */
+public final class SingletonStore implements SingletonStoreMXBean {
+
+    public static final String OBJECT_NAME = "eu.monnetproject.framework.services:type=SingletonStore";
+    private static final SingletonRetention DEFAULT_RETENTION = defaultRetention();
+    private static final long DEFAULT_IDLE_TIMEOUT = Long.parseLong(System.getProperty("eu.monnetproject.framework.services.singleton.idleTimeout", "300000"));
+    // How often idle slots of other classes are checked when a singleton is requested
+    private static final long SWEEP_INTERVAL = 1000000000l;
+    private static final Map<Slot, Boolean> slots = Collections.synchronizedMap(new WeakHashMap<Slot, Boolean>());
+    private static final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+    private static final ClassValue<Slot> classSlots = new ClassValue<Slot>() {
+        @Override
+        protected Slot computeValue(Class<?> type) {
+            final Slot slot = new Slot(type);
+            slots.put(slot, Boolean.TRUE);
+            return slot;
+        }
+    };
+
+    private static SingletonRetention defaultRetention() {
+        final String value = System.getProperty("eu.monnetproject.framework.services.singleton.retention", "strong");
+        try {
+            final SingletonRetention retention = SingletonRetention.valueOf(value.toUpperCase());
+            return retention == SingletonRetention.DEFAULT ? SingletonRetention.STRONG : retention;
+        } catch (IllegalArgumentException x) {
+            System.err.println("Unknown singleton retention " + value + ", using strong");
+            return SingletonRetention.STRONG;
+        }
+    }
+
+    // Distinguishes a softly held instance from an instance that is itself a reference
+    private static final class Soft extends SoftReference<Object> {
+
+        Soft(Object referent) {
+            super(referent);
+        }
+    }
+
+    /**
+     * The instance of a class. The instance is swapped by compare-and-set so 
+     * that requesting a singleton never blocks.
+     */
+    static final class Slot {
+
+        final Class<?> clazz;
+        final SingletonRetention retention;
+        final long idleTimeout;
+        // The instance, wrapped in Soft for soft retention
+        private final AtomicReference<Object> ref = new AtomicReference<Object>();
+        private volatile long lastAccess;
+
+        Slot(Class<?> clazz) {
+            this.clazz = clazz;
+            final Singleton singleton = clazz.getAnnotation(Singleton.class);
+            final SingletonRetention r = singleton == null ? SingletonRetention.DEFAULT : singleton.retention();
+            this.retention = r == SingletonRetention.DEFAULT ? DEFAULT_RETENTION : r;
+            this.idleTimeout = (singleton == null || singleton.idleTimeout() <= 0 ? DEFAULT_IDLE_TIMEOUT : singleton.idleTimeout()) * 1000000l;
+        }
+
+        private static Object unwrap(Object value) {
+            return value instanceof Soft ? ((Soft) value).get() : value;
+        }
+
+        Object get(long now) {
+            // Mark the access before reading, see removeIfIdle
+            lastAccess = now;
+            return unwrap(ref.get());
+        }
+
+        Object putIfAbsent(Object o, long now) {
+            final Object value = retention == SingletonRetention.SOFT ? new Soft(o) : o;
+            while (true) {
+                final Object current = ref.get();
+                final Object existing = unwrap(current);
+                if (existing != null) {
+                    lastAccess = now;
+                    return existing;
+                }
+                if (ref.compareAndSet(current, value)) {
+                    lastAccess = now;
+                    return null;
+                }
+            }
+        }
+
+        Object remove() {
+            while (true) {
+                final Object current = ref.get();
+                if (current == null) {
+                    return null;
+                }
+                if (ref.compareAndSet(current, null)) {
+                    return unwrap(current);
+                }
+            }
+        }
+
+        Object removeIfIdle(long now) {
+            if (retention != SingletonRetention.IDLE) {
+                return null;
+            }
+            final long accessed = lastAccess;
+            final Object current = ref.get();
+            if (current == null || now - accessed <= idleTimeout || !ref.compareAndSet(current, null)) {
+                return null;
+            }
+            if (lastAccess != accessed) {
+                // Requested while we were removing it, so it may be in use.
+                // Put it back, or if it has already been replaced let the 
+                // garbage collector have it
+                ref.compareAndSet(null, current);
+                return null;
+            }
+            return current;
+        }
+    }
+
+    /**
+     * Get the instance of a singleton class
+     *
+     * @param clazz The class
+     * @return The instance or null if there is no instance
+     */
+    public static Object get(Class<?> clazz) {
+        final long now = System.nanoTime();
+        sweep(now);
+        final Slot slot = classSlots.get(clazz);
+        if (slot.removeIfIdle(now) != null) {
+            return null;
+        }
+        return slot.get(now);
+    }
+
+    /**
+     * Store the instance of a singleton class unless there already is one
+     *
+     * @param clazz The class
+     * @param instance The new instance
+     * @return The existing instance or null if the new instance was stored
+     */
+    public static Object putIfAbsent(Class<?> clazz, Object instance) {
+        return classSlots.get(clazz).putIfAbsent(instance, System.nanoTime());
+    }
+
+    /**
+     * Forget the instance of a singleton class, without disposing it
+     *
+     * @param clazz The class
+     */
+    public static void remove(Class<?> clazz) {
+        classSlots.get(clazz).remove();
+    }
+
+    /**
+     * The instances of all singletons, without counting as an access
+     */
+    static List<Object> instances() {
+        final ArrayList<Object> instances = new ArrayList<Object>();
+        for (Slot slot : slots()) {
+            final Object o = Slot.unwrap(slot.ref.get());
+            if (o != null) {
+                instances.add(o);
+            }
+        }
+        return instances;
+    }
+
+    /**
+     * Restart the idle time of all singletons after the JVM is restored from
+     * a checkpoint
+     */
+    static void restored() {
+        final long now = System.nanoTime();
+        for (Slot slot : slots()) {
+            slot.lastAccess = now;
+        }
+        lastSweep.set(now);
+    }
+
+    private static List<Slot> slots() {
+        synchronized (slots) {
+            return new ArrayList<Slot>(slots.keySet());
+        }
+    }
+
+    private static void sweep(long now) {
+        final long last = lastSweep.get();
+        if (now - last > SWEEP_INTERVAL && lastSweep.compareAndSet(last, now)) {
+            evictIdleSlots(now);
+        }
+    }
+
+    private static int evictIdleSlots(long now) {
+        int n = 0;
+        for (Slot slot : slots()) {
+            if (slot.removeIfIdle(now) != null) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    static boolean loadedBy(Class<?> clazz, ClassLoader loader) {
+        for (ClassLoader l = clazz.getClassLoader(); l != null; l = l.getParent()) {
+            if (l == loader) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Dispose the instances of all singletons whose implementation was loaded
+     * by a class loader or its descendants
+     *
+     * @param loader The class loader or null for all singletons
+     * @return The number of instances disposed
+     */
+    public static int dispose(ClassLoader loader) {
+        int n = 0;
+        for (Slot slot : slots()) {
+            if (loader == null || loadedBy(slot.clazz, loader)) {
+                final Object o = slot.remove();
+                if (o != null) {
+                    Disposer.dispose(o);
+                    n++;
+                }
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public int getSingletonCount() {
+        int n = 0;
+        for (Slot slot : slots()) {
+            if (Slot.unwrap(slot.ref.get()) != null) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public Map<String, String> getRetention() {
+        final TreeMap<String, String> map = new TreeMap<String, String>();
+        for (Slot slot : slots()) {
+            map.put(slot.clazz.getName(), slot.retention.name());
+        }
+        return map;
+    }
+
+    @Override
+    public Map<String, Long> getEstimatedSizes() {
+        final TreeMap<String, Long> map = new TreeMap<String, Long>();
+        for (Slot slot : slots()) {
+            // Do not count as an access
+            final Object o = Slot.unwrap(slot.ref.get());
+            if (o != null) {
+                map.put(slot.clazz.getName(), HeapEstimator.estimate(o));
+            }
+        }
+        return map;
+    }
+
+    @Override
+    public int evictIdle() {
+        return evictIdleSlots(System.nanoTime());
+    }
+
+    @Override
+    public int disposeAll() {
+        return dispose(null);
+    }
+}
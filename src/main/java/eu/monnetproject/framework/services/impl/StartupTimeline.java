@@ -0,0 +1,382 @@
+/**
+ * ********************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.framework.services.impl;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Records when components are discovered, wired and constructed. Recording is
+ * enabled by the system property
+ * {@code eu.monnetproject.framework.services.timeline}, in which case the
+ * timeline can be dumped through the MBean
+ * {@code eu.monnetproject.framework.services:type=StartupTimeline} or by calling
+ * {@link #writeJson(java.io.Writer)} or {@link #writeChromeTrace(java.io.Writer)}.
+ * Callers should check {@link #isEnabled()} before building event details.
+ * At most {@code eu.monnetproject.framework.services.timeline.max} (100000)
+ * events are kept, as components keep being constructed after startup, and 
+ * later events are only counted as dropped.
+ *
+ * @author John McCrae
+ */
+public final class StartupTimeline implements StartupTimelineMXBean {
+
+    public static final String TIMELINE_PROPERTY = "eu.monnetproject.framework.services.timeline";
+    public static final String MAX_EVENTS_PROPERTY = "eu.monnetproject.framework.services.timeline.max";
+    public static final String OBJECT_NAME = "eu.monnetproject.framework.services:type=StartupTimeline";
+    public static final String BUNDLE_SCANNED = "bundle-scanned";
+    public static final String DESCRIPTOR_PARSED = "descriptor-parsed";
+    public static final String TRACKERS_OPENED = "trackers-opened";
+    public static final String DEPENDENCY_SATISFIED = "dependency-satisfied";
+    public static final String REGISTERED = "registered";
+    public static final String CONSTRUCTED = "constructed";
+    public static final String ACTIVATED = "activated";
+    private static final int SLOWEST = 10;
+    private static volatile boolean enabled = false;
+    private static final long origin = System.nanoTime();
+    private static final ConcurrentLinkedQueue<Event> events = new ConcurrentLinkedQueue<Event>();
+    private static volatile int maxEvents = Integer.parseInt(System.getProperty(MAX_EVENTS_PROPERTY, "100000"));
+    // The number of events kept, which may briefly exceed the maximum by the number of recording threads
+    private static final AtomicInteger size = new AtomicInteger();
+    private static final AtomicLong dropped = new AtomicLong();
+
+    static {
+        if (Boolean.parseBoolean(System.getProperty(TIMELINE_PROPERTY, "false"))) {
+            setEnabled(true);
+        }
+    }
+
+    private StartupTimeline() {
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enable or disable recording. When enabled for the first time the MBean
+     * is registered.
+     */
+    public static synchronized void setEnabled(boolean enable) {
+        if (enable && !enabled) {
+            try {
+                final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                final ObjectName name = new ObjectName(OBJECT_NAME);
+                if (!server.isRegistered(name)) {
+                    server.registerMBean(new StartupTimeline(), name);
+                }
+            } catch (Exception x) {
+                System.err.println("Could not register " + OBJECT_NAME + ": " + x.getMessage());
+            }
+        }
+        enabled = enable;
+    }
+
+    /**
+     * Set the maximum number of events kept
+     */
+    static void setMaxEvents(int max) {
+        maxEvents = max;
+    }
+
+    private static void add(Event event) {
+        if (size.incrementAndGet() <= maxEvents) {
+            events.add(event);
+        } else {
+            size.decrementAndGet();
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Get the start time of a span
+     *
+     * @return The current time or 0 if recording is disabled
+     */
+    public static long start() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Record a phase that started at {@code start} and ends now
+     *
+     * @param component The component (implementation) or bundle name
+     * @param service The service interface name or null
+     * @param phase The phase
+     * @param detail Further information, e.g., the dependency, or null
+     * @param start The value of {@link #start()} when the phase began
+     */
+    public static void span(String component, String service, String phase, String detail, long start) {
+        if (enabled) {
+            add(new Event(component, service, phase, detail, start - origin, System.nanoTime() - start));
+        }
+    }
+
+    /**
+     * Record an instantaneous event
+     *
+     * @param component The component (implementation) or bundle name
+     * @param service The service interface name or null
+     * @param phase The phase
+     * @param detail Further information, e.g., the dependency, or null
+     */
+    public static void instant(String component, String service, String phase, String detail) {
+        if (enabled) {
+            add(new Event(component, service, phase, detail, System.nanoTime() - origin, -1));
+        }
+    }
+
+    private static List<Event> sortedEvents() {
+        final ArrayList<Event> list = new ArrayList<Event>(events);
+        Collections.sort(list);
+        return list;
+    }
+
+    /**
+     * Write all events, the critical path of dependency satisfaction and the
+     * slowest constructors as JSON, with the number of events dropped as the
+     * timeline was full. Times are in microseconds since the timeline was 
+     * created
+     *
+     * @param out The writer
+     */
+    public static void writeJson(Writer out) throws IOException {
+        final List<Event> list = sortedEvents();
+        out.write("{\n  \"events\": [");
+        boolean first = true;
+        for (Event e : list) {
+            out.write(first ? "\n    " : ",\n    ");
+            first = false;
+            out.write("{\"component\": " + quote(e.component) + ", \"service\": " + quote(e.service)
+                    + ", \"phase\": " + quote(e.phase) + ", \"detail\": " + quote(e.detail)
+                    + ", \"thread\": " + quote(e.thread) + ", \"start\": " + (e.start / 1000)
+                    + (e.duration >= 0 ? ", \"duration\": " + (e.duration / 1000) : "") + "}");
+        }
+        out.write("\n  ],\n  \"criticalPath\": [");
+        first = true;
+        for (Event e : criticalPath(list)) {
+            out.write(first ? "\n    " : ",\n    ");
+            first = false;
+            out.write("{\"component\": " + quote(e.component) + ", \"service\": " + quote(e.service)
+                    + ", \"satisfiedBy\": " + quote(e.detail) + ", \"registered\": " + (e.start / 1000) + "}");
+        }
+        out.write("\n  ],\n  \"slowestConstructors\": [");
+        first = true;
+        for (Event e : slowestConstructors(list)) {
+            out.write(first ? "\n    " : ",\n    ");
+            first = false;
+            out.write("{\"component\": " + quote(e.component) + ", \"start\": " + (e.start / 1000)
+                    + ", \"duration\": " + (e.duration / 1000) + "}");
+        }
+        out.write("\n  ],\n  \"dropped\": " + dropped.get() + "\n}\n");
+        out.flush();
+    }
+
+    /**
+     * Write all events in the Chrome trace-event format
+     *
+     * @param out The writer
+     */
+    public static void writeChromeTrace(Writer out) throws IOException {
+        out.write("{\"traceEvents\": [");
+        boolean first = true;
+        for (Event e : sortedEvents()) {
+            out.write(first ? "\n  " : ",\n  ");
+            first = false;
+            out.write("{\"name\": " + quote(e.phase + " " + e.component) + ", \"cat\": " + quote(e.phase)
+                    + ", \"pid\": 1, \"tid\": " + e.threadId + ", \"ts\": " + (e.start / 1000));
+            if (e.duration >= 0) {
+                out.write(", \"ph\": \"X\", \"dur\": " + (e.duration / 1000));
+            } else {
+                out.write(", \"ph\": \"i\", \"s\": \"t\"");
+            }
+            out.write(", \"args\": {\"service\": " + quote(e.service) + ", \"detail\": " + quote(e.detail) + "}}");
+        }
+        out.write("\n], \"displayTimeUnit\": \"ms\"}\n");
+        out.flush();
+    }
+
+    /**
+     * Follow the dependency that completed each component back from the 
+     * component that was registered last
+     */
+    private static List<Event> criticalPath(List<Event> list) {
+        // The dependency that was satisfied last before each component's first registration
+        final HashMap<String, String> lastDependency = new HashMap<String, String>();
+        final HashMap<String, Event> registered = new HashMap<String, Event>();
+        final HashMap<String, List<Event>> providers = new HashMap<String, List<Event>>();
+        for (Event e : list) {
+            if (e.phase.equals(DEPENDENCY_SATISFIED) && !registered.containsKey(e.component)) {
+                lastDependency.put(e.component, e.detail);
+            } else if (e.phase.equals(REGISTERED) && !registered.containsKey(e.component)) {
+                final Event r = new Event(e.component, e.service, e.phase, lastDependency.get(e.component), e.start, -1);
+                registered.put(e.component, r);
+                if (!providers.containsKey(e.service)) {
+                    providers.put(e.service, new ArrayList<Event>());
+                }
+                providers.get(e.service).add(r);
+            }
+        }
+        Event last = null;
+        for (Event e : registered.values()) {
+            if (last == null || e.start > last.start) {
+                last = e;
+            }
+        }
+        final LinkedList<Event> path = new LinkedList<Event>();
+        final HashSet<String> visited = new HashSet<String>();
+        while (last != null && visited.add(last.component)) {
+            path.addFirst(last);
+            Event next = null;
+            if (last.detail != null && providers.containsKey(last.detail)) {
+                for (Event p : providers.get(last.detail)) {
+                    if (p.start <= last.start && (next == null || p.start > next.start)) {
+                        next = p;
+                    }
+                }
+            }
+            last = next;
+        }
+        return path;
+    }
+
+    private static List<Event> slowestConstructors(List<Event> list) {
+        final ArrayList<Event> constructed = new ArrayList<Event>();
+        for (Event e : list) {
+            if (e.phase.equals(CONSTRUCTED)) {
+                constructed.add(e);
+            }
+        }
+        Collections.sort(constructed, new Comparator<Event>() {
+            @Override
+            public int compare(Event e1, Event e2) {
+                return e1.duration < e2.duration ? 1 : (e1.duration > e2.duration ? -1 : 0);
+            }
+        });
+        return constructed.subList(0, Math.min(SLOWEST, constructed.size()));
+    }
+
+    private static String quote(String s) {
+        if (s == null) {
+            return "null";
+        }
+        final StringBuilder sb = new StringBuilder(s.length() + 2).append('"');
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                sb.append('\\').append(c);
+            } else if (c < 0x20) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    @Override
+    public String getJson() {
+        final StringWriter out = new StringWriter();
+        try {
+            writeJson(out);
+        } catch (IOException x) {
+            throw new RuntimeException(x);
+        }
+        return out.toString();
+    }
+
+    @Override
+    public String getChromeTrace() {
+        final StringWriter out = new StringWriter();
+        try {
+            writeChromeTrace(out);
+        } catch (IOException x) {
+            throw new RuntimeException(x);
+        }
+        return out.toString();
+    }
+
+    @Override
+    public void dump(String fileName, String format) throws IOException {
+        final FileWriter out = new FileWriter(fileName);
+        try {
+            if ("chrome".equals(format)) {
+                writeChromeTrace(out);
+            } else {
+                writeJson(out);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    @Override
+    public void clear() {
+        reset();
+    }
+
+    /**
+     * Drop all events
+     */
+    static void reset() {
+        while (events.poll() != null) {
+            size.decrementAndGet();
+        }
+        dropped.set(0);
+    }
+
+    private static final class Event implements Comparable<Event> {
+
+        final String component, service, phase, detail, thread;
+        final long threadId, start, duration;
+
+        Event(String component, String service, String phase, String detail, long start, long duration) {
+            this.component = component;
+            this.service = service;
+            this.phase = phase;
+            this.detail = detail;
+            this.thread = Thread.currentThread().getName();
+            this.threadId = Thread.currentThread().getId();
+            this.start = start;
+            this.duration = duration;
+        }
+
+        @Override
+        public int compareTo(Event o) {
+            return start < o.start ? -1 : (start > o.start ? 1 : 0);
+        }
+    }
+}
@@ -28,9 +28,8 @@ package eu.monnetproject.framework.services.impl;
 
 import eu.monnetproject.framework.services.ServiceCollection;
 import eu.monnetproject.framework.services.ServiceLoadException;
-import java.io.BufferedReader;
+import eu.monnetproject.framework.services.ServiceMetrics;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
 import java.net.URL;
@@ -48,28 +47,155 @@ public class StdResolver {
     public final static String JSL_PATH_PREFIX = System.getProperty("eu.monnetproject.framework.services.jslpath", "META-INF/services/");
     public final static boolean noOSGi = Boolean.parseBoolean(System.getProperty("eu.monnetproject.framework.services.osgi", "false"));
     private static final boolean verbose = Boolean.parseBoolean(System.getProperty("eu.monnetproject.framework.services.verbose", "false"));
+    public static final String SERVICE_LOADER_PROPERTY = "eu.monnetproject.framework.services.serviceLoader";
+    // Reads META-INF/services and module descriptors, or null to read 
+    // META-INF/services directly
+    private static final ProviderResolver providerResolver = loadProviderResolver();
+
+    // The lookups of the resolutions in progress on this thread
+    private static final ThreadLocal<Session> session = new ThreadLocal<Session>();
 
     private StdResolver() {
     }
 
+    /**
+     * The descriptors found while resolving a batch of services. Each 
+     * descriptor is looked up and read once per batch, even if it is needed 
+     * by more than one of the services or their dependencies
+     */
+    private static final class Session {
+
+        final ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        Bundle[] bundles;
+        final HashMap<String, List<URL>> resources = new HashMap<String, List<URL>>();
+        final HashMap<String, URL> bundleResources = new HashMap<String, URL>();
+        final HashMap<String, List<DescriptorParser.Declaration>> declarations = new HashMap<String, List<DescriptorParser.Declaration>>();
+    }
+
+    /**
+     * Resolve a single instance of each of a number of services, sharing the
+     * lookup of descriptors between them
+     *
+     * @param serviceClasses The services
+     * @return An instance of each service, in the same order
+     * @throws ServiceLoadException If any of the services could not be 
+     * resolved
+     */
+    public static Object[] resolveImmediate(Class<?>... serviceClasses) {
+        final boolean outer = session.get() == null;
+        if (outer) {
+            session.set(new Session());
+        }
+        try {
+            final Object[] services = new Object[serviceClasses.length];
+            for (int i = 0; i < serviceClasses.length; i++) {
+                services[i] = resolveImmediate(serviceClasses[i]);
+            }
+            return services;
+        } finally {
+            if (outer) {
+                session.remove();
+            }
+        }
+    }
+
+    private static Bundle[] bundles() {
+        final Session s = session.get();
+        if (s == null) {
+            return OSGiUtil.getFrameWorkBundle().getBundleContext().getBundles();
+        }
+        if (s.bundles == null) {
+            s.bundles = OSGiUtil.getFrameWorkBundle().getBundleContext().getBundles();
+        }
+        return s.bundles;
+    }
+
+    private static URL bundleResource(Bundle bundle, String name) {
+        final Session s = session.get();
+        if (s == null) {
+            return bundle.getResource(name);
+        }
+        final String key = bundle.getBundleId() + name;
+        if (!s.bundleResources.containsKey(key)) {
+            s.bundleResources.put(key, bundle.getResource(name));
+        }
+        return s.bundleResources.get(key);
+    }
+
+    private static Enumeration<URL> resources(String name) throws IOException {
+        final Session s = session.get();
+        final ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+        if (s == null || s.classLoader != classLoader) {
+            return classLoader.getResources(name);
+        }
+        List<URL> urls = s.resources.get(name);
+        if (urls == null) {
+            urls = Collections.list(classLoader.getResources(name));
+            s.resources.put(name, urls);
+        }
+        return Collections.enumeration(urls);
+    }
+
+    private static ProviderResolver loadProviderResolver() {
+        if (!Boolean.parseBoolean(System.getProperty(SERVICE_LOADER_PROPERTY, "true"))
+                || !"META-INF/services/".equals(JSL_PATH_PREFIX)) {
+            return null;
+        }
+        try {
+            // Only in META-INF/versions/9 of the jar, so not found before Java 9
+            return (ProviderResolver) Class.forName("eu.monnetproject.framework.services.impl.ServiceLoaderResolver",
+                    true, StdResolver.class.getClassLoader()).getDeclaredConstructor().newInstance();
+        } catch (ClassNotFoundException x) {
+            return null;
+        } catch (Exception x) {
+            if (verbose) {
+                System.err.println("Could not create service loader resolver: " + x.getMessage());
+            }
+            return null;
+        } catch (LinkageError x) {
+            // E.g., the versioned class is found on an older runtime
+            return null;
+        }
+    }
+
     public static <S> S resolveImmediate(Class<S> serviceClass) {
+        final ServiceMetrics metrics = Metrics.get();
+        if (metrics != null) {
+            metrics.lookup(serviceClass.getName());
+        }
         ServiceLoadException lastException = null;
-        if (OSGiUtil.getFrameWorkBundle() != null && !noOSGi) {
+        final boolean osgi = OSGiUtil.getFrameWorkBundle() != null && !noOSGi;
+        final WiringSnapshot snapshot = osgi ? null : WiringSnapshot.get();
+        if (snapshot != null) {
+            final WiringSnapshot.Binding binding = snapshot.immediate(serviceClass.getName());
+            if (binding != null) {
+                try {
+                    @SuppressWarnings("unchecked")
+                    final Class<S> c = (Class<S>) loadClass(binding.className, null);
+                    return resolveSingle(serviceClass, c, binding.independent);
+                } catch (ClassNotFoundException x) {
+                    snapshot.invalidate(serviceClass.getName());
+                } catch (ServiceLoadException x) {
+                    snapshot.invalidate(serviceClass.getName());
+                }
+            }
+        }
+        if (osgi) {
             // OSGi class path method
-            final Bundle[] bundles = OSGiUtil.getFrameWorkBundle().getBundleContext().getBundles();
+            final Bundle[] bundles = bundles();
             for (Bundle bundle : bundles) {
-                final URL resource = bundle.getResource("/" + PATH_PREFIX + serviceClass.getName());
+                final URL resource = bundleResource(bundle, "/" + PATH_PREFIX + serviceClass.getName());
                 try {
                     if (resource != null) {
-                        return resolveFirstURL(serviceClass, resource, false, bundle);
+                        return resolveFirstURL(serviceClass, resource, false, bundle, null);
                     }
                 } catch (ServiceLoadException x) {
                     lastException = x;
                 }
-                final URL jslResource = bundle.getResource("/" + JSL_PATH_PREFIX + serviceClass.getName());
+                final URL jslResource = bundleResource(bundle, "/" + JSL_PATH_PREFIX + serviceClass.getName());
                 try {
                     if (jslResource != null) {
-                        return resolveFirstURL(serviceClass, jslResource, true, bundle);
+                        return resolveFirstURL(serviceClass, jslResource, true, bundle, null);
                     }
                 } catch (ServiceLoadException x) {
                     lastException = x;
@@ -78,10 +204,10 @@ public class StdResolver {
         }
         // Non-OSGi class path method
         try {
-            final Enumeration<URL> resources = Thread.currentThread().getContextClassLoader().getResources(PATH_PREFIX + serviceClass.getName());
+            final Enumeration<URL> resources = resources(PATH_PREFIX + serviceClass.getName());
             while (resources.hasMoreElements()) {
                 try {
-                    return resolveFirstURL(serviceClass, resources.nextElement(), false, null);
+                    return resolveFirstURL(serviceClass, resources.nextElement(), false, null, snapshot);
                 } catch (ServiceLoadException x) {
                     lastException = x;
                 }
@@ -89,17 +215,28 @@ public class StdResolver {
         } catch (IOException x) {
             lastException = new ServiceLoadException(serviceClass, x);
         }
-        try {
-            final Enumeration<URL> resources = Thread.currentThread().getContextClassLoader().getResources(JSL_PATH_PREFIX + serviceClass.getName());
-            while (resources.hasMoreElements()) {
-                try {
-                    return resolveFirstURL(serviceClass, resources.nextElement(), true, null);
-                } catch (ServiceLoadException x) {
-                    lastException = x;
+        if (providerResolver != null) {
+            try {
+                final S service = providerResolver.resolveFirst(serviceClass, snapshot);
+                if (service != null) {
+                    return service;
                 }
+            } catch (ServiceLoadException x) {
+                lastException = x;
+            }
+        } else {
+            try {
+                final Enumeration<URL> resources = resources(JSL_PATH_PREFIX + serviceClass.getName());
+                while (resources.hasMoreElements()) {
+                    try {
+                        return resolveFirstURL(serviceClass, resources.nextElement(), true, null, snapshot);
+                    } catch (ServiceLoadException x) {
+                        lastException = x;
+                    }
+                }
+            } catch (IOException x) {
+                lastException = new ServiceLoadException(serviceClass, x);
             }
-        } catch (IOException x) {
-            lastException = new ServiceLoadException(serviceClass, x);
         }
         if (lastException != null) {
             throw lastException;
@@ -111,28 +248,29 @@ public class StdResolver {
         }
     }
 
-    private static <S> S resolveFirstURL(Class<S> serviceClass, URL url, boolean independent, Bundle bundle) {
+    private static <S> S resolveFirstURL(Class<S> serviceClass, URL url, boolean independent, Bundle bundle, WiringSnapshot snapshot) {
         try {
-            final BufferedReader reader = new BufferedReader(new InputStreamReader(url.openStream()));
-            String s;
             ServiceLoadException lastException = null;
-            while ((s = reader.readLine()) != null) {
-                final String[] ss = s.split(";");
+            for (DescriptorParser.Declaration declaration : readDescriptor(serviceClass, url)) {
+                final String className = declaration.getClassName();
                 try {
                     @SuppressWarnings("unchecked")
-                    Class<S> c = bundle == null ? (Class<S>) Thread.currentThread().getContextClassLoader().loadClass(ss[0])
-                            : bundle.loadClass(ss[0]);
+                    Class<S> c = (Class<S>) loadClass(className, bundle);
                     try {
                         if (verbose) {
-                            System.err.println("Binding " + ss[0] + " as " + serviceClass.getName());
+                            System.err.println("Binding " + className + " as " + serviceClass.getName());
+                        }
+                        final S service = resolveSingle(serviceClass, c, independent);
+                        if (snapshot != null) {
+                            snapshot.recordImmediate(serviceClass.getName(), new WiringSnapshot.Binding(className, independent));
                         }
-                        return resolveSingle(serviceClass, c, independent);
+                        return service;
                     } catch (ServiceLoadException x) {
                         lastException = x;
                     }
                 } catch (ClassNotFoundException x) {
                     if (verbose) {
-                        System.err.println("Failed to load class " + ss[0] + ": " + x.getMessage());
+                        System.err.println("Failed to load class " + className + ": " + x.getMessage());
                     }
                     throw new ServiceLoadException(serviceClass, x);
                 }
@@ -153,26 +291,39 @@ public class StdResolver {
         }
     }
 
-    private static <S> LinkedList<S> resolveURL(Class<S> serviceClass, URL url, boolean independent, Bundle bundle) {
+    /**
+     * Resolve all implementations listed in a descriptor
+     * @param resolved The implementations already resolved from other 
+     * descriptors, which are not created again. Implementations from this 
+     * descriptor are added
+     */
+    private static <S> LinkedList<S> resolveURL(Class<S> serviceClass, URL url, boolean independent, Bundle bundle, List<WiringSnapshot.Binding> bindings, Set<Class<?>> resolved) {
         LinkedList<S> services = new LinkedList<S>();
         try {
-            final BufferedReader reader = new BufferedReader(new InputStreamReader(url.openStream()));
-            String s;
             ServiceLoadException lastException = null;
-            while ((s = reader.readLine()) != null) {
-                final String[] ss = s.split(";");
-                if (ss[0].matches("\\s*")) {
-                    continue;
-                }
+            final List<DescriptorParser.Declaration> declarations = readDescriptor(serviceClass, url);
+            preload(declarations, bundle);
+            for (DescriptorParser.Declaration declaration : declarations) {
+                final String className = declaration.getClassName();
                 try {
                     @SuppressWarnings("unchecked")
-                    Class<S> c = bundle == null ? (Class<S>) Thread.currentThread().getContextClassLoader().loadClass(ss[0])
-                            : bundle.loadClass(ss[0]);
+                    Class<S> c = (Class<S>) loadClass(className, bundle);
+                    // A class is the same implementation only if it has the
+                    // same defining loader
+                    if (!resolved.add(c)) {
+                        if (verbose) {
+                            System.err.println("Already bound " + className + " as " + serviceClass.getName());
+                        }
+                        continue;
+                    }
                     try {
                         if (verbose) {
-                            System.err.println("Binding " + ss[0] + " as " + serviceClass.getName());
+                            System.err.println("Binding " + className + " as " + serviceClass.getName());
                         }
                         services.add(resolveSingle(serviceClass, c, independent));
+                        if (bindings != null) {
+                            bindings.add(new WiringSnapshot.Binding(className, independent));
+                        }
                     } catch (ServiceLoadException x) {
                         if (verbose) {
                             System.err.println("Service not loaded as " + x.getClass().getName() + ": " + x.getMessage());
@@ -181,7 +332,7 @@ public class StdResolver {
                     }
                 } catch (ClassNotFoundException x) {
                     if (verbose) {
-                        System.err.println("Failed to load class " + ss[0] + ": " + x.getMessage());
+                        System.err.println("Failed to load class " + className + ": " + x.getMessage());
                     }
                     throw new ServiceLoadException(serviceClass, x);
                 }
@@ -201,15 +352,83 @@ public class StdResolver {
         }
     }
 
-    private static <S, T extends S> S resolveSingle(Class<S> serviceClass, Class<T> implClass, boolean independent) {
+    private static List<DescriptorParser.Declaration> readDescriptor(Class<?> serviceClass, URL url) throws IOException {
+        final Session s = session.get();
+        if (s != null) {
+            List<DescriptorParser.Declaration> declarations = s.declarations.get(url.toString());
+            if (declarations == null) {
+                declarations = parseDescriptor(serviceClass, url);
+                s.declarations.put(url.toString(), declarations);
+            }
+            return declarations;
+        }
+        return parseDescriptor(serviceClass, url);
+    }
+
+    private static List<DescriptorParser.Declaration> parseDescriptor(Class<?> serviceClass, URL url) throws IOException {
+        final ServiceMetrics metrics = Metrics.get();
+        final long start = metrics == null ? 0 : System.nanoTime();
+        final List<DescriptorParser.Declaration> declarations = DescriptorParser.parse(url);
+        if (metrics != null) {
+            metrics.descriptorRead(serviceClass.getName(), System.nanoTime() - start);
+        }
+        return declarations;
+    }
+
+    private static Class<?> loadClass(String className, Bundle bundle) throws ClassNotFoundException {
+        return bundle == null ? ClassCache.loadClass(Thread.currentThread().getContextClassLoader(), className)
+                : ClassCache.loadClass(bundle, className);
+    }
+
+    private static void preload(List<DescriptorParser.Declaration> declarations, Bundle bundle) {
+        if (ClassCache.isPreloading() && declarations.size() > 1) {
+            final ArrayList<String> classNames = new ArrayList<String>(declarations.size());
+            for (DescriptorParser.Declaration declaration : declarations) {
+                classNames.add(declaration.getClassName());
+            }
+            if (bundle == null) {
+                ClassCache.preload(Thread.currentThread().getContextClassLoader(), classNames);
+            } else {
+                ClassCache.preload(bundle, classNames);
+            }
+        }
+    }
 
+    private static <T> InjectableClass<T> injectableClass(Class<T> implClass) {
+        final WiringSnapshot snapshot = WiringSnapshot.get();
+        if (snapshot == null || implClass.getClassLoader() != ClassLoader.getSystemClassLoader()) {
+            return new InjectableClass<T>(implClass);
+        }
+        final WiringSnapshot.Plan plan = snapshot.plan(implClass.getName());
+        if (plan != null) {
+            try {
+                return new InjectableClass<T>(implClass, plan);
+            } catch (ServiceLoadException x) {
+                snapshot.invalidatePlan(implClass.getName());
+            }
+        }
         final InjectableClass<T> injectableClass = new InjectableClass<T>(implClass);
+        final WiringSnapshot.Plan newPlan = injectableClass.plan();
+        if (newPlan != null) {
+            snapshot.recordPlan(implClass.getName(), newPlan);
+        }
+        return injectableClass;
+    }
+
+    static <S, T extends S> S resolveSingle(Class<S> serviceClass, Class<T> implClass, boolean independent) {
+
+        final InjectableClass<T> injectableClass = injectableClass(implClass);
         if (independent && injectableClass.dependencies().length != 0) {
             if (verbose) {
                 System.err.println(implClass.getName() + " does not have a single public no-args constructor");
             }
             throw new ServiceLoadException(implClass, "Class does not have a single public no-args constructor");
         }
+        // Singletons and scoped instances do not need their dependencies resolved again
+        final T cached = injectableClass.cachedInstance();
+        if (cached != null) {
+            return cached;
+        }
         Object[] arguments = new Object[injectableClass.dependencies().length];
         int i = 0;
         for (Type type : injectableClass.dependencies()) {
@@ -251,23 +470,52 @@ public class StdResolver {
     }
 
     public static <S> ServiceCollection<S> resolveExtant(Class<S> serviceClass, boolean nonEmpty) {
+        final ServiceMetrics metrics = Metrics.get();
+        if (metrics != null) {
+            metrics.lookup(serviceClass.getName());
+        }
         final ServiceCollectionImpl<S> services = new ServiceCollectionImpl<S>();
         ServiceLoadException lastException = null;
-        if (OSGiUtil.getFrameWorkBundle() != null && !noOSGi) {
-            final Bundle[] bundles = OSGiUtil.getFrameWorkBundle().getBundleContext().getBundles();
+        final boolean osgi = OSGiUtil.getFrameWorkBundle() != null && !noOSGi;
+        final WiringSnapshot snapshot = osgi ? null : WiringSnapshot.get();
+        if (snapshot != null) {
+            final List<WiringSnapshot.Binding> recorded = snapshot.all(serviceClass.getName());
+            if (recorded != null && (!recorded.isEmpty() || !nonEmpty)) {
+                try {
+                    for (WiringSnapshot.Binding binding : recorded) {
+                        @SuppressWarnings("unchecked")
+                        final Class<S> c = (Class<S>) loadClass(binding.className, null);
+                        services.add(resolveSingle(serviceClass, c, binding.independent));
+                    }
+                    return services;
+                } catch (ClassNotFoundException x) {
+                    snapshot.invalidate(serviceClass.getName());
+                } catch (ServiceLoadException x) {
+                    snapshot.invalidate(serviceClass.getName());
+                }
+                services.clear();
+            }
+        }
+        final List<WiringSnapshot.Binding> bindings = snapshot == null ? null : new ArrayList<WiringSnapshot.Binding>();
+        // A descriptor or implementation may be visible from more than one 
+        // bundle and from the context class loader, but is only used once
+        final HashSet<String> descriptors = new HashSet<String>();
+        final HashSet<Class<?>> resolved = new HashSet<Class<?>>();
+        if (osgi) {
+            final Bundle[] bundles = bundles();
             for (Bundle bundle : bundles) {
                 try {
-                    final URL resource = bundle.getResource("/" + PATH_PREFIX + serviceClass.getName());
-                    if (resource != null) {
-                        services.addAll(resolveURL(serviceClass, resource, false, bundle));
+                    final URL resource = bundleResource(bundle, "/" + PATH_PREFIX + serviceClass.getName());
+                    if (resource != null && descriptors.add(resource.toString())) {
+                        services.addAll(resolveURL(serviceClass, resource, false, bundle, null, resolved));
                     }
                 } catch (ServiceLoadException x) {
                     lastException = x;
                 }
                 try {
-                    final URL resource = bundle.getResource("/" + JSL_PATH_PREFIX + serviceClass.getName());
-                    if (resource != null) {
-                        services.addAll(resolveURL(serviceClass, resource, true, bundle));
+                    final URL resource = bundleResource(bundle, "/" + JSL_PATH_PREFIX + serviceClass.getName());
+                    if (resource != null && descriptors.add(resource.toString())) {
+                        services.addAll(resolveURL(serviceClass, resource, true, bundle, null, resolved));
                     }
                 } catch (ServiceLoadException x) {
                     lastException = x;
@@ -275,31 +523,50 @@ public class StdResolver {
             }
         }
         try {
-            final Enumeration<URL> resources = Thread.currentThread().getContextClassLoader().getResources(PATH_PREFIX + serviceClass.getName());
+            final Enumeration<URL> resources = resources(PATH_PREFIX + serviceClass.getName());
             while (resources.hasMoreElements()) {
-                try {
-                    services.addAll(resolveURL(serviceClass, resources.nextElement(), false, null));
-                } catch (ServiceLoadException x) {
-                    lastException = x;
+                final URL resource = resources.nextElement();
+                if (descriptors.add(resource.toString())) {
+                    try {
+                        services.addAll(resolveURL(serviceClass, resource, false, null, bindings, resolved));
+                    } catch (ServiceLoadException x) {
+                        lastException = x;
+                    }
                 }
             }
         } catch (IOException x) {
             lastException = new ServiceLoadException(serviceClass, x);
         }
-        try {
-            final Enumeration<URL> resources = Thread.currentThread().getContextClassLoader().getResources(JSL_PATH_PREFIX + serviceClass.getName());
-            while (resources.hasMoreElements()) {
-                try {
-                    services.addAll(resolveURL(serviceClass, resources.nextElement(), true, null));
-                } catch (ServiceLoadException x) {
-                    lastException = x;
+        if (providerResolver != null) {
+            // Providers that are also components are not created again
+            try {
+                services.addAll(providerResolver.resolveAll(serviceClass, resolved, bindings));
+            } catch (ServiceLoadException x) {
+                lastException = x;
+            }
+        } else {
+            try {
+                final Enumeration<URL> resources = resources(JSL_PATH_PREFIX + serviceClass.getName());
+                while (resources.hasMoreElements()) {
+                    final URL resource = resources.nextElement();
+                    if (descriptors.add(resource.toString())) {
+                        try {
+                            services.addAll(resolveURL(serviceClass, resource, true, null, bindings, resolved));
+                        } catch (ServiceLoadException x) {
+                            lastException = x;
+                        }
+                    }
                 }
+            } catch (IOException x) {
+                lastException = new ServiceLoadException(serviceClass, x);
             }
-        } catch (IOException x) {
-            lastException = new ServiceLoadException(serviceClass, x);
         }
 
         if (!services.isEmpty() || (!nonEmpty && lastException == null)) {
+            // Providers created by the service loader cannot be replayed
+            if (bindings != null && !bindings.contains(null)) {
+                snapshot.recordAll(serviceClass.getName(), bindings);
+            }
             return services;
         } else if (lastException != null) {
             throw lastException;
@@ -311,7 +578,7 @@ public class StdResolver {
         }
     }
 
-    private static class ServiceCollectionImpl<S> extends LinkedList<S> implements ServiceCollection<S> {
+    private static class ServiceCollectionImpl<S> extends ArrayList<S> implements ServiceCollection<S> {
 
         private static final long serialVersionUID = 1L;
 
@@ -320,6 +587,12 @@ public class StdResolver {
             return new ServiceIteratorImpl();
         }
 
+        @Override
+        public Spliterator<S> spliterator() {
+            // Over a snapshot as documented, not the late-binding list
+            return Spliterators.<S>spliterator(toArray(), Spliterator.IMMUTABLE | Spliterator.NONNULL);
+        }
+
         private class ServiceIteratorImpl implements ServiceIterator<S> {
 
             private final Iterator<S> iterator = ServiceCollectionImpl.super.iterator();
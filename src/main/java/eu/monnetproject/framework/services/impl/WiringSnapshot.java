@@ -0,0 +1,334 @@
+/**
+ * ********************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.framework.services.impl;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A record of how services were resolved without OSGi, which is saved to a 
+ * file and loaded on the next start so that descriptors need not be found 
+ * and read, nor constructors analysed, again. If the system property 
+ * {@code eu.monnetproject.framework.services.snapshot} names a file, the 
+ * snapshot records the implementation chosen for each service, the members
+ * of each collection of services and the constructor plan of each 
+ * implementation, and writes them to the file when the JVM exits. 
+ * <p>
+ * The snapshot is only loaded if the fingerprint of the class path (the 
+ * names, sizes and modification times of its entries) is unchanged. If 
+ * replaying a recorded resolution fails, the service is resolved from its 
+ * descriptors again. The snapshot is only used for the system class loader.
+ *
+ * @author John McCrae
+ */
+public final class WiringSnapshot {
+
+    public static final String SNAPSHOT_PROPERTY = "eu.monnetproject.framework.services.snapshot";
+    private static final boolean verbose = Boolean.parseBoolean(System.getProperty("eu.monnetproject.framework.services.verbose", "false"));
+    private static final WiringSnapshot instance = open(System.getProperty(SNAPSHOT_PROPERTY));
+    private final File file;
+    private final String fingerprint;
+    private final ConcurrentMap<String, Binding> immediate = new ConcurrentHashMap<String, Binding>();
+    private final ConcurrentMap<String, List<Binding>> all = new ConcurrentHashMap<String, List<Binding>>();
+    private final ConcurrentMap<String, Plan> plans = new ConcurrentHashMap<String, Plan>();
+    private volatile boolean dirty = false;
+
+    /**
+     * An implementation bound to a service
+     */
+    static final class Binding {
+
+        final String className;
+        final boolean independent;
+
+        Binding(String className, boolean independent) {
+            this.className = className;
+            this.independent = independent;
+        }
+
+        @Override
+        public String toString() {
+            return className + (independent ? "!" : "");
+        }
+
+        static Binding parse(String s) {
+            return s.endsWith("!") ? new Binding(s.substring(0, s.length() - 1), true) : new Binding(s, false);
+        }
+    }
+
+    /**
+     * The constructor of an implementation, as analysed by 
+     * {@link InjectableClass}
+     */
+    static final class Plan {
+
+        final String[] rawTypes;
+        // Null where the parameter has no single type argument
+        final String[] elementTypes;
+        final boolean[] nonEmpty;
+
+        Plan(String[] rawTypes, String[] elementTypes, boolean[] nonEmpty) {
+            this.rawTypes = rawTypes;
+            this.elementTypes = elementTypes;
+            this.nonEmpty = nonEmpty;
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < rawTypes.length; i++) {
+                sb.append(' ').append(rawTypes[i]).append(',').append(elementTypes[i] == null ? "-" : elementTypes[i]).append(',').append(nonEmpty[i] ? 1 : 0);
+            }
+            return sb.toString();
+        }
+
+        static Plan parse(String[] tokens, int offset) {
+            final int n = tokens.length - offset;
+            final Plan plan = new Plan(new String[n], new String[n], new boolean[n]);
+            for (int i = 0; i < n; i++) {
+                final String[] parts = tokens[offset + i].split(",");
+                plan.rawTypes[i] = parts[0];
+                plan.elementTypes[i] = parts[1].equals("-") ? null : parts[1];
+                plan.nonEmpty[i] = parts[2].equals("1");
+            }
+            return plan;
+        }
+    }
+
+    WiringSnapshot(File file, String fingerprint) {
+        this.file = file;
+        this.fingerprint = fingerprint;
+        if (file.exists()) {
+            try {
+                read();
+            } catch (Exception x) {
+                if (verbose) {
+                    System.err.println("Could not read wiring snapshot " + file + ": " + x.getMessage());
+                }
+                immediate.clear();
+                all.clear();
+                plans.clear();
+            }
+        }
+    }
+
+    private static WiringSnapshot open(String fileName) {
+        if (fileName == null) {
+            return null;
+        }
+        final WiringSnapshot snapshot = new WiringSnapshot(new File(fileName), fingerprint(System.getProperty("java.class.path", "")));
+        Runtime.getRuntime().addShutdownHook(new Thread("mfs-wiring-snapshot") {
+            @Override
+            public void run() {
+                if (snapshot.dirty) {
+                    try {
+                        snapshot.write();
+                    } catch (IOException x) {
+                        System.err.println("Could not write wiring snapshot " + snapshot.file + ": " + x.getMessage());
+                    }
+                }
+            }
+        });
+        return snapshot;
+    }
+
+    /**
+     * Get the snapshot for the current thread's context class loader
+     *
+     * @return The snapshot or null if snapshots are not enabled or the 
+     * context class loader is not the system class loader
+     */
+    public static WiringSnapshot get() {
+        return instance != null && Thread.currentThread().getContextClassLoader() == ClassLoader.getSystemClassLoader() ? instance : null;
+    }
+
+    /**
+     * Compute the fingerprint of a class path
+     *
+     * @param classPath The class path
+     * @return A hexadecimal digest
+     */
+    static String fingerprint(String classPath) {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            for (String entry : classPath.split(File.pathSeparator)) {
+                digest.update(entry.getBytes("UTF-8"));
+                update(digest, new File(entry));
+            }
+            final StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException x) {
+            throw new RuntimeException(x);
+        } catch (IOException x) {
+            throw new RuntimeException(x);
+        }
+    }
+
+    private static void update(MessageDigest digest, File file) throws IOException {
+        if (file.isDirectory()) {
+            // The modification time of a directory does not change when the 
+            // files in its subdirectories do
+            final File[] children = file.listFiles();
+            if (children != null) {
+                for (File child : children) {
+                    digest.update(child.getName().getBytes("UTF-8"));
+                    update(digest, child);
+                }
+            }
+        } else {
+            digest.update((file.length() + ":" + file.lastModified() + ";").getBytes("UTF-8"));
+        }
+    }
+
+    /**
+     * The implementation chosen for a service
+     */
+    Binding immediate(String serviceName) {
+        return immediate.get(serviceName);
+    }
+
+    /**
+     * The implementations in the collection of a service
+     */
+    List<Binding> all(String serviceName) {
+        return all.get(serviceName);
+    }
+
+    /**
+     * The constructor plan of an implementation
+     */
+    Plan plan(String className) {
+        return plans.get(className);
+    }
+
+    void recordImmediate(String serviceName, Binding binding) {
+        immediate.put(serviceName, binding);
+        dirty = true;
+    }
+
+    void recordAll(String serviceName, List<Binding> bindings) {
+        all.put(serviceName, Collections.unmodifiableList(new ArrayList<Binding>(bindings)));
+        dirty = true;
+    }
+
+    void recordPlan(String className, Plan plan) {
+        plans.put(className, plan);
+        dirty = true;
+    }
+
+    /**
+     * Forget the resolutions of a service, which could not be replayed
+     */
+    void invalidate(String serviceName) {
+        if (verbose) {
+            System.err.println("Wiring snapshot of " + serviceName + " is stale");
+        }
+        immediate.remove(serviceName);
+        all.remove(serviceName);
+        dirty = true;
+    }
+
+    void invalidatePlan(String className) {
+        plans.remove(className);
+        dirty = true;
+    }
+
+    private void read() throws IOException {
+        final BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line = in.readLine();
+            if (line == null || !line.equals("fingerprint " + fingerprint)) {
+                if (verbose) {
+                    System.err.println("Class path changed, wiring snapshot " + file + " not used");
+                }
+                return;
+            }
+            while ((line = in.readLine()) != null) {
+                final String[] tokens = line.split(" ");
+                if (tokens[0].equals("immediate")) {
+                    immediate.put(tokens[1], Binding.parse(tokens[2]));
+                } else if (tokens[0].equals("all")) {
+                    final ArrayList<Binding> bindings = new ArrayList<Binding>();
+                    for (int i = 2; i < tokens.length; i++) {
+                        bindings.add(Binding.parse(tokens[i]));
+                    }
+                    all.put(tokens[1], Collections.unmodifiableList(bindings));
+                } else if (tokens[0].equals("plan")) {
+                    plans.put(tokens[1], Plan.parse(tokens, 2));
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Write the snapshot to its file
+     *
+     * @throws IOException If the file could not be written
+     */
+    void write() throws IOException {
+        final PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            out.println("fingerprint " + fingerprint);
+            for (Map.Entry<String, Binding> e : new TreeMap<String, Binding>(immediate).entrySet()) {
+                out.println("immediate " + e.getKey() + " " + e.getValue());
+            }
+            for (Map.Entry<String, List<Binding>> e : new TreeMap<String, List<Binding>>(all).entrySet()) {
+                out.print("all " + e.getKey());
+                for (Binding binding : e.getValue()) {
+                    out.print(" " + binding);
+                }
+                out.println();
+            }
+            for (Map.Entry<String, Plan> e : new TreeMap<String, Plan>(plans).entrySet()) {
+                out.println("plan " + e.getKey() + e.getValue());
+            }
+        } finally {
+            out.close();
+        }
+        dirty = false;
+    }
+}
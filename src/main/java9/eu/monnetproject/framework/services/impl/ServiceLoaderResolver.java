@@ -0,0 +1,150 @@
+/**
+ * ********************************************************************************
+ * Copyright (c) 2011, Monnet Project All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met: *
+ * Redistributions of source code must retain the above copyright notice, this
+ * list of conditions and the following disclaimer. * Redistributions in binary
+ * form must reproduce the above copyright notice, this list of conditions and
+ * the following disclaimer in the documentation and/or other materials provided
+ * with the distribution. * Neither the name of the Monnet Project nor the names
+ * of its contributors may be used to endorse or promote products derived from
+ * this software without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE MONNET PROJECT BE LIABLE FOR ANY
+ * DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ * *******************************************************************************
+ */
+package eu.monnetproject.framework.services.impl;
+
+import eu.monnetproject.framework.services.ServiceLoadException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.Set;
+
+/**
+ * Resolves services declared by {@code provides ... with} in a module 
+ * descriptor or in {@code META-INF/services} through 
+ * {@link ServiceLoader#stream()}, so that the type of each provider is known
+ * before it is instantiated. Providers in named modules are created by the
+ * service loader, which calls their {@code provider()} method if they have 
+ * one. Other providers are created like the implementations in
+ * {@code META-INF/components}, and so may be singletons, scoped or pooled.
+ * <p>
+ * This is used instead of reading {@code META-INF/services} directly when 
+ * running on Java 9 or later, unless the system property 
+ * {@code eu.monnetproject.framework.services.serviceLoader} is false or the 
+ * descriptor path has been changed. This class is compiled for Java 9 and
+ * packaged in {@code META-INF/versions/9}, so that it is not found on Java 8, 
+ * see {@link StdResolver}.
+ *
+ * @author John McCrae
+ */
+final class ServiceLoaderResolver implements ProviderResolver {
+
+    private static final boolean verbose = Boolean.parseBoolean(System.getProperty("eu.monnetproject.framework.services.verbose", "false"));
+
+    ServiceLoaderResolver() {
+    }
+
+    private static <S> Iterator<ServiceLoader.Provider<S>> providers(Class<S> serviceClass) {
+        return ServiceLoader.load(serviceClass, Thread.currentThread().getContextClassLoader()).stream().iterator();
+    }
+
+    private static <S> ServiceLoader.Provider<S> next(Class<S> serviceClass, Iterator<ServiceLoader.Provider<S>> providers) {
+        try {
+            return providers.hasNext() ? providers.next() : null;
+        } catch (ServiceConfigurationError x) {
+            if (verbose) {
+                System.err.println("Bad provider of " + serviceClass.getName() + ": " + x.getMessage());
+            }
+            throw new ServiceLoadException(serviceClass, x);
+        }
+    }
+
+    /**
+     * Is the provider created by the service loader rather than injected
+     */
+    private static boolean isModular(Class<?> type) {
+        return type.getModule().isNamed();
+    }
+
+    private static <S> S instantiate(Class<S> serviceClass, ServiceLoader.Provider<S> provider) {
+        final Class<? extends S> type = provider.type();
+        if (verbose) {
+            System.err.println("Binding " + type.getName() + " as " + serviceClass.getName());
+        }
+        if (isModular(type)) {
+            try {
+                return provider.get();
+            } catch (ServiceConfigurationError x) {
+                throw new ServiceLoadException(serviceClass, x);
+            }
+        } else {
+            return StdResolver.resolveSingle(serviceClass, type, true);
+        }
+    }
+
+    @Override
+    public <S> S resolveFirst(Class<S> serviceClass, WiringSnapshot snapshot) {
+        final Iterator<ServiceLoader.Provider<S>> providers = providers(serviceClass);
+        ServiceLoadException lastException = null;
+        ServiceLoader.Provider<S> provider;
+        while ((provider = next(serviceClass, providers)) != null) {
+            try {
+                final S service = instantiate(serviceClass, provider);
+                if (snapshot != null && !isModular(provider.type())) {
+                    snapshot.recordImmediate(serviceClass.getName(), new WiringSnapshot.Binding(provider.type().getName(), true));
+                }
+                return service;
+            } catch (ServiceLoadException x) {
+                lastException = x;
+            }
+        }
+        if (lastException != null) {
+            throw lastException;
+        }
+        return null;
+    }
+
+    @Override
+    public <S> List<S> resolveAll(Class<S> serviceClass, Set<Class<?>> resolved, List<WiringSnapshot.Binding> bindings) {
+        final Iterator<ServiceLoader.Provider<S>> providers = providers(serviceClass);
+        final ArrayList<S> services = new ArrayList<S>();
+        ServiceLoadException lastException = null;
+        ServiceLoader.Provider<S> provider;
+        while ((provider = next(serviceClass, providers)) != null) {
+            final Class<? extends S> type = provider.type();
+            if (!resolved.add(type)) {
+                continue;
+            }
+            try {
+                services.add(instantiate(serviceClass, provider));
+                if (bindings != null) {
+                    bindings.add(isModular(type) ? null : new WiringSnapshot.Binding(type.getName(), true));
+                }
+            } catch (ServiceLoadException x) {
+                if (verbose) {
+                    System.err.println("Service not loaded as " + x.getClass().getName() + ": " + x.getMessage());
+                }
+                lastException = x;
+            }
+        }
+        if (services.isEmpty() && lastException != null) {
+            throw lastException;
+        }
+        return services;
+    }
+}
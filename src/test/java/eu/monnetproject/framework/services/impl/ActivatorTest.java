@@ -0,0 +1,116 @@
+package eu.monnetproject.framework.services.impl;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.StringWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import junit.framework.TestCase;
+import org.apache.felix.framework.Felix;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+
+/**
+ *
+ * @author jmccrae
+ */
+public class ActivatorTest extends TestCase {
+
+    private File storage;
+    private Felix framework;
+    private BundleContext context;
+    private Activator activator;
+
+    public ActivatorTest(String testName) {
+        super(testName);
+    }
+
+    public static interface Svc {
+    }
+
+    public static class SvcImpl implements Svc {
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        storage = File.createTempFile("felix-cache", "");
+        storage.delete();
+        final Map<String, Object> props = new HashMap<String, Object>();
+        props.put(Constants.FRAMEWORK_STORAGE, storage.getAbsolutePath());
+        props.put(Constants.FRAMEWORK_STORAGE_CLEAN, Constants.FRAMEWORK_STORAGE_CLEAN_ONFIRSTINIT);
+        // The implementations are loaded from the class path by the system bundle
+        props.put(Constants.FRAMEWORK_SYSTEMPACKAGES_EXTRA, ActivatorTest.class.getPackage().getName());
+        framework = new Felix(props);
+        framework.init();
+        framework.start();
+        context = framework.getBundleContext();
+        activator = new Activator();
+        activator.start(context);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        StartupTimeline.setEnabled(false);
+        StartupTimeline.reset();
+        activator.stop(context);
+        framework.stop();
+        framework.waitForStop(10000);
+        deleteRecursive(storage);
+    }
+
+    private static void deleteRecursive(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursive(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * A bundle that only declares components, whose classes it imports
+     */
+    private static byte[] descriptorBundle(String descriptor) throws Exception {
+        final Manifest manifest = new Manifest();
+        final Attributes attributes = manifest.getMainAttributes();
+        attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+        attributes.putValue(Constants.BUNDLE_MANIFESTVERSION, "2");
+        attributes.putValue(Constants.BUNDLE_SYMBOLICNAME, "test.descriptors");
+        attributes.putValue(Constants.IMPORT_PACKAGE, ActivatorTest.class.getPackage().getName());
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final JarOutputStream out = new JarOutputStream(bytes, manifest);
+        out.putNextEntry(new ZipEntry(StdResolver.PATH_PREFIX + Svc.class.getName()));
+        out.write(descriptor.getBytes("UTF-8"));
+        out.closeEntry();
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * An updated bundle whose declarations and classes are unchanged reuses 
+     * the previous analysis
+     */
+    public void testUpdateReusesUnchangedWiring() throws Exception {
+        System.out.println("updateReusesUnchangedWiring");
+        StartupTimeline.setEnabled(true);
+        StartupTimeline.reset();
+        final Bundle bundle = context.installBundle("test:descriptors", new ByteArrayInputStream(descriptorBundle(SvcImpl.class.getName() + "\n")));
+        bundle.start();
+        assertNotNull(context.getServiceReference(Svc.class.getName()));
+        // Make sure the revision is not modified in the same millisecond
+        Thread.sleep(10);
+        bundle.update(new ByteArrayInputStream(descriptorBundle("# Updated\n" + SvcImpl.class.getName() + "\n")));
+        assertNotNull(context.getServiceReference(Svc.class.getName()));
+        assertEquals(1, context.getServiceReferences(Svc.class.getName(), null).length);
+        final StringWriter out = new StringWriter();
+        StartupTimeline.writeJson(out);
+        assertTrue(out.toString(), out.toString().contains("1 components (1 reused)"));
+    }
+}
@@ -0,0 +1,183 @@
+package eu.monnetproject.framework.services.impl;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+
+/**
+ * Races tracker events against each other and checks the outcome, in the
+ * manner of a jcstress test: many short trials, each with threads released
+ * together, followed by a check of the final state
+ *
+ * @author jmccrae
+ */
+public class BinderTest extends TestCase {
+
+    private static final int TRIALS = 2000;
+
+    public BinderTest(String testName) {
+        super(testName);
+    }
+
+    private static class Registration {
+        final Object[] values;
+        final AtomicInteger unregistered = new AtomicInteger();
+
+        Registration(BindingState state) {
+            values = new Object[state.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = state.get(i);
+            }
+        }
+    }
+
+    private static class TestBinder extends Binder<Registration> {
+        final List<Registration> registrations = new CopyOnWriteArrayList<Registration>();
+
+        TestBinder(int n) {
+            super(BindingState.initial(new Object[n], required(n)));
+        }
+
+        private static boolean[] required(int n) {
+            final boolean[] required = new boolean[n];
+            Arrays.fill(required, true);
+            return required;
+        }
+
+        @Override
+        protected Registration register(BindingState state) {
+            assertTrue(state.isSatisfied());
+            final Registration r = new Registration(state);
+            registrations.add(r);
+            return r;
+        }
+
+        @Override
+        protected void unregister(Registration registration) {
+            registration.unregistered.incrementAndGet();
+        }
+
+        /**
+         * Check that exactly the final state is registered, and that every
+         * other registration was withdrawn exactly once
+         */
+        void check() {
+            final BindingState state = state();
+            Registration live = null;
+            for (Registration r : registrations) {
+                if (r.unregistered.get() == 0) {
+                    assertNull("Two live registrations", live);
+                    live = r;
+                } else {
+                    assertEquals(1, r.unregistered.get());
+                }
+            }
+            if (state.isSatisfied()) {
+                assertNotNull("Satisfied but not registered", live);
+                for (int i = 0; i < state.size(); i++) {
+                    assertSame(state.get(i), live.values[i]);
+                }
+            } else {
+                assertNull("Unsatisfied but registered", live);
+            }
+        }
+    }
+
+    private static void race(Runnable... actors) throws InterruptedException {
+        final CountDownLatch go = new CountDownLatch(1);
+        final Thread[] threads = new Thread[actors.length];
+        for (int i = 0; i < actors.length; i++) {
+            final Runnable actor = actors[i];
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        go.await();
+                    } catch (InterruptedException x) {
+                        return;
+                    }
+                    actor.run();
+                }
+            };
+            threads[i].start();
+        }
+        go.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    /**
+     * Two dependencies bound concurrently, so that exactly one thread sees the
+     * component become satisfied
+     */
+    public void testConcurrentBind() throws Exception {
+        System.out.println("concurrentBind");
+        for (int t = 0; t < TRIALS; t++) {
+            final TestBinder binder = new TestBinder(2);
+            race(new Runnable() {
+                @Override
+                public void run() {
+                    binder.bind(0, "a");
+                }
+            }, new Runnable() {
+                @Override
+                public void run() {
+                    binder.bind(1, "b");
+                }
+            });
+            assertEquals(1, binder.registrations.size());
+            binder.check();
+        }
+    }
+
+    /**
+     * A dependency is removed while another is rebound, so registrations 
+     * made for superseded states must be withdrawn
+     */
+    public void testConcurrentBindAndUnbind() throws Exception {
+        System.out.println("concurrentBindAndUnbind");
+        for (int t = 0; t < TRIALS; t++) {
+            final TestBinder binder = new TestBinder(2);
+            binder.bind(0, "a");
+            binder.bind(1, "b");
+            race(new Runnable() {
+                @Override
+                public void run() {
+                    binder.unbind(0, "a");
+                    binder.bind(0, "a2");
+                }
+            }, new Runnable() {
+                @Override
+                public void run() {
+                    binder.bind(1, "b2");
+                    binder.unbind(1, "b2");
+                }
+            }, new Runnable() {
+                @Override
+                public void run() {
+                    binder.rebind();
+                }
+            });
+            binder.check();
+        }
+    }
+
+    /**
+     * Unbinding a dependency that is not bound does not change the state
+     */
+    public void testUnbindNotBound() {
+        System.out.println("unbindNotBound");
+        final TestBinder binder = new TestBinder(1);
+        assertFalse(binder.unbind(0, "a"));
+        binder.bind(0, "a");
+        assertFalse(binder.unbind(0, "b"));
+        assertTrue(binder.state().isSatisfied());
+        assertTrue(binder.unbind(0, "a"));
+        assertFalse(binder.state().isSatisfied());
+        binder.check();
+    }
+}
@@ -0,0 +1,133 @@
+package eu.monnetproject.framework.services.impl;
+
+import eu.monnetproject.framework.services.Checkpointable;
+import eu.monnetproject.framework.services.Services;
+import eu.monnetproject.framework.services.Singleton;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author jmccrae
+ */
+public class CheckpointTest extends TestCase {
+
+    public CheckpointTest(String testName) {
+        super(testName);
+    }
+
+    @Singleton
+    public static class CP1 implements Checkpointable {
+
+        int checkpoints, restores;
+
+        @Override
+        public void beforeCheckpoint() {
+            checkpoints++;
+        }
+
+        @Override
+        public void afterRestore() {
+            restores++;
+        }
+    }
+
+    /**
+     * Test of beforeCheckpoint and afterRestore methods, of class Checkpoint.
+     */
+    public void testCheckpoint() throws Exception {
+        System.out.println("checkpoint");
+        final InjectableClass<CP1> injectable = new InjectableClass<CP1>(CP1.class);
+        final CP1 cp1 = injectable.newInstance(new Object[0]);
+        try {
+            Services.beforeCheckpoint();
+            assertEquals(1, cp1.checkpoints);
+            assertEquals(0, cp1.restores);
+            final CountDownLatch resolved = new CountDownLatch(1);
+            final Thread resolver = new Thread() {
+                @Override
+                public void run() {
+                    Checkpoint.enter();
+                    Checkpoint.exit();
+                    resolved.countDown();
+                }
+            };
+            resolver.start();
+            assertFalse(resolved.await(100, TimeUnit.MILLISECONDS));
+            Services.afterRestore();
+            assertTrue(resolved.await(10, TimeUnit.SECONDS));
+            assertEquals(1, cp1.restores);
+        } finally {
+            injectable.resetSingleton();
+        }
+    }
+
+    /**
+     * A checkpoint waits for resolutions in progress, which may start nested
+     * resolutions
+     */
+    public void testWaitForResolution() throws Exception {
+        System.out.println("waitForResolution");
+        final CountDownLatch checkpointed = new CountDownLatch(1);
+        Checkpoint.enter();
+        try {
+            final Thread checkpointer = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Checkpoint.beforeCheckpoint();
+                        checkpointed.countDown();
+                        Checkpoint.afterRestore();
+                    } catch (Exception x) {
+                        x.printStackTrace();
+                    }
+                }
+            };
+            checkpointer.start();
+            assertFalse(checkpointed.await(100, TimeUnit.MILLISECONDS));
+            Checkpoint.enter();
+            Checkpoint.exit();
+            assertEquals(1, checkpointed.getCount());
+        } finally {
+            Checkpoint.exit();
+        }
+        assertTrue(checkpointed.await(10, TimeUnit.SECONDS));
+    }
+
+    /**
+     * A checkpoint closes the jars descriptors were read from
+     */
+    public void testCloseDescriptorJars() throws Exception {
+        System.out.println("closeDescriptorJars");
+        final File jar = File.createTempFile("descriptors", ".jar");
+        jar.deleteOnExit();
+        final ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jar));
+        try {
+            out.putNextEntry(new ZipEntry("META-INF/components/p.Svc"));
+            out.write("p.SvcImpl\n".getBytes("UTF-8"));
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+        final URL url = new URL("jar:" + jar.toURI().toURL() + "!/META-INF/components/p.Svc");
+        assertEquals("p.SvcImpl", DescriptorParser.parse(url).get(0).getClassName());
+        final JarFile cached = ((JarURLConnection) url.openConnection()).getJarFile();
+        assertNotNull(cached.getEntry("META-INF/components/p.Svc"));
+        Checkpoint.beforeCheckpoint();
+        Checkpoint.afterRestore();
+        try {
+            cached.getEntry("META-INF/components/p.Svc");
+            fail("The jar is still open");
+        } catch (IllegalStateException x) {
+            // closed
+        }
+    }
+}
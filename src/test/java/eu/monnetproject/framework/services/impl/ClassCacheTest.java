@@ -0,0 +1,124 @@
+package eu.monnetproject.framework.services.impl;
+
+import java.util.Arrays;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author jmccrae
+ */
+public class ClassCacheTest extends TestCase {
+
+    public ClassCacheTest(String testName) {
+        super(testName);
+    }
+
+    public static class Cached {
+    }
+
+    public static class Preloaded1 {
+
+        static final Thread thread = Thread.currentThread();
+        static final ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+    }
+
+    public static class Preloaded2 {
+
+        static final Thread thread = Thread.currentThread();
+    }
+
+    public static class Reentrant1 {
+
+        static {
+            ClassCache.preload(Reentrant1.class.getClassLoader(), Arrays.asList(Nested1.class.getName(), Nested2.class.getName()));
+        }
+    }
+
+    public static class Reentrant2 {
+
+        static {
+            ClassCache.preload(Reentrant2.class.getClassLoader(), Arrays.asList(Nested3.class.getName(), Nested4.class.getName()));
+        }
+    }
+
+    public static class Nested1 {
+    }
+
+    public static class Nested2 {
+    }
+
+    public static class Nested3 {
+    }
+
+    public static class Nested4 {
+    }
+
+    /**
+     * Test of loadClass method, of class ClassCache.
+     */
+    public void testLoadClass() throws Exception {
+        System.out.println("loadClass");
+        final JmxServiceMetrics metrics = new JmxServiceMetrics();
+        Metrics.set(metrics);
+        try {
+            final ClassLoader loader = getClass().getClassLoader();
+            assertSame(Cached.class, ClassCache.loadClass(loader, Cached.class.getName()));
+            assertSame(Cached.class, ClassCache.loadClass(loader, Cached.class.getName()));
+            assertEquals(Long.valueOf(1), metrics.getCacheMisses().get("class:" + Cached.class.getName()));
+            assertEquals(Long.valueOf(1), metrics.getCacheHits().get("class:" + Cached.class.getName()));
+            ClassCache.clear();
+            ClassCache.loadClass(loader, Cached.class.getName());
+            assertEquals(Long.valueOf(2), metrics.getCacheMisses().get("class:" + Cached.class.getName()));
+            try {
+                ClassCache.loadClass(loader, "eu.monnetproject.NoSuchClass");
+                fail("Class was loaded");
+            } catch (ClassNotFoundException x) {
+            }
+        } finally {
+            Metrics.set(null);
+        }
+    }
+
+    /**
+     * Test of preload method, of class ClassCache.
+     */
+    public void testPreload() throws Exception {
+        System.out.println("preload");
+        final ClassLoader loader = getClass().getClassLoader();
+        assertTrue(ClassCache.isParallelCapable(loader));
+        ClassCache.setPreloadThreads(2);
+        try {
+            ClassCache.preload(loader, Arrays.asList(Preloaded1.class.getName(), Preloaded2.class.getName(), "eu.monnetproject.NoSuchClass"));
+        } finally {
+            ClassCache.setPreloadThreads(0);
+        }
+        // Initialized on the pool, not when first used here
+        assertTrue(Preloaded1.thread.getName().startsWith("mfs-preload-"));
+        assertTrue(Preloaded2.thread.getName().startsWith("mfs-preload-"));
+        assertNull(Preloaded1.contextClassLoader);
+    }
+
+    /**
+     * A class initialized on the pool may preload other classes without
+     * waiting for the pool
+     */
+    public void testReentrantPreload() throws Exception {
+        System.out.println("reentrantPreload");
+        final ClassLoader loader = getClass().getClassLoader();
+        ClassCache.setPreloadThreads(2);
+        try {
+            final Thread preloader = new Thread() {
+                @Override
+                public void run() {
+                    ClassCache.preload(loader, Arrays.asList(Reentrant1.class.getName(), Reentrant2.class.getName()));
+                }
+            };
+            preloader.setDaemon(true);
+            preloader.start();
+            preloader.join(10000);
+            assertFalse("Preloading deadlocked", preloader.isAlive());
+        } finally {
+            ClassCache.setPreloadThreads(0);
+        }
+    }
+}
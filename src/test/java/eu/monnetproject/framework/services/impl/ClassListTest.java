@@ -0,0 +1,72 @@
+package eu.monnetproject.framework.services.impl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author jmccrae
+ */
+public class ClassListTest extends TestCase {
+
+    public ClassListTest(String testName) {
+        super(testName);
+    }
+
+    public interface CL1 {
+    }
+
+    public static class CL2 implements CL1 {
+    }
+
+    /**
+     * Test of write method, of class ClassList.
+     */
+    public void testWrite() throws Exception {
+        System.out.println("write");
+        final File list = File.createTempFile("classes", ".lst");
+        list.delete();
+        try {
+            ClassList.record(CL2.class);
+            ClassList.record(String.class);
+            ClassList.write(list);
+            ClassList.write(list);
+            final List<String> names = ClassList.read(list);
+            final int cl1 = names.indexOf("eu/monnetproject/framework/services/impl/ClassListTest$CL1");
+            final int cl2 = names.indexOf("eu/monnetproject/framework/services/impl/ClassListTest$CL2");
+            assertTrue(cl1 >= 0);
+            assertTrue(cl1 < cl2);
+            assertEquals(cl2, names.lastIndexOf("eu/monnetproject/framework/services/impl/ClassListTest$CL2"));
+            assertFalse(names.contains("java/lang/String"));
+        } finally {
+            list.delete();
+        }
+    }
+
+    /**
+     * Test of read method, of class ClassList, with a list written by the JVM.
+     */
+    public void testReadDumpedList() throws Exception {
+        System.out.println("readDumpedList");
+        final File list = File.createTempFile("classes", ".lst");
+        try {
+            final FileOutputStream out = new FileOutputStream(list);
+            try {
+                out.write(("# NOTE: Do not modify this file.\n"
+                        + "java/lang/Object id: 0\n"
+                        + "p/A id: 1 super: 0 source: app.jar\n"
+                        + "@lambda-proxy p/A run ()Ljava/lang/Runnable;\n").getBytes("UTF-8"));
+            } finally {
+                out.close();
+            }
+            final List<String> names = ClassList.read(list);
+            assertEquals(2, names.size());
+            assertEquals("java/lang/Object", names.get(0));
+            assertEquals("p/A", names.get(1));
+        } finally {
+            list.delete();
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package eu.monnetproject.framework.services.impl;
+
+import eu.monnetproject.framework.services.ComponentFactory;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import javax.tools.JavaCompiler;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author jmccrae
+ */
+public class ComponentFactoryProcessorTest extends TestCase {
+
+    public ComponentFactoryProcessorTest(String testName) {
+        super(testName);
+    }
+
+    private static void write(File dir, String path, String content) throws IOException {
+        final File file = new File(dir, path);
+        file.getParentFile().mkdirs();
+        final Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void delete(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * Test that factories are generated for declared classes and used by 
+     * InjectableClass.
+     */
+    public void testGeneratedFactory() throws Exception {
+        System.out.println("generatedFactory");
+        final JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            // Running on a JRE
+            return;
+        }
+        final File dir = File.createTempFile("factories", "");
+        dir.delete();
+        try {
+            final File src = new File(dir, "src"), classes = new File(dir, "classes");
+            write(src, "p/Svc.java", "package p; public interface Svc { }");
+            write(src, "p/Dep.java", "package p; public class Dep implements Svc { public Dep() { } }");
+            write(src, "p/Outer.java", "package p;\n"
+                    + "import eu.monnetproject.framework.services.NonEmpty;\n"
+                    + "import java.util.Collection;\n"
+                    + "public class Outer {\n"
+                    + "  public static class Impl implements Svc {\n"
+                    + "    public final int deps;\n"
+                    + "    public Impl(@NonEmpty Collection<Dep> deps, Dep dep) { this.deps = deps.size(); }\n"
+                    + "  }\n"
+                    + "}");
+            write(src, "p/ScopedImpl.java", "package p; @eu.monnetproject.framework.services.Scoped(\"request\") public class ScopedImpl implements Svc { }");
+            write(classes, "META-INF/components/p.Svc", "p.Outer$Impl\np.ScopedImpl\n");
+            write(classes, "META-INF/services/q.External", "q.ExternalImpl\n");
+            final StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null);
+            final List<File> sources = Arrays.asList(new File(src, "p/Svc.java"), new File(src, "p/Dep.java"), new File(src, "p/Outer.java"), new File(src, "p/ScopedImpl.java"));
+            final List<String> options = new ArrayList<String>(Arrays.asList(
+                    "-d", classes.getPath(), "-s", classes.getPath(),
+                    "-classpath", new File(ComponentFactory.class.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath()));
+            final JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, null, options, null, fileManager.getJavaFileObjectsFromFiles(sources));
+            task.setProcessors(Collections.singleton(new ComponentFactoryProcessor()));
+            assertTrue(task.call());
+            assertTrue(new File(classes, "p/Outer_Impl_ComponentFactory.class").exists());
+            assertFalse(new File(classes, "p/Dep_ComponentFactory.class").exists());
+            final String reflectConfig = new String(Files.readAllBytes(new File(classes, "META-INF/native-image/components/reflect-config.json").toPath()), "UTF-8");
+            assertTrue(reflectConfig.contains("{\"name\": \"p.Outer_Impl_ComponentFactory\", \"methods\""));
+            assertTrue(reflectConfig.contains("{\"name\": \"p.Svc\"}"));
+            assertTrue(reflectConfig.contains("{\"name\": \"q.ExternalImpl\", \"allPublicConstructors\": true}"));
+            assertTrue(new File(classes, "META-INF/native-image/components/resource-config.json").exists());
+            assertEquals("p.Outer$Impl;factory=p.Outer_Impl_ComponentFactory\np.ScopedImpl;factory=p.ScopedImpl_ComponentFactory;scope=request\n",
+                    new String(Files.readAllBytes(new File(classes, ComponentFactory.INDEX).toPath()), "UTF-8").replace("\r", ""));
+
+            // Entries of classes that are not compiled again are kept
+            write(src, "p/ScopedImpl.java", "package p; public class ScopedImpl implements Svc { public ScopedImpl(int x) { } }");
+            options.set(options.size() - 1, options.get(options.size() - 1) + File.pathSeparator + classes.getPath());
+            final JavaCompiler.CompilationTask task2 = compiler.getTask(null, fileManager, null, options, null, fileManager.getJavaFileObjectsFromFiles(Arrays.asList(new File(src, "p/ScopedImpl.java"))));
+            task2.setProcessors(Collections.singleton(new ComponentFactoryProcessor()));
+            assertTrue(task2.call());
+            assertEquals("p.Outer$Impl;factory=p.Outer_Impl_ComponentFactory\n",
+                    new String(Files.readAllBytes(new File(classes, ComponentFactory.INDEX).toPath()), "UTF-8").replace("\r", ""));
+
+            fileManager.close();
+
+            final URLClassLoader loader = new URLClassLoader(new URL[]{classes.toURI().toURL()}, getClass().getClassLoader());
+            @SuppressWarnings("unchecked")
+            final InjectableClass<Object> injectable = new InjectableClass<Object>((Class<Object>) loader.loadClass("p.Outer$Impl"));
+            final Type[] deps = injectable.dependencies();
+            assertEquals(2, deps.length);
+            // Built from the factory rather than by reflection
+            assertTrue(deps[0] instanceof SimpleParameterizedType);
+            assertEquals(Collection.class, ((ParameterizedType) deps[0]).getRawType());
+            assertTrue(InjectableClass.isMultiple(deps[0]));
+            assertEquals(loader.loadClass("p.Dep"), InjectableClass.getRealType(deps[0]));
+            assertEquals(loader.loadClass("p.Dep"), deps[1]);
+            assertTrue(Arrays.equals(new boolean[]{true, false}, injectable.isNonEmpty()));
+            final Object dep = loader.loadClass("p.Dep").newInstance();
+            final Object impl = injectable.newInstance(new Object[]{Arrays.asList(dep, dep), dep});
+            assertEquals(2, impl.getClass().getField("deps").get(impl));
+            assertNull(injectable.getScope());
+        } finally {
+            delete(dir);
+        }
+    }
+}
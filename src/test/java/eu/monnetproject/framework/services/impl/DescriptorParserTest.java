@@ -0,0 +1,69 @@
+package eu.monnetproject.framework.services.impl;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author jmccrae
+ */
+public class DescriptorParserTest extends TestCase {
+
+    public DescriptorParserTest(String testName) {
+        super(testName);
+    }
+
+    private static List<DescriptorParser.Declaration> parse(String s) throws Exception {
+        return DescriptorParser.parse(new ByteArrayInputStream(s.getBytes("UTF-8")));
+    }
+
+    /**
+     * Test of parse method, of class DescriptorParser.
+     */
+    public void testParseNames() throws Exception {
+        final List<DescriptorParser.Declaration> result = parse("com.example.A\n\n  com.example.B  \r\n\t\ncom.example.C");
+        assertEquals(3, result.size());
+        assertEquals("com.example.A", result.get(0).getClassName());
+        assertEquals("com.example.B", result.get(1).getClassName());
+        assertEquals("com.example.C", result.get(2).getClassName());
+        assertTrue(result.get(0).getProperties().isEmpty());
+    }
+
+    /**
+     * Test of parse method, of class DescriptorParser.
+     */
+    public void testParseComments() throws Exception {
+        final List<DescriptorParser.Declaration> result = parse("# A comment\ncom.example.A # trailing\n   # indented\n");
+        assertEquals(1, result.size());
+        assertEquals("com.example.A", result.get(0).getClassName());
+    }
+
+    /**
+     * Test of parse method, of class DescriptorParser.
+     */
+    public void testParseProperties() throws Exception {
+        final List<DescriptorParser.Declaration> result = parse("com.example.A;lang=en; rank = 2 ;flag\ncom.example.B;x=y#z\n");
+        assertEquals(2, result.size());
+        assertEquals("com.example.A", result.get(0).getClassName());
+        assertEquals("en", result.get(0).getProperties().get("lang"));
+        assertEquals("2", result.get(0).getProperties().get("rank"));
+        assertEquals("", result.get(0).getProperties().get("flag"));
+        assertEquals("y", result.get(1).getProperties().get("x"));
+        assertEquals(1, result.get(1).getProperties().size());
+    }
+
+    /**
+     * Test of parse method, of class DescriptorParser.
+     */
+    public void testParseLarge() throws Exception {
+        final StringBuilder sb = new StringBuilder("\ufeff");
+        for (int i = 0; i < 2000; i++) {
+            sb.append("com.example.Impl").append(i).append("\n");
+        }
+        final List<DescriptorParser.Declaration> result = parse(sb.toString());
+        assertEquals(2000, result.size());
+        assertEquals("com.example.Impl0", result.get(0).getClassName());
+        assertEquals("com.example.Impl1999", result.get(1999).getClassName());
+    }
+}
@@ -0,0 +1,267 @@
+package eu.monnetproject.framework.services.impl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Proxy;
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import eu.monnetproject.framework.services.Memoized;
+import eu.monnetproject.framework.services.ServiceCollection;
+import eu.monnetproject.framework.services.ServiceCollectionListener;
+import javax.management.JMX;
+import javax.management.ObjectName;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author jmccrae
+ */
+public class FactoryDispatcherTest extends TestCase {
+
+    public FactoryDispatcherTest(String testName) {
+        super(testName);
+    }
+
+    public static interface Lookup {
+
+        String lookup(String key);
+    }
+
+    public static interface MemoLookup extends Lookup {
+
+        @Memoized(maximumSize = 2)
+        @Override
+        String lookup(String key);
+    }
+
+    public static interface WeighedLookup extends Lookup {
+
+        @Memoized(maximumWeight = 10)
+        @Override
+        String lookup(String key);
+    }
+
+    private static class CountingLookup implements MemoLookup, WeighedLookup {
+
+        final String answer;
+        int calls;
+
+        CountingLookup(String answer) {
+            this.answer = answer;
+        }
+
+        @Override
+        public String lookup(String key) {
+            calls++;
+            return answer;
+        }
+    }
+
+    /**
+     * A collection that reports the services added to it
+     */
+    private static class ChangingCollection<S> extends AbstractCollection<S> implements ServiceCollection<S> {
+
+        final List<S> services = new ArrayList<S>();
+        final List<ServiceCollectionListener<? super S>> listeners = new ArrayList<ServiceCollectionListener<? super S>>();
+
+        @Override
+        public ServiceIterator<S> iterator() {
+            final Iterator<S> iter = services.iterator();
+            return new ServiceIterator<S>() {
+                @Override
+                public Map<String, Object> props() {
+                    return Collections.emptyMap();
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return iter.hasNext();
+                }
+
+                @Override
+                public S next() {
+                    return iter.next();
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return services.size();
+        }
+
+        @Override
+        public void addListener(ServiceCollectionListener<? super S> listener) {
+            for (S service : services) {
+                listener.serviceAdded(service, Collections.<String, Object>emptyMap());
+            }
+            listeners.add(listener);
+        }
+
+        @Override
+        public boolean add(S service) {
+            services.add(0, service);
+            for (ServiceCollectionListener<? super S> listener : listeners) {
+                listener.serviceAdded(service, Collections.<String, Object>emptyMap());
+            }
+            return true;
+        }
+    }
+
+    private static Lookup factory(List<Lookup> lookups, boolean adaptive) {
+        return (Lookup) Proxy.newProxyInstance(Lookup.class.getClassLoader(), new Class<?>[]{Lookup.class},
+                new FactoryDispatcher<Lookup>(Lookup.class, lookups, adaptive));
+    }
+
+    /**
+     * Without adaptation the implementations are always called in order
+     */
+    public void testFixedOrder() {
+        System.out.println("fixedOrder");
+        final CountingLookup a = new CountingLookup(null), b = new CountingLookup("b"), c = new CountingLookup("c");
+        final Lookup factory = factory(new ArrayList<Lookup>(Arrays.<Lookup>asList(a, b, c)), false);
+        for (int i = 0; i < 2000; i++) {
+            assertEquals("b", factory.lookup("x"));
+        }
+        assertEquals(2000, a.calls);
+        assertEquals(0, c.calls);
+    }
+
+    /**
+     * The only implementation that answers is moved first
+     */
+    public void testAdaptiveOrder() {
+        System.out.println("adaptiveOrder");
+        final CountingLookup a = new CountingLookup(null), b = new CountingLookup(null), c = new CountingLookup("c");
+        final FactoryDispatcher<Lookup> dispatcher = new FactoryDispatcher<Lookup>(Lookup.class,
+                new ArrayList<Lookup>(Arrays.<Lookup>asList(a, b, c)), true);
+        final Lookup factory = (Lookup) Proxy.newProxyInstance(Lookup.class.getClassLoader(), new Class<?>[]{Lookup.class}, dispatcher);
+        for (int i = 0; i < 10; i++) {
+            assertEquals("c", factory.lookup("x"));
+        }
+        dispatcher.refresh();
+        a.calls = 0;
+        b.calls = 0;
+        for (int i = 0; i < 10; i++) {
+            assertEquals("c", factory.lookup("x"));
+        }
+        assertEquals(0, a.calls);
+        assertEquals(0, b.calls);
+        assertTrue(dispatcher.getOrder().values().iterator().next().startsWith(CountingLookup.class.getName() + "#2"));
+    }
+
+    /**
+     * Memoized results are returned until evicted or invalidated
+     */
+    public void testMemoized() {
+        System.out.println("memoized");
+        final CountingLookup a = new CountingLookup(null), b = new CountingLookup("b");
+        final FactoryDispatcher<MemoLookup> dispatcher = new FactoryDispatcher<MemoLookup>(MemoLookup.class,
+                new ArrayList<MemoLookup>(Arrays.<MemoLookup>asList(a, b)), false);
+        final MemoLookup factory = (MemoLookup) Proxy.newProxyInstance(MemoLookup.class.getClassLoader(), new Class<?>[]{MemoLookup.class}, dispatcher);
+        assertEquals("b", factory.lookup("x"));
+        assertEquals("b", factory.lookup("x"));
+        assertEquals(1, b.calls);
+        factory.lookup("y");
+        factory.lookup("z");
+        // x was evicted as the least recently used
+        factory.lookup("x");
+        assertEquals(4, b.calls);
+        dispatcher.invalidate();
+        factory.lookup("x");
+        assertEquals(5, b.calls);
+        // Each call that was not memoized queried both implementations
+        assertEquals(5, a.calls);
+    }
+
+    /**
+     * Memoized results are dropped when the collection reports a change, but
+     * not when it reports the current services
+     */
+    public void testMemoizedChange() {
+        System.out.println("memoizedChange");
+        final CountingLookup a = new CountingLookup("a"), b = new CountingLookup("b");
+        final ChangingCollection<MemoLookup> all = new ChangingCollection<MemoLookup>();
+        all.services.add(a);
+        final MemoLookup factory = (MemoLookup) Proxy.newProxyInstance(MemoLookup.class.getClassLoader(), new Class<?>[]{MemoLookup.class},
+                new FactoryDispatcher<MemoLookup>(MemoLookup.class, all, false));
+        assertEquals("a", factory.lookup("x"));
+        assertEquals("a", factory.lookup("x"));
+        assertEquals(1, a.calls);
+        all.add(b);
+        assertEquals("b", factory.lookup("x"));
+        assertEquals(1, a.calls);
+        assertEquals(1, b.calls);
+    }
+
+    /**
+     * Results are dropped when their total weight exceeds the maximum
+     */
+    public void testMemoizedWeight() {
+        System.out.println("memoizedWeight");
+        final CountingLookup a = new CountingLookup("abcd");
+        final WeighedLookup factory = (WeighedLookup) Proxy.newProxyInstance(WeighedLookup.class.getClassLoader(), new Class<?>[]{WeighedLookup.class},
+                new FactoryDispatcher<WeighedLookup>(WeighedLookup.class, new ArrayList<WeighedLookup>(Arrays.<WeighedLookup>asList(a)), false));
+        factory.lookup("x");
+        factory.lookup("y");
+        factory.lookup("x");
+        assertEquals(2, a.calls);
+        // 12 characters are more than 10, so the least recently used y is dropped
+        factory.lookup("z");
+        factory.lookup("z");
+        factory.lookup("x");
+        assertEquals(3, a.calls);
+        factory.lookup("y");
+        assertEquals(4, a.calls);
+    }
+
+    private static int countCalls(FactoryDispatcherMXBean mbean, String prefix) {
+        int n = 0;
+        for (String key : mbean.getCalls().keySet()) {
+            if (key.startsWith(prefix)) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * All adaptive factories are shown by one MBean, which drops factories 
+     * that are no longer used
+     */
+    public void testMBean() throws Exception {
+        System.out.println("mbean");
+        final FactoryDispatcher<Lookup> d1 = new FactoryDispatcher<Lookup>(Lookup.class,
+                new ArrayList<Lookup>(Arrays.<Lookup>asList(new CountingLookup("a"))), true);
+        FactoryDispatcher<Lookup> d2 = new FactoryDispatcher<Lookup>(Lookup.class,
+                new ArrayList<Lookup>(Arrays.<Lookup>asList(new CountingLookup("b"))), true);
+        d1.register();
+        d2.register();
+        ((Lookup) Proxy.newProxyInstance(Lookup.class.getClassLoader(), new Class<?>[]{Lookup.class}, d1)).lookup("x");
+        ((Lookup) Proxy.newProxyInstance(Lookup.class.getClassLoader(), new Class<?>[]{Lookup.class}, d2)).lookup("x");
+        final FactoryDispatcherMXBean mbean = JMX.newMXBeanProxy(ManagementFactory.getPlatformMBeanServer(),
+                new ObjectName("eu.monnetproject.framework.services:type=FactoryDispatcher"), FactoryDispatcherMXBean.class);
+        final String prefix = Lookup.class.getName() + "[";
+        assertEquals(2, countCalls(mbean, prefix));
+        final WeakReference<Object> ref = new WeakReference<Object>(d2);
+        d2 = null;
+        for (int i = 0; i < 50 && ref.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(ref.get());
+        assertEquals(1, countCalls(mbean, prefix));
+        assertNotNull(d1);
+    }
+}
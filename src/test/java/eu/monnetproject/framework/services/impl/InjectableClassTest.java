@@ -1,8 +1,21 @@
 package eu.monnetproject.framework.services.impl;
 
 import eu.monnetproject.framework.services.Inject;
+import eu.monnetproject.framework.services.Pooled;
+import eu.monnetproject.framework.services.Scoped;
+import eu.monnetproject.framework.services.ServiceScope;
+import eu.monnetproject.framework.services.Singleton;
+import eu.monnetproject.framework.services.SingletonRetention;
 import java.lang.reflect.Type;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import junit.framework.TestCase;
 
 /**
@@ -35,6 +48,43 @@ public class InjectableClassTest extends TestCase {
         
     }
     
+    @Scoped
+    public static class IJ4 {
+        
+    }
+    
+    @Scoped("request")
+    public static class IJ5 {
+        
+    }
+    
+    @Pooled(max = 1)
+    public static class IJ6 {
+        
+    }
+    
+    @Pooled(max = 4)
+    public static class IJ9 {
+    }
+    
+    @Singleton(retention = SingletonRetention.IDLE, idleTimeout = 100)
+    public static class IJ7 implements AutoCloseable {
+        boolean closed = false;
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+    
+    @Singleton
+    public static class IJ8 {
+        public IJ8() throws InterruptedException {
+            // A slow constructor, e.g., one doing I/O
+            Thread.sleep(50);
+        }
+    }
+    
     public static class IJ3 {
         public IJ3(String s) {
             System.out.println(s);
@@ -83,4 +133,181 @@ public class InjectableClassTest extends TestCase {
         Object result = instance.newInstance(args);
         assertNotNull(result);
     }
+
+    /**
+     * Test of newInstance method, of class InjectableClass, with the thread scope.
+     */
+    public void testNewInstanceThreadScoped() throws Exception {
+        System.out.println("newInstanceThreadScoped");
+        final InjectableClass<IJ4> instance = new InjectableClass<IJ4>(IJ4.class);
+        final IJ4 first = instance.newInstance(new Object[0]);
+        assertSame(first, instance.newInstance(new Object[0]));
+        assertSame(first, instance.cachedInstance());
+        final Object[] other = new Object[1];
+        final Thread thread = new Thread() {
+            @Override
+            public void run() {
+                other[0] = instance.newInstance(new Object[0]);
+            }
+        };
+        thread.start();
+        thread.join();
+        assertNotNull(other[0]);
+        assertNotSame(first, other[0]);
+    }
+
+    /**
+     * Clearing the thread scope discards its instances
+     */
+    public void testClearThreadScope() {
+        System.out.println("clearThreadScope");
+        final InjectableClass<IJ4> instance = new InjectableClass<IJ4>(IJ4.class);
+        final IJ4 first = instance.newInstance(new Object[0]);
+        ServiceScope.clearThreadScope();
+        assertNull(instance.cachedInstance());
+        assertNotSame(first, instance.newInstance(new Object[0]));
+    }
+
+    /**
+     * Purging a class loader removes its instances from the thread scopes of
+     * other threads
+     */
+    public void testPurgeThreadScopes() throws Exception {
+        System.out.println("purgeThreadScopes");
+        final InjectableClass<IJ4> instance = new InjectableClass<IJ4>(IJ4.class);
+        final Object[] cached = new Object[1];
+        final CountDownLatch created = new CountDownLatch(1);
+        final CountDownLatch purged = new CountDownLatch(1);
+        final Thread thread = new Thread() {
+            @Override
+            public void run() {
+                instance.newInstance(new Object[0]);
+                created.countDown();
+                try {
+                    purged.await();
+                } catch (InterruptedException x) {
+                    return;
+                }
+                cached[0] = instance.cachedInstance();
+            }
+        };
+        thread.start();
+        assertTrue(created.await(10, TimeUnit.SECONDS));
+        assertTrue(ScopeCache.purge(IJ4.class.getClassLoader()) >= 1);
+        purged.countDown();
+        thread.join();
+        assertNull(cached[0]);
+    }
+
+    /**
+     * Test of newInstance method, of class InjectableClass, with an opened scope.
+     */
+    public void testNewInstanceScoped() {
+        System.out.println("newInstanceScoped");
+        final InjectableClass<IJ5> instance = new InjectableClass<IJ5>(IJ5.class);
+        assertNotSame(instance.newInstance(new Object[0]), instance.newInstance(new Object[0]));
+        final ServiceScope scope = ServiceScope.open("request");
+        final IJ5 first;
+        try {
+            first = instance.newInstance(new Object[0]);
+            assertSame(first, instance.newInstance(new Object[0]));
+            assertEquals(1, scope.size());
+        } finally {
+            scope.close();
+        }
+        assertNull(instance.cachedInstance());
+        assertNotSame(first, instance.newInstance(new Object[0]));
+    }
+
+    /**
+     * Test of newInstance method, of class InjectableClass, with a pooled class.
+     */
+    public void testNewInstancePooled() {
+        System.out.println("newInstancePooled");
+        final InjectableClass<IJ6> instance = new InjectableClass<IJ6>(IJ6.class);
+        final InstancePool<IJ6> pool = InstancePool.forClass(IJ6.class);
+        assertNull(instance.cachedInstance());
+        final IJ6 first = instance.newInstance(new Object[0]);
+        final IJ6 second = instance.newInstance(new Object[0]);
+        assertNotSame(first, second);
+        assertEquals(2, pool.outstanding());
+        InstancePool.release(first);
+        InstancePool.release(second);
+        // Only one idle instance is kept
+        assertEquals(1, pool.idle());
+        assertSame(first, instance.cachedInstance());
+        assertNull(instance.cachedInstance());
+        InstancePool.release(first);
+    }
+
+    /**
+     * An instance released twice is only idle once
+     */
+    public void testReleaseTwice() {
+        System.out.println("releaseTwice");
+        final InjectableClass<IJ9> instance = new InjectableClass<IJ9>(IJ9.class);
+        final InstancePool<IJ9> pool = InstancePool.forClass(IJ9.class);
+        final IJ9 first = instance.newInstance(new Object[0]);
+        InstancePool.release(first);
+        InstancePool.release(first);
+        assertEquals(1, pool.idle());
+        assertSame(first, instance.cachedInstance());
+        assertNull(instance.cachedInstance());
+        assertNull(InstancePool.forClass(IJ1.class));
+    }
+
+    /**
+     * Test of newInstance method, of class InjectableClass, with an idle singleton.
+     */
+    public void testNewInstanceIdleSingleton() throws Exception {
+        System.out.println("newInstanceIdleSingleton");
+        final InjectableClass<IJ7> instance = new InjectableClass<IJ7>(IJ7.class);
+        final IJ7 first = instance.newInstance(new Object[0]);
+        assertSame(first, instance.newInstance(new Object[0]));
+        Thread.sleep(200);
+        assertNull(instance.cachedInstance());
+        // Forgotten but not closed, as it may have been injected
+        assertFalse(first.closed);
+        final IJ7 second = instance.newInstance(new Object[0]);
+        assertNotSame(first, second);
+        assertTrue(SingletonStore.dispose(IJ7.class.getClassLoader()) >= 1);
+        assertTrue(second.closed);
+        assertTrue(HeapEstimator.estimate(second) >= 16);
+    }
+
+    /**
+     * Test of newInstance method, of class InjectableClass, with many callers
+     * of a slow singleton. Uses virtual threads if the JVM supports them.
+     */
+    public void testNewInstanceSingletonConcurrent() throws Exception {
+        System.out.println("newInstanceSingletonConcurrent");
+        final InjectableClass<IJ8> instance = new InjectableClass<IJ8>(IJ8.class);
+        final int callers = 32;
+        ExecutorService executor;
+        try {
+            executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (NoSuchMethodException x) {
+            executor = Executors.newFixedThreadPool(callers);
+        }
+        final List<Future<IJ8>> results = new ArrayList<Future<IJ8>>();
+        final long start = System.nanoTime();
+        for (int i = 0; i < callers; i++) {
+            results.add(executor.submit(new Callable<IJ8>() {
+                @Override
+                public IJ8 call() {
+                    return instance.newInstance(new Object[0]);
+                }
+            }));
+        }
+        final IJ8 first = results.get(0).get();
+        for (Future<IJ8> result : results) {
+            assertSame(first, result.get());
+        }
+        final long elapsed = (System.nanoTime() - start) / 1000000;
+        executor.shutdown();
+        instance.resetSingleton();
+        // If the constructor were called while holding a lock the callers would
+        // wait for each other and this would take callers * 50 ms
+        assertTrue("Took " + elapsed + "ms", elapsed < callers * 50 / 2);
+    }
 }
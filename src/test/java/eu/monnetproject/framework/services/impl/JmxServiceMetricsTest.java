@@ -0,0 +1,89 @@
+package eu.monnetproject.framework.services.impl;
+
+import eu.monnetproject.framework.services.ServiceLoadException;
+import eu.monnetproject.framework.services.ServiceMetrics;
+import eu.monnetproject.framework.services.Services;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import javax.management.JMX;
+import javax.management.ObjectName;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author jmccrae
+ */
+public class JmxServiceMetricsTest extends TestCase {
+
+    public JmxServiceMetricsTest(String testName) {
+        super(testName);
+    }
+
+    private static final String GREETER = ServiceLoaderResolverTest.Greeter.class.getName();
+
+    @Override
+    protected void tearDown() throws Exception {
+        Services.setMetrics(null);
+    }
+
+    /**
+     * Lookups are counted by get and getAll, including lookups that fail
+     */
+    public void testLookups() {
+        System.out.println("lookups");
+        final JmxServiceMetrics metrics = new JmxServiceMetrics();
+        Services.setMetrics(metrics);
+        assertSame(metrics, Services.getMetrics());
+        assertNotNull(Services.get(ServiceLoaderResolverTest.Greeter.class));
+        assertEquals(Long.valueOf(1), metrics.getLookups().get(GREETER));
+        for (ServiceLoaderResolverTest.Greeter greeter : Services.getAll(ServiceLoaderResolverTest.Greeter.class)) {
+            assertNotNull(greeter);
+        }
+        assertEquals(Long.valueOf(2), metrics.getLookups().get(GREETER));
+        try {
+            Services.get(Runnable.class);
+            fail("Runnable was resolved");
+        } catch (ServiceLoadException x) {
+        }
+        assertEquals(Long.valueOf(1), metrics.getLookups().get(Runnable.class.getName()));
+        metrics.reset();
+        assertTrue(metrics.getLookups().isEmpty());
+    }
+
+    /**
+     * Other implementations of the SPI receive the events
+     */
+    public void testCustomMetrics() {
+        System.out.println("customMetrics");
+        final List<String> lookups = new ArrayList<String>();
+        Services.setMetrics(new JmxServiceMetrics() {
+            @Override
+            public void lookup(String serviceClass) {
+                lookups.add(serviceClass);
+            }
+        });
+        Services.get(ServiceLoaderResolverTest.Greeter.class);
+        assertEquals(1, lookups.size());
+        assertEquals(GREETER, lookups.get(0));
+        Services.setMetrics(null);
+        Services.get(ServiceLoaderResolverTest.Greeter.class);
+        assertEquals(1, lookups.size());
+    }
+
+    /**
+     * Registering again returns the registered instance
+     */
+    public void testRegister() throws Exception {
+        System.out.println("register");
+        final JmxServiceMetrics metrics = JmxServiceMetrics.register();
+        assertSame(metrics, JmxServiceMetrics.register());
+        final ServiceMetrics spi = metrics;
+        spi.lookup("a.B");
+        final JmxServiceMetricsMXBean mbean = JMX.newMXBeanProxy(ManagementFactory.getPlatformMBeanServer(),
+                new ObjectName(JmxServiceMetrics.OBJECT_NAME), JmxServiceMetricsMXBean.class);
+        assertEquals(Long.valueOf(1), mbean.getLookups().get("a.B"));
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName(SingletonStore.OBJECT_NAME)));
+        metrics.reset();
+    }
+}
@@ -0,0 +1,347 @@
+package eu.monnetproject.framework.services.impl;
+
+import eu.monnetproject.framework.services.ServiceCollection;
+import eu.monnetproject.framework.services.ServiceCollectionListener;
+import java.io.File;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import junit.framework.TestCase;
+import org.apache.felix.framework.Felix;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ *
+ * @author jmccrae
+ */
+public class OSGiComponentTest extends TestCase {
+
+    private File storage;
+    private Felix framework;
+    private BundleContext context;
+
+    public OSGiComponentTest(String testName) {
+        super(testName);
+    }
+
+    public static interface Dep {
+    }
+
+    public static class DepImpl implements Dep {
+    }
+
+    public static class NamedDep implements Dep {
+
+        final String name;
+
+        public NamedDep(String name) {
+            this.name = name;
+        }
+    }
+
+    public static interface Deps {
+
+        Collection<Dep> deps();
+    }
+
+    public static class DepsImpl implements Deps {
+
+        private final Collection<Dep> deps;
+
+        public DepsImpl(Collection<Dep> deps) {
+            this.deps = deps;
+        }
+
+        @Override
+        public Collection<Dep> deps() {
+            return deps;
+        }
+    }
+
+    private static class RecordingListener implements ServiceCollectionListener<Dep> {
+
+        final List<String> events = new ArrayList<String>();
+
+        @Override
+        public void serviceAdded(Dep service, Map<String, Object> props) {
+            events.add("added " + ((NamedDep) service).name);
+        }
+
+        @Override
+        public void serviceRemoved(Dep service, Map<String, Object> props) {
+            events.add("removed " + ((NamedDep) service).name);
+        }
+
+        @Override
+        public void serviceModified(Dep service, Map<String, Object> props) {
+            events.add("modified " + ((NamedDep) service).name + " " + props.get("rank"));
+        }
+    }
+
+    private static class FailingListener implements ServiceCollectionListener<Dep> {
+
+        @Override
+        public void serviceAdded(Dep service, Map<String, Object> props) {
+            throw new RuntimeException("added");
+        }
+
+        @Override
+        public void serviceRemoved(Dep service, Map<String, Object> props) {
+            throw new RuntimeException("removed");
+        }
+
+        @Override
+        public void serviceModified(Dep service, Map<String, Object> props) {
+            throw new RuntimeException("modified");
+        }
+    }
+
+    public static interface Svc {
+
+        Dep dep();
+    }
+
+    public static class SvcImpl implements Svc {
+
+        private final Dep dep;
+
+        public SvcImpl(Dep dep) {
+            this.dep = dep;
+        }
+
+        @Override
+        public Dep dep() {
+            return dep;
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        storage = File.createTempFile("felix-cache", "");
+        storage.delete();
+        final Map<String, Object> props = new HashMap<String, Object>();
+        props.put(Constants.FRAMEWORK_STORAGE, storage.getAbsolutePath());
+        props.put(Constants.FRAMEWORK_STORAGE_CLEAN, Constants.FRAMEWORK_STORAGE_CLEAN_ONFIRSTINIT);
+        framework = new Felix(props);
+        framework.init();
+        framework.start();
+        context = framework.getBundleContext();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        OSGiComponent.setLazy(false);
+        StartupTimeline.setEnabled(false);
+        StartupTimeline.reset();
+        framework.stop();
+        framework.waitForStop(10000);
+        deleteRecursive(storage);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <C> InjectableClass<C> injectable(Class<? extends C> clazz) {
+        return (InjectableClass<C>) new InjectableClass(clazz);
+    }
+
+    private static void deleteRecursive(File file) {
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursive(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * The dependency that completes a component is on the critical path
+     */
+    public void testTimelineOrder() throws Exception {
+        System.out.println("timelineOrder");
+        StartupTimeline.setEnabled(true);
+        StartupTimeline.reset();
+        context.registerService(Dep.class.getName(), new DepImpl(), new Hashtable<String, Object>());
+        final OSGiComponent<Svc> component = new OSGiComponent<Svc>(injectable(SvcImpl.class), Svc.class, context);
+        component.start();
+        try {
+            assertNotNull(context.getServiceReference(Svc.class.getName()));
+            final StringWriter out = new StringWriter();
+            StartupTimeline.writeJson(out);
+            final String json = out.toString();
+            final String path = json.substring(json.indexOf("\"criticalPath\""), json.indexOf("\"slowestConstructors\""));
+            assertTrue(path, path.contains("\"component\": \"" + SvcImpl.class.getName() + "\", \"service\": \""
+                    + Svc.class.getName() + "\", \"satisfiedBy\": \"" + Dep.class.getName() + "\""));
+        } finally {
+            component.stop();
+        }
+    }
+
+    /**
+     * Stopping a component does not fall back to the other services of a
+     * dependency, and closes the tracker
+     */
+    public void testStop() throws Exception {
+        System.out.println("stop");
+        final Map<Dep, ServiceRegistration> deps = new HashMap<Dep, ServiceRegistration>();
+        for (int i = 0; i < 16; i++) {
+            final Dep dep = new DepImpl();
+            deps.put(dep, context.registerService(Dep.class.getName(), dep, new Hashtable<String, Object>()));
+        }
+        final OSGiComponent<Svc> component = new OSGiComponent<Svc>(injectable(SvcImpl.class), Svc.class, context);
+        component.start();
+        // Fall back to another service, so the one bound is not the last seen
+        final ServiceReference ref = context.getServiceReference(Svc.class.getName());
+        deps.get(((Svc) context.getService(ref)).dep()).unregister();
+        context.ungetService(ref);
+        assertNotNull(context.getServiceReference(Svc.class.getName()));
+        final AtomicInteger registrations = new AtomicInteger();
+        context.addServiceListener(new ServiceListener() {
+            @Override
+            public void serviceChanged(ServiceEvent event) {
+                if (event.getType() == ServiceEvent.REGISTERED) {
+                    registrations.incrementAndGet();
+                }
+            }
+        }, "(objectClass=" + Svc.class.getName() + ")");
+        component.stop();
+        assertEquals(0, registrations.get());
+        assertNull(context.getServiceReference(Svc.class.getName()));
+        assertEquals(0, SharedTrackers.size());
+    }
+
+    private static Hashtable<String, Object> rank(int rank) {
+        final Hashtable<String, Object> props = new Hashtable<String, Object>();
+        props.put("rank", rank);
+        return props;
+    }
+
+    /**
+     * Listeners on an injected collection are told about the services it
+     * has, then about changes in order, even if another listener throws
+     */
+    @SuppressWarnings("unchecked")
+    public void testCollectionListener() throws Exception {
+        System.out.println("collectionListener");
+        final ServiceRegistration a = context.registerService(Dep.class.getName(), new NamedDep("a"), rank(0));
+        final OSGiComponent<Deps> component = new OSGiComponent<Deps>(injectable(DepsImpl.class), Deps.class, context);
+        component.start();
+        try {
+            final ServiceReference ref = context.getServiceReference(Deps.class.getName());
+            final ServiceCollection<Dep> deps = (ServiceCollection<Dep>) ((Deps) context.getService(ref)).deps();
+            final RecordingListener listener = new RecordingListener();
+            deps.addListener(new FailingListener());
+            deps.addListener(listener);
+            final ServiceRegistration b = context.registerService(Dep.class.getName(), new NamedDep("b"), rank(0));
+            b.setProperties(rank(1));
+            a.unregister();
+            deps.removeListener(listener);
+            b.unregister();
+            assertEquals(Arrays.asList("added a", "added b", "modified b 1", "removed a"), listener.events);
+            context.ungetService(ref);
+        } finally {
+            component.stop();
+        }
+    }
+
+    /**
+     * The spliterator of an injected collection is over a snapshot, and
+     * forEachService reuses one properties map for all services
+     */
+    @SuppressWarnings("unchecked")
+    public void testSpliteratorAndForEachService() throws Exception {
+        System.out.println("spliteratorAndForEachService");
+        context.registerService(Dep.class.getName(), new NamedDep("a"), rank(0));
+        final OSGiComponent<Deps> component = new OSGiComponent<Deps>(injectable(DepsImpl.class), Deps.class, context);
+        component.start();
+        try {
+            final ServiceReference ref = context.getServiceReference(Deps.class.getName());
+            final ServiceCollection<Dep> deps = (ServiceCollection<Dep>) ((Deps) context.getService(ref)).deps();
+            final Spliterator<Dep> spliterator = deps.spliterator();
+            assertTrue(spliterator.hasCharacteristics(Spliterator.SIZED | Spliterator.IMMUTABLE));
+            context.registerService(Dep.class.getName(), new NamedDep("b"), rank(1));
+            assertEquals(1, spliterator.estimateSize());
+            assertEquals(2, deps.size());
+            final List<Map<String, Object>> props = new ArrayList<Map<String, Object>>();
+            final List<Object> ranks = new ArrayList<Object>();
+            deps.forEachService(new BiConsumer<Dep, Map<String, Object>>() {
+                @Override
+                public void accept(Dep dep, Map<String, Object> p) {
+                    props.add(p);
+                    ranks.add(p.get("rank"));
+                }
+            });
+            assertEquals(2, props.size());
+            assertSame(props.get(0), props.get(1));
+            assertTrue(ranks.contains(0));
+            assertTrue(ranks.contains(1));
+            context.ungetService(ref);
+        } finally {
+            component.stop();
+        }
+    }
+
+    /**
+     * In lazy mode a placeholder is only registered if the dependencies are
+     * available, otherwise the component is registered once satisfied
+     */
+    public void testPlaceholderOnlyWhenSatisfiable() throws Exception {
+        System.out.println("placeholderOnlyWhenSatisfiable");
+        OSGiComponent.setLazy(true);
+        final OSGiComponent<Svc> component = new OSGiComponent<Svc>(injectable(SvcImpl.class), Svc.class, context);
+        component.start();
+        try {
+            assertNull(context.getServiceReference(Svc.class.getName()));
+            // Activated at once, so the dependency is tracked
+            assertEquals(1, SharedTrackers.size());
+            context.registerService(Dep.class.getName(), new DepImpl(), new Hashtable<String, Object>());
+            final ServiceReference ref = context.getServiceReference(Svc.class.getName());
+            assertNotNull(ref);
+            assertNotNull(((Svc) context.getService(ref)).dep());
+            context.ungetService(ref);
+        } finally {
+            component.stop();
+        }
+    }
+
+    /**
+     * In lazy mode the placeholder is activated when first got, and becomes
+     * the registration of the component
+     */
+    public void testPlaceholderBecomesRegistration() throws Exception {
+        System.out.println("placeholderBecomesRegistration");
+        OSGiComponent.setLazy(true);
+        final Dep dep = new DepImpl();
+        context.registerService(Dep.class.getName(), dep, new Hashtable<String, Object>());
+        final OSGiComponent<Svc> component = new OSGiComponent<Svc>(injectable(SvcImpl.class), Svc.class, context);
+        component.start();
+        try {
+            final ServiceReference placeholder = context.getServiceReference(Svc.class.getName());
+            assertNotNull(placeholder);
+            // Not activated until got
+            assertEquals(0, SharedTrackers.size());
+            final Svc svc = (Svc) context.getService(placeholder);
+            assertSame(dep, svc.dep());
+            assertEquals(1, SharedTrackers.size());
+            final ServiceReference[] refs = context.getServiceReferences(Svc.class.getName(), null);
+            assertEquals(1, refs.length);
+            assertEquals(placeholder.getProperty(Constants.SERVICE_ID), refs[0].getProperty(Constants.SERVICE_ID));
+            context.ungetService(placeholder);
+        } finally {
+            component.stop();
+        }
+        assertNull(context.getServiceReference(Svc.class.getName()));
+    }
+}
@@ -0,0 +1,54 @@
+package eu.monnetproject.framework.services.impl;
+
+import java.util.HashSet;
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author jmccrae
+ */
+public class ServiceLoaderResolverTest extends TestCase {
+
+    public ServiceLoaderResolverTest(String testName) {
+        super(testName);
+    }
+
+    // Compiled for Java 9 so only on the test class path at runtime
+    private static ProviderResolver resolver() throws Exception {
+        return (ProviderResolver) Class.forName("eu.monnetproject.framework.services.impl.ServiceLoaderResolver")
+                .getDeclaredConstructor().newInstance();
+    }
+
+    public interface Greeter {
+    }
+
+    public static class EnGreeter implements Greeter {
+    }
+
+    public static class DeGreeter implements Greeter {
+    }
+
+    /**
+     * Test of resolveFirst method, of class ServiceLoaderResolver.
+     */
+    public void testResolveFirst() throws Exception {
+        System.out.println("resolveFirst");
+        assertTrue(resolver().resolveFirst(Greeter.class, null) instanceof EnGreeter);
+        assertNull(resolver().resolveFirst(Runnable.class, null));
+    }
+
+    /**
+     * Test of resolveAll method, of class ServiceLoaderResolver.
+     */
+    public void testResolveAll() throws Exception {
+        System.out.println("resolveAll");
+        final List<Greeter> all = resolver().resolveAll(Greeter.class, new HashSet<Class<?>>(), null);
+        assertEquals(2, all.size());
+        final HashSet<Class<?>> resolved = new HashSet<Class<?>>();
+        resolved.add(EnGreeter.class);
+        final List<Greeter> rest = resolver().resolveAll(Greeter.class, resolved, null);
+        assertEquals(1, rest.size());
+        assertTrue(rest.get(0) instanceof DeGreeter);
+    }
+}
@@ -0,0 +1,79 @@
+package eu.monnetproject.framework.services.impl;
+
+import java.io.StringWriter;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author jmccrae
+ */
+public class StartupTimelineTest extends TestCase {
+
+    public StartupTimelineTest(String testName) {
+        super(testName);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        StartupTimeline.setEnabled(true);
+        StartupTimeline.reset();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        StartupTimeline.setEnabled(false);
+        StartupTimeline.setMaxEvents(100000);
+        StartupTimeline.reset();
+    }
+
+    private static String json() throws Exception {
+        final StringWriter out = new StringWriter();
+        StartupTimeline.writeJson(out);
+        return out.toString();
+    }
+
+    /**
+     * The critical path follows the dependency that completed each component
+     */
+    public void testCriticalPath() throws Exception {
+        System.out.println("criticalPath");
+        StartupTimeline.instant("a.A", "a.SA", StartupTimeline.REGISTERED, null);
+        Thread.sleep(2);
+        StartupTimeline.instant("b.B", "b.SB", StartupTimeline.REGISTERED, null);
+        Thread.sleep(2);
+        StartupTimeline.instant("c.C", "c.SC", StartupTimeline.DEPENDENCY_SATISFIED, "b.SB");
+        Thread.sleep(2);
+        StartupTimeline.instant("c.C", "c.SC", StartupTimeline.DEPENDENCY_SATISFIED, "a.SA");
+        Thread.sleep(2);
+        StartupTimeline.instant("c.C", "c.SC", StartupTimeline.REGISTERED, null);
+        final String json = json();
+        final String path = json.substring(json.indexOf("\"criticalPath\""), json.indexOf("\"slowestConstructors\""));
+        assertTrue(path.contains("\"component\": \"a.A\""));
+        assertFalse(path.contains("\"component\": \"b.B\""));
+        assertTrue(path.indexOf("\"component\": \"a.A\"") < path.indexOf("\"component\": \"c.C\", \"service\": \"c.SC\", \"satisfiedBy\": \"a.SA\""));
+    }
+
+    /**
+     * Names are escaped in the JSON
+     */
+    public void testEscaping() throws Exception {
+        System.out.println("escaping");
+        StartupTimeline.instant("a\"b\\c\nd", null, StartupTimeline.REGISTERED, null);
+        assertTrue(json().contains("\"component\": \"a\\\"b\\\\c\\u000ad\", \"service\": null"));
+    }
+
+    /**
+     * Events after the maximum are counted but not kept
+     */
+    public void testMaxEvents() throws Exception {
+        System.out.println("maxEvents");
+        StartupTimeline.setMaxEvents(2);
+        for (int i = 0; i < 5; i++) {
+            StartupTimeline.instant("a.A" + i, null, StartupTimeline.CONSTRUCTED, null);
+        }
+        final String json = json();
+        assertTrue(json.contains("a.A1"));
+        assertFalse(json.contains("a.A2"));
+        assertTrue(json.contains("\"dropped\": 3"));
+    }
+}
@@ -0,0 +1,190 @@
+package eu.monnetproject.framework.services.impl;
+
+import eu.monnetproject.framework.services.ServiceCollection;
+import eu.monnetproject.framework.services.ServiceCollectionListener;
+import eu.monnetproject.framework.services.ServiceLoadException;
+import java.io.File;
+import java.io.FileWriter;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.BiConsumer;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author jmccrae
+ */
+public class StdResolverTest extends TestCase {
+
+    public StdResolverTest(String testName) {
+        super(testName);
+    }
+
+    public interface Tagger {
+    }
+
+    public static class TaggerImpl implements Tagger {
+    }
+
+    public static class TaggerImpl2 implements Tagger {
+    }
+
+    public interface Parser {
+    }
+
+    public static class ParserImpl implements Parser {
+
+        final Tagger tagger;
+
+        public ParserImpl(Tagger tagger) {
+            this.tagger = tagger;
+        }
+    }
+
+    private static File root(String descriptor) throws Exception {
+        final File root = File.createTempFile("resolver", "");
+        root.delete();
+        write(root, Tagger.class, descriptor);
+        return root;
+    }
+
+    private static void write(File root, Class<?> serviceClass, String descriptor) throws Exception {
+        final File dir = new File(root, StdResolver.PATH_PREFIX);
+        dir.mkdirs();
+        final FileWriter out = new FileWriter(new File(dir, serviceClass.getName()));
+        out.write(descriptor);
+        out.close();
+    }
+
+    /**
+     * An implementation listed by more than one descriptor is only created 
+     * once
+     */
+    public void testResolveExtantDuplicates() throws Exception {
+        System.out.println("resolveExtantDuplicates");
+        final File root1 = root(TaggerImpl.class.getName() + "\n");
+        final File root2 = root(TaggerImpl.class.getName() + "\n");
+        final ClassLoader old = Thread.currentThread().getContextClassLoader();
+        // The same descriptor twice as well
+        Thread.currentThread().setContextClassLoader(new URLClassLoader(new URL[]{
+            root1.toURI().toURL(), root2.toURI().toURL(), root1.toURI().toURL()
+        }, getClass().getClassLoader()));
+        try {
+            assertEquals(1, StdResolver.resolveExtant(Tagger.class).size());
+        } finally {
+            Thread.currentThread().setContextClassLoader(old);
+        }
+    }
+
+    /**
+     * Test of resolveImmediate method of a batch, of class StdResolver.
+     */
+    public void testResolveImmediateBatch() throws Exception {
+        System.out.println("resolveImmediateBatch");
+        final File root = root(TaggerImpl.class.getName() + "\n");
+        write(root, Parser.class, ParserImpl.class.getName() + "\n");
+        final ClassLoader old = Thread.currentThread().getContextClassLoader();
+        Thread.currentThread().setContextClassLoader(new URLClassLoader(new URL[]{root.toURI().toURL()}, getClass().getClassLoader()));
+        try {
+            final Object[] services = StdResolver.resolveImmediate(Tagger.class, Parser.class);
+            assertTrue(services[0] instanceof TaggerImpl);
+            assertTrue(services[1] instanceof ParserImpl);
+            assertNotNull(((ParserImpl) services[1]).tagger);
+            try {
+                StdResolver.resolveImmediate(Tagger.class, Runnable.class);
+                fail("Runnable was resolved");
+            } catch (ServiceLoadException x) {
+            }
+        } finally {
+            Thread.currentThread().setContextClassLoader(old);
+        }
+    }
+
+    private static class RecordingListener implements ServiceCollectionListener<Tagger> {
+
+        final List<String> events = new ArrayList<String>();
+
+        @Override
+        public void serviceAdded(Tagger service, Map<String, Object> props) {
+            events.add("added " + service.getClass().getSimpleName());
+        }
+
+        @Override
+        public void serviceRemoved(Tagger service, Map<String, Object> props) {
+            events.add("removed " + service.getClass().getSimpleName());
+        }
+
+        @Override
+        public void serviceModified(Tagger service, Map<String, Object> props) {
+            events.add("modified " + service.getClass().getSimpleName());
+        }
+    }
+
+    /**
+     * A listener on a collection without OSGi is told about the current
+     * services once
+     */
+    public void testListener() throws Exception {
+        System.out.println("listener");
+        final File root = root(TaggerImpl.class.getName() + "\n" + TaggerImpl2.class.getName() + "\n");
+        final ClassLoader old = Thread.currentThread().getContextClassLoader();
+        Thread.currentThread().setContextClassLoader(new URLClassLoader(new URL[]{root.toURI().toURL()}, getClass().getClassLoader()));
+        try {
+            final ServiceCollection<Tagger> taggers = StdResolver.resolveExtant(Tagger.class);
+            final RecordingListener listener = new RecordingListener();
+            taggers.addListener(listener);
+            assertEquals(2, listener.events.size());
+            assertTrue(listener.events.contains("added TaggerImpl"));
+            assertTrue(listener.events.contains("added TaggerImpl2"));
+            taggers.removeListener(listener);
+            taggers.iterator();
+            assertEquals(2, listener.events.size());
+        } finally {
+            Thread.currentThread().setContextClassLoader(old);
+        }
+    }
+
+    /**
+     * The spliterator is over a snapshot and forEachService passes the same
+     * properties to each call
+     */
+    public void testSpliteratorAndForEachService() throws Exception {
+        System.out.println("spliteratorAndForEachService");
+        final File root = root(TaggerImpl.class.getName() + "\n" + TaggerImpl2.class.getName() + "\n");
+        final ClassLoader old = Thread.currentThread().getContextClassLoader();
+        Thread.currentThread().setContextClassLoader(new URLClassLoader(new URL[]{root.toURI().toURL()}, getClass().getClassLoader()));
+        try {
+            final ServiceCollection<Tagger> taggers = StdResolver.resolveExtant(Tagger.class);
+            final Spliterator<Tagger> spliterator = taggers.spliterator();
+            assertTrue(spliterator.hasCharacteristics(Spliterator.SIZED | Spliterator.IMMUTABLE));
+            taggers.clear();
+            assertEquals(2, spliterator.estimateSize());
+            final List<Tagger> seen = new ArrayList<Tagger>();
+            while (spliterator.tryAdvance(new java.util.function.Consumer<Tagger>() {
+                @Override
+                public void accept(Tagger tagger) {
+                    seen.add(tagger);
+                }
+            })) {
+            }
+            assertEquals(2, seen.size());
+            taggers.addAll(seen);
+            final List<Map<String, Object>> props = new ArrayList<Map<String, Object>>();
+            taggers.forEachService(new BiConsumer<Tagger, Map<String, Object>>() {
+                @Override
+                public void accept(Tagger tagger, Map<String, Object> p) {
+                    props.add(p);
+                }
+            });
+            assertEquals(2, props.size());
+            assertSame(props.get(0), props.get(1));
+            assertTrue(props.get(0).isEmpty());
+        } finally {
+            Thread.currentThread().setContextClassLoader(old);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package eu.monnetproject.framework.services.impl;
+
+import eu.monnetproject.framework.services.NonEmpty;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import junit.framework.TestCase;
+
+/**
+ *
+ * @author jmccrae
+ */
+public class WiringSnapshotTest extends TestCase {
+
+    public WiringSnapshotTest(String testName) {
+        super(testName);
+    }
+
+    public static class WS1 {
+
+        public WS1(@NonEmpty Collection<Runnable> runnables, Runnable runnable) {
+        }
+    }
+
+    /**
+     * Test of write method, of class WiringSnapshot.
+     */
+    public void testWrite() throws Exception {
+        System.out.println("write");
+        final File file = File.createTempFile("wiring", ".snapshot");
+        try {
+            final WiringSnapshot snapshot = new WiringSnapshot(file, "abc");
+            snapshot.recordImmediate("p.Svc", new WiringSnapshot.Binding("p.Impl", false));
+            snapshot.recordAll("p.Svc", Arrays.asList(new WiringSnapshot.Binding("p.Impl", false), new WiringSnapshot.Binding("p.Indep", true)));
+            snapshot.recordAll("p.None", Arrays.<WiringSnapshot.Binding>asList());
+            snapshot.recordPlan(WS1.class.getName(), new InjectableClass<WS1>(WS1.class).plan());
+            snapshot.write();
+
+            final WiringSnapshot loaded = new WiringSnapshot(file, "abc");
+            assertEquals("p.Impl", loaded.immediate("p.Svc").className);
+            assertEquals(2, loaded.all("p.Svc").size());
+            assertTrue(loaded.all("p.Svc").get(1).independent);
+            assertTrue(loaded.all("p.None").isEmpty());
+            final InjectableClass<WS1> planned = new InjectableClass<WS1>(WS1.class, loaded.plan(WS1.class.getName()));
+            assertTrue(Arrays.equals(new boolean[]{true, false}, planned.isNonEmpty()));
+            assertTrue(InjectableClass.isMultiple(planned.dependencies()[0]));
+            assertEquals(Runnable.class, InjectableClass.getRealType(planned.dependencies()[0]));
+            assertEquals(Runnable.class, planned.dependencies()[1]);
+
+            final WiringSnapshot stale = new WiringSnapshot(file, "def");
+            assertNull(stale.immediate("p.Svc"));
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Test of fingerprint method, of class WiringSnapshot.
+     */
+    public void testFingerprint() throws Exception {
+        System.out.println("fingerprint");
+        final File file = File.createTempFile("wiring", ".jar");
+        try {
+            final String before = WiringSnapshot.fingerprint(file.getPath());
+            assertEquals(before, WiringSnapshot.fingerprint(file.getPath()));
+            final FileOutputStream out = new FileOutputStream(file);
+            out.write(1);
+            out.close();
+            assertFalse(before.equals(WiringSnapshot.fingerprint(file.getPath())));
+        } finally {
+            file.delete();
+        }
+    }
+}